@@ -0,0 +1,84 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.benchmark;
+
+import com.github.meixuesong.aggregatepersistence.Aggregate;
+import com.github.meixuesong.aggregatepersistence.AggregateDiff;
+import com.github.meixuesong.aggregatepersistence.AggregateFactory;
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Collection;
+
+/**
+ * The cost of the collection delta finders of {@link Aggregate}. The diffs are cached by the aggregate, so the
+ * cache is cleared before every call.
+ *
+ * @author meixuesong
+ */
+@State(Scope.Benchmark)
+public class AggregateBenchmark extends BenchmarkSettings {
+    @Param({"serializable", "methodHandle"})
+    public String copier;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    @Param({"0", "0.01", "1"})
+    public double changeRatio;
+
+    private Order order;
+    private Aggregate<Order> orderAggregate;
+    private Aggregate<Loan> loanAggregate;
+
+    @Setup
+    public void setUp() {
+        AggregateFactory.setCopier(BenchmarkModels.createCopier(copier));
+        order = BenchmarkModels.createOrder(size);
+        orderAggregate = AggregateFactory.createAggregate(order);
+        BenchmarkModels.changeItems(order.getItems(), changeRatio);
+
+        Loan loan = BenchmarkModels.createLoan(size);
+        loanAggregate = AggregateFactory.createAggregate(loan);
+        BenchmarkModels.changePlans(loan, changeRatio);
+    }
+
+    @Benchmark
+    public Aggregate<Order> createAggregate() {
+        return AggregateFactory.createAggregate(order);
+    }
+
+    @Benchmark
+    public Collection<OrderItem> findChangedOrderItems() {
+        orderAggregate.clearDiffs();
+        return orderAggregate.findChangedEntities(Order::getItems, OrderItem::getId);
+    }
+
+    @Benchmark
+    public AggregateDiff<OrderItem, Long> diffOrderItems() {
+        orderAggregate.clearDiffs();
+        return orderAggregate.diff(Order::getItems, OrderItem::getId);
+    }
+
+    @Benchmark
+    public Collection<RepaymentPlan> findChangedRepaymentPlans() {
+        loanAggregate.clearDiffs();
+        return loanAggregate.findChangedEntities(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+    }
+}
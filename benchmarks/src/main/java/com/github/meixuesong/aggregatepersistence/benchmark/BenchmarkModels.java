@@ -0,0 +1,109 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.benchmark;
+
+import com.github.meixuesong.aggregatepersistence.DeepComparator;
+import com.github.meixuesong.aggregatepersistence.DeepCopier;
+import com.github.meixuesong.aggregatepersistence.JavaUtilDeepComparator;
+import com.github.meixuesong.aggregatepersistence.MethodHandleDeepComparator;
+import com.github.meixuesong.aggregatepersistence.MethodHandleDeepCopier;
+import com.github.meixuesong.aggregatepersistence.SerializableDeepCopier;
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The models and the implementations used by the benchmarks.
+ *
+ * @author meixuesong
+ */
+final class BenchmarkModels {
+    private BenchmarkModels() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    static Order createOrder(int size) {
+        Order order = new Order("ORDER", "CUSTOMER", 1);
+        for (int i = 0; i < size; i++) {
+            order.addItem(new OrderItem((long) i, "PRODUCT-" + (i % 100), 1 + i % 5, BigDecimal.valueOf(i % 1000, 2)));
+        }
+        return order;
+    }
+
+    static Loan createLoan(int size) {
+        Loan loan = new Loan("LOAN", size, 1);
+        loan.createPlans();
+        return loan;
+    }
+
+    /**
+     * Change the quantity of every 1 / changeRatio item, e.g. 1 of 100 items for 0.01.
+     */
+    static void changeItems(List<OrderItem> items, double changeRatio) {
+        if (changeRatio <= 0) {
+            return;
+        }
+
+        int step = Math.max(1, (int) Math.round(1 / changeRatio));
+        for (int i = 0; i < items.size(); i += step) {
+            items.get(i).setQuantity(items.get(i).getQuantity() + 1);
+        }
+    }
+
+    /**
+     * Pay every 1 / changeRatio repayment plan.
+     */
+    static void changePlans(Loan loan, double changeRatio) {
+        if (changeRatio <= 0) {
+            return;
+        }
+
+        int step = Math.max(1, (int) Math.round(1 / changeRatio));
+        for (int i = 0; i < loan.getRepaymentPlans().size(); i += step) {
+            loan.payPlan(loan.getRepaymentPlans().get(i).getNo());
+        }
+    }
+
+    static List<OrderItem> copyItems(List<OrderItem> items) {
+        List<OrderItem> results = new ArrayList<>(items.size());
+        for (OrderItem item : items) {
+            results.add(new OrderItem(item.getId(), item.getProductId(), item.getQuantity(), item.getPrice()));
+        }
+        return results;
+    }
+
+    static DeepCopier createCopier(String name) {
+        switch (name) {
+            case "serializable":
+                return new SerializableDeepCopier();
+            case "methodHandle":
+                return new MethodHandleDeepCopier();
+            default:
+                throw new IllegalArgumentException(String.format("Unknown copier %s", name));
+        }
+    }
+
+    static DeepComparator createComparator(String name) {
+        switch (name) {
+            case "javaUtil":
+                return new JavaUtilDeepComparator();
+            case "methodHandle":
+                return new MethodHandleDeepComparator();
+            default:
+                throw new IllegalArgumentException(String.format("Unknown comparator %s", name));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.benchmark;
+
+import com.github.meixuesong.aggregatepersistence.DeepComparator;
+import com.github.meixuesong.aggregatepersistence.MethodHandleDeepCopier;
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The cost of comparing the root with its snapshot, i.e. Aggregate.isChanged.
+ *
+ * @author meixuesong
+ */
+@State(Scope.Benchmark)
+public class ComparatorBenchmark extends BenchmarkSettings {
+    @Param({"javaUtil", "methodHandle"})
+    public String comparator;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    @Param({"0", "0.01", "1"})
+    public double changeRatio;
+
+    private DeepComparator deepComparator;
+    private Order order;
+    private Order orderSnapshot;
+    private Loan loan;
+    private Loan loanSnapshot;
+
+    @Setup
+    public void setUp() {
+        deepComparator = BenchmarkModels.createComparator(comparator);
+        MethodHandleDeepCopier copier = new MethodHandleDeepCopier();
+        order = BenchmarkModels.createOrder(size);
+        orderSnapshot = copier.copy(order);
+        BenchmarkModels.changeItems(order.getItems(), changeRatio);
+        loan = BenchmarkModels.createLoan(size);
+        loanSnapshot = copier.copy(loan);
+        BenchmarkModels.changePlans(loan, changeRatio);
+    }
+
+    @Benchmark
+    public boolean compareOrder() {
+        return deepComparator.isDeepEquals(order, orderSnapshot);
+    }
+
+    @Benchmark
+    public boolean compareLoan() {
+        return deepComparator.isDeepEquals(loan, loanSnapshot);
+    }
+}
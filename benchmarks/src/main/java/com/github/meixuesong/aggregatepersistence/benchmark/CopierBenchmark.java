@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.benchmark;
+
+import com.github.meixuesong.aggregatepersistence.DeepCopier;
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The cost of taking a snapshot by the copiers.
+ *
+ * @author meixuesong
+ */
+@State(Scope.Benchmark)
+public class CopierBenchmark extends BenchmarkSettings {
+    @Param({"serializable", "methodHandle"})
+    public String copier;
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private DeepCopier deepCopier;
+    private Order order;
+    private Loan loan;
+
+    @Setup
+    public void setUp() {
+        deepCopier = BenchmarkModels.createCopier(copier);
+        order = BenchmarkModels.createOrder(size);
+        loan = BenchmarkModels.createLoan(size);
+    }
+
+    @Benchmark
+    public Order copyOrder() {
+        return deepCopier.copy(order);
+    }
+
+    @Benchmark
+    public Loan copyLoan() {
+        return deepCopier.copy(loan);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.benchmark;
+
+import com.github.meixuesong.aggregatepersistence.DataObjectUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The cost of comparing the data objects, e.g. the rows of the child entities.
+ *
+ * @author meixuesong
+ */
+@State(Scope.Benchmark)
+public class DataObjectUtilsBenchmark extends BenchmarkSettings {
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    @Param({"0", "0.01", "1"})
+    public double changeRatio;
+
+    private List<OrderItem> olds;
+    private List<OrderItem> currents;
+
+    @Setup
+    public void setUp() {
+        olds = BenchmarkModels.createOrder(size).getItems();
+        currents = BenchmarkModels.copyItems(olds);
+        BenchmarkModels.changeItems(currents, changeRatio);
+    }
+
+    @Benchmark
+    public List<Set<String>> getChangedFields() {
+        List<Set<String>> results = new ArrayList<>(olds.size());
+        for (int i = 0; i < olds.size(); i++) {
+            results.add(DataObjectUtils.getChangedFields(olds.get(i), currents.get(i)));
+        }
+        return results;
+    }
+
+    @Benchmark
+    public List<Set<String>> getChangedFieldsInBatch() {
+        return DataObjectUtils.getChangedFieldsInBatch(olds, currents);
+    }
+
+    @Benchmark
+    public List<OrderItem> getDelta() {
+        List<OrderItem> results = new ArrayList<>(olds.size());
+        for (int i = 0; i < olds.size(); i++) {
+            results.add(DataObjectUtils.getDelta(olds.get(i), currents.get(i)));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.benchmark;
+
+import com.github.meixuesong.aggregatepersistence.Versionable;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The synthetic aggregate root of the benchmarks.
+ *
+ * @author meixuesong
+ */
+public class Order implements Versionable, Serializable {
+    private String id;
+    private String customerId;
+    private String status;
+    private BigDecimal totalPrice;
+    private List<OrderItem> items = new ArrayList<>();
+    private int version;
+
+    public Order() {
+    }
+
+    public Order(String id, String customerId, int version) {
+        this.id = id;
+        this.customerId = customerId;
+        this.status = "NEW";
+        this.totalPrice = BigDecimal.ZERO;
+        this.version = version;
+    }
+
+    public void addItem(OrderItem item) {
+        items.add(item);
+        totalPrice = totalPrice.add(item.getPrice().multiply(BigDecimal.valueOf(item.getQuantity())));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getCustomerId() {
+        return customerId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public BigDecimal getTotalPrice() {
+        return totalPrice;
+    }
+
+    public List<OrderItem> getItems() {
+        return items;
+    }
+
+    @Override
+    public int getVersion() {
+        return version;
+    }
+}
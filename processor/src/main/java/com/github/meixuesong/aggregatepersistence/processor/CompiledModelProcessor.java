@@ -0,0 +1,412 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Generates the GeneratedModel of each class marked by CompiledModel, i.e. the copier, comparator and delta code
+ * which read and write the fields directly or by getters and setters, and registers them in
+ * META-INF/services/com.github.meixuesong.aggregatepersistence.GeneratedModel.
+ *
+ * The field values are copied and compared by their runtime classes through GeneratedModels, so the nested entities,
+ * collections and subclasses use their own generated models. Immutable values are shared by the copies.
+ *
+ * A class is rejected with a compile error if it can't be instantiated or one of its fields can't be accessed
+ * without reflection.
+ *
+ * @author meixuesong
+ */
+@SupportedAnnotationTypes(CompiledModelProcessor.ANNOTATION)
+public class CompiledModelProcessor extends AbstractProcessor {
+    static final String ANNOTATION = "com.github.meixuesong.aggregatepersistence.CompiledModel";
+    static final String SERVICE_FILE = "META-INF/services/com.github.meixuesong.aggregatepersistence.GeneratedModel";
+    static final String SUFFIX = "_GeneratedModel";
+
+    private static final Set<String> HASHABLE_TYPES = new HashSet<>(Arrays.asList(
+            "java.lang.String", "java.lang.Boolean", "java.lang.Character", "java.lang.Byte", "java.lang.Short",
+            "java.lang.Integer", "java.lang.Long", "java.math.BigInteger", "java.util.UUID"));
+    private static final Set<String> IMMUTABLE_TYPES = new HashSet<>(Arrays.asList(
+            "java.lang.Float", "java.lang.Double", "java.math.BigDecimal", "java.util.Currency", "java.util.Locale",
+            "java.net.URI", "java.util.regex.Pattern"));
+
+    private final Set<String> models = new TreeSet<>();
+    private Elements elements;
+    private Types types;
+    private Filer filer;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.elements = processingEnv.getElementUtils();
+        this.types = processingEnv.getTypeUtils();
+        this.filer = processingEnv.getFiler();
+        this.messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            if (!models.isEmpty()) {
+                writeServiceFile();
+            }
+            return false;
+        }
+
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@CompiledModel is only supported on classes.");
+                } else {
+                    generate((TypeElement) element);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void generate(TypeElement type) {
+        if (!isInstantiable(type)) {
+            return;
+        }
+
+        List<ModelProperty> properties = new ArrayList<>();
+        for (VariableElement field : getFields(type)) {
+            ModelProperty property = createProperty(type, field);
+            if (property == null) {
+                return;
+            }
+            properties.add(property);
+        }
+
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        String modelName = getModelName(type);
+        String qualifiedName = packageName.isEmpty() ? modelName : packageName + "." + modelName;
+        try (PrintWriter writer = new PrintWriter(filer.createSourceFile(qualifiedName, type).openWriter())) {
+            writeModel(writer, packageName, modelName, types.erasure(type.asType()).toString(), properties);
+        } catch (IOException e) {
+            error(type, String.format("Failed to write %s: %s", qualifiedName, e.getMessage()));
+            return;
+        }
+
+        models.add(qualifiedName);
+    }
+
+    private boolean isInstantiable(TypeElement type) {
+        for (Element element = type; element.getKind().isClass(); element = element.getEnclosingElement()) {
+            if (element.getModifiers().contains(Modifier.PRIVATE)) {
+                error(type, "@CompiledModel class should not be private.");
+                return false;
+            }
+        }
+
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            error(type, "@CompiledModel class should be concrete.");
+            return false;
+        }
+
+        if (type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+            error(type, "@CompiledModel nested class should be static.");
+            return false;
+        }
+
+        if (type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+            error(type, "@CompiledModel class should be a top level or static nested class.");
+            return false;
+        }
+
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && isAccessible(constructor, type)) {
+                return true;
+            }
+        }
+
+        error(type, "@CompiledModel class should have a non-private no-arg constructor.");
+        return false;
+    }
+
+    /**
+     * The instance fields of the class and its superclasses, the fields hidden by the subclasses are skipped.
+     */
+    private List<VariableElement> getFields(TypeElement type) {
+        List<VariableElement> fields = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (TypeElement current = type; current != null; current = getSuperclass(current)) {
+            for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (!modifiers.contains(Modifier.STATIC) && !modifiers.contains(Modifier.TRANSIENT)
+                        && names.add(field.getSimpleName().toString())) {
+                    fields.add(field);
+                }
+            }
+        }
+
+        return fields;
+    }
+
+    private TypeElement getSuperclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        TypeElement element = (TypeElement) types.asElement(superclass);
+        return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private ModelProperty createProperty(TypeElement type, VariableElement field) {
+        String name = field.getSimpleName().toString();
+        TypeMirror fieldType = field.asType();
+        boolean readable = isAccessible(field, type);
+        boolean writable = readable && !field.getModifiers().contains(Modifier.FINAL);
+
+        String getter = null;
+        if (!readable) {
+            getter = findGetter(type, name, fieldType);
+            if (getter == null) {
+                error(field, String.format("Field %s should be non-private or have a getter.", name));
+                return null;
+            }
+        }
+
+        String setter = null;
+        if (!writable) {
+            setter = findSetter(type, name, fieldType);
+            if (setter == null) {
+                error(field, String.format("Field %s should be non-private, non-final or have a setter.", name));
+                return null;
+            }
+        }
+
+        return new ModelProperty(name, types.erasure(fieldType).toString(), getKind(fieldType), getter, setter);
+    }
+
+    private String findGetter(TypeElement type, String name, TypeMirror fieldType) {
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+            String methodName = method.getSimpleName().toString();
+            boolean named = methodName.equals("get" + capitalized)
+                    || (fieldType.getKind() == TypeKind.BOOLEAN && methodName.equals("is" + capitalized));
+            if (named && method.getParameters().isEmpty() && !method.getModifiers().contains(Modifier.STATIC)
+                    && isAccessible(method, type) && types.isSameType(method.getReturnType(), fieldType)) {
+                return methodName;
+            }
+        }
+
+        return null;
+    }
+
+    private String findSetter(TypeElement type, String name, TypeMirror fieldType) {
+        String methodName = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+            if (method.getSimpleName().contentEquals(methodName) && method.getParameters().size() == 1
+                    && !method.getModifiers().contains(Modifier.STATIC) && isAccessible(method, type)
+                    && types.isSameType(method.getParameters().get(0).asType(), fieldType)) {
+                return methodName;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The generated model is in the same package as the model class.
+     */
+    private boolean isAccessible(Element member, TypeElement type) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if (modifiers.contains(Modifier.PUBLIC)) {
+            return true;
+        }
+
+        return !modifiers.contains(Modifier.PRIVATE) && elements.getPackageOf(member).equals(elements.getPackageOf(type));
+    }
+
+    private ModelProperty.Kind getKind(TypeMirror type) {
+        if (type.getKind() == TypeKind.FLOAT || type.getKind() == TypeKind.DOUBLE) {
+            return ModelProperty.Kind.FLOATING;
+        }
+
+        if (type.getKind().isPrimitive()) {
+            return ModelProperty.Kind.PRIMITIVE;
+        }
+
+        if (type.getKind() != TypeKind.DECLARED) {
+            return ModelProperty.Kind.VALUE;
+        }
+
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        String name = element.getQualifiedName().toString();
+        if (element.getKind() == ElementKind.ENUM || HASHABLE_TYPES.contains(name)) {
+            return ModelProperty.Kind.HASHABLE;
+        }
+
+        if (IMMUTABLE_TYPES.contains(name) || (name.startsWith("java.time.") && element.getKind() == ElementKind.CLASS)) {
+            return ModelProperty.Kind.IMMUTABLE;
+        }
+
+        return ModelProperty.Kind.VALUE;
+    }
+
+    private String getModelName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        for (Element element = type.getEnclosingElement(); element.getKind().isClass() || element.getKind().isInterface();
+             element = element.getEnclosingElement()) {
+            name.insert(0, element.getSimpleName() + "_");
+        }
+
+        return name.append(SUFFIX).toString();
+    }
+
+    private void writeModel(PrintWriter out, String packageName, String modelName, String type, List<ModelProperty> properties) {
+        if (!packageName.isEmpty()) {
+            out.printf("package %s;%n%n", packageName);
+        }
+        out.println("import com.github.meixuesong.aggregatepersistence.GeneratedModel;");
+        out.println("import com.github.meixuesong.aggregatepersistence.GeneratedModels;");
+        out.println();
+        if (elements.getTypeElement("javax.annotation.processing.Generated") != null) {
+            out.printf("@javax.annotation.processing.Generated(\"%s\")%n", getClass().getName());
+        }
+        out.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+        out.printf("public final class %s implements GeneratedModel<%s> {%n", modelName, type);
+
+        out.println("    @Override");
+        out.printf("    public Class<%s> getType() {%n", type);
+        out.printf("        return %s.class;%n", type);
+        out.println("    }");
+        out.println();
+
+        out.println("    @Override");
+        out.printf("    public %s copy(%s source, java.util.Map<Object, Object> copies) {%n", type, type);
+        out.printf("        %s target = new %s();%n", type, type);
+        out.println("        copies.put(source, target);");
+        for (ModelProperty property : properties) {
+            out.printf("        %s;%n", property.write("target", property.copy("source")));
+        }
+        out.println("        return target;");
+        out.println("    }");
+        out.println();
+
+        out.println("    @Override");
+        out.printf("    public boolean isDeepEquals(%s a, %s b, java.util.Map<Object, Object> visited) {%n", type, type);
+        if (properties.isEmpty()) {
+            out.println("        return true;");
+        }
+        for (int i = 0; i < properties.size(); i++) {
+            out.printf(i == 0 ? "        return %s" : "                && %s", properties.get(i).isEquals("a", "b"));
+            out.println(i == properties.size() - 1 ? ";" : "");
+        }
+        out.println("    }");
+        out.println();
+
+        out.println("    @Override");
+        out.printf("    public java.util.Set<String> getChangedFields(%s old, %s current) {%n", type, type);
+        out.println("        java.util.Map<Object, Object> visited = new java.util.IdentityHashMap<>();");
+        out.println("        java.util.Set<String> fields = new java.util.HashSet<>();");
+        for (ModelProperty property : properties) {
+            out.printf("        if (!(%s)) {%n", property.isEquals("old", "current"));
+            out.printf("            fields.add(\"%s\");%n", property.getName());
+            out.println("        }");
+        }
+        out.println("        return fields;");
+        out.println("    }");
+        out.println();
+
+        out.println("    @Override");
+        out.printf("    public %s getDelta(%s old, %s current) {%n", type, type, type);
+        out.println("        java.util.Map<Object, Object> visited = new java.util.IdentityHashMap<>();");
+        out.printf("        %s delta = new %s();%n", type, type);
+        for (ModelProperty property : properties) {
+            out.printf("        if (!(%s)) {%n", property.isEquals("old", "current"));
+            out.printf("            %s;%n", property.write("delta", property.read("current")));
+            out.println("        }");
+        }
+        out.println("        return delta;");
+        out.println("    }");
+        out.println("}");
+    }
+
+    /**
+     * Merge the models generated before, e.g. by an incremental build which only recompiles the changed classes.
+     */
+    private void writeServiceFile() {
+        Set<String> entries = new TreeSet<>(models);
+        try {
+            FileObject existing = filer.getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            try (BufferedReader reader = new BufferedReader(existing.openReader(true))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && elements.getTypeElement(line) != null) {
+                        entries.add(line);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // no models were generated before
+        }
+
+        try (Writer writer = filer.createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE).openWriter()) {
+            for (String entry : entries) {
+                writer.write(entry);
+                writer.write("\n");
+            }
+        } catch (IOException e) {
+            messager.printMessage(Diagnostic.Kind.ERROR, String.format("Failed to write %s: %s", SERVICE_FILE, e.getMessage()));
+        }
+    }
+
+    private void error(Element element, String message) {
+        messager.printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.processor;
+
+/**
+ * A field of the model, with the expressions to read and write it in the generated code.
+ *
+ * @author meixuesong
+ */
+class ModelProperty {
+    enum Kind {
+        /** compared by ==, shared by the copy */
+        PRIMITIVE,
+        /** float and double, compared with epsilon, shared by the copy */
+        FLOATING,
+        /** immutable values with exact equals, e.g. String, Long and enums */
+        HASHABLE,
+        /** other immutable values, e.g. BigDecimal and java.time, compared like the deep comparator */
+        IMMUTABLE,
+        /** copied and compared by their runtime classes */
+        VALUE
+    }
+
+    private final String name;
+    private final String type;
+    private final Kind kind;
+    private final String getter;
+    private final String setter;
+
+    /**
+     * @param getter the getter name, null to read the field directly
+     * @param setter the setter name, null to write the field directly
+     */
+    ModelProperty(String name, String type, Kind kind, String getter, String setter) {
+        this.name = name;
+        this.type = type;
+        this.kind = kind;
+        this.getter = getter;
+        this.setter = setter;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String read(String instance) {
+        return getter == null ? instance + "." + name : instance + "." + getter + "()";
+    }
+
+    String write(String instance, String value) {
+        return setter == null ? instance + "." + name + " = " + value : instance + "." + setter + "(" + value + ")";
+    }
+
+    String copy(String source) {
+        if (kind == Kind.VALUE) {
+            return "(" + type + ") GeneratedModels.copyValue(" + read(source) + ", copies)";
+        }
+
+        return read(source);
+    }
+
+    String isEquals(String a, String b) {
+        switch (kind) {
+            case PRIMITIVE:
+                return read(a) + " == " + read(b);
+            case FLOATING:
+                return "GeneratedModels.isDeepEquals(" + read(a) + ", " + read(b) + ")";
+            case HASHABLE:
+                return "java.util.Objects.equals(" + read(a) + ", " + read(b) + ")";
+            default:
+                return "GeneratedModels.isDeepEquals(" + read(a) + ", " + read(b) + ", visited)";
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.processor;
+
+import com.github.meixuesong.aggregatepersistence.GeneratedModel;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class CompiledModelProcessorTest {
+    private static final String ORDER = String.join("\n",
+            "package sample;",
+            "import com.github.meixuesong.aggregatepersistence.CompiledModel;",
+            "import java.math.BigDecimal;",
+            "import java.util.ArrayList;",
+            "import java.util.List;",
+            "@CompiledModel",
+            "public class Order {",
+            "    private String id;",
+            "    private int version;",
+            "    double discount;",
+            "    private List<OrderItem> items = new ArrayList<>();",
+            "    private transient String cache;",
+            "    public String getId() { return id; }",
+            "    public void setId(String id) { this.id = id; }",
+            "    public int getVersion() { return version; }",
+            "    public void setVersion(int version) { this.version = version; }",
+            "    public List<OrderItem> getItems() { return items; }",
+            "    public void setItems(List<OrderItem> items) { this.items = items; }",
+            "}");
+    private static final String ORDER_ITEM = String.join("\n",
+            "package sample;",
+            "import com.github.meixuesong.aggregatepersistence.CompiledModel;",
+            "import java.math.BigDecimal;",
+            "@CompiledModel",
+            "public class OrderItem {",
+            "    public Long id;",
+            "    public BigDecimal amount;",
+            "    public boolean paid;",
+            "    public Order order;",
+            "    public OrderItem() {}",
+            "    public OrderItem(Long id, BigDecimal amount) { this.id = id; this.amount = amount; }",
+            "}");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void should_generate_models_and_register_them() throws Exception {
+        File output = folder.newFolder();
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(output, source("sample.Order", ORDER), source("sample.OrderItem", ORDER_ITEM));
+        assertThat(diagnostics.getDiagnostics().toString(), diagnostics.getDiagnostics().stream()
+                .anyMatch(d -> d.getKind() == Diagnostic.Kind.ERROR), is(false));
+
+        List<String> services = Files.readAllLines(new File(output, CompiledModelProcessor.SERVICE_FILE).toPath());
+        assertEquals(Arrays.asList("sample.OrderItem_GeneratedModel", "sample.Order_GeneratedModel"), services);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{output.toURI().toURL()}, getClass().getClassLoader())) {
+            GeneratedModel<Object> orderModel = newModel(loader, "sample.Order_GeneratedModel");
+            Class<?> orderClass = orderModel.getType();
+            Class<?> itemClass = loader.loadClass("sample.OrderItem");
+
+            Object order = orderClass.getConstructor().newInstance();
+            orderClass.getMethod("setId", String.class).invoke(order, "ORDER");
+            Object item = itemClass.getConstructor(Long.class, java.math.BigDecimal.class).newInstance(1L, new java.math.BigDecimal("1.0"));
+            itemClass.getDeclaredField("order").set(item, order);
+            List<Object> items = (List<Object>) orderClass.getMethod("getItems").invoke(order);
+            items.add(item);
+
+            Object copy = orderModel.copy(order, new IdentityHashMap<>());
+            List<Object> copiedItems = (List<Object>) orderClass.getMethod("getItems").invoke(copy);
+            Object copiedItem = copiedItems.get(0);
+            assertThat(copiedItem, not(sameInstance(item)));
+            assertThat(itemClass.getDeclaredField("order").get(copiedItem), sameInstance(copy));
+            assertThat(itemClass.getDeclaredField("amount").get(copiedItem), sameInstance(itemClass.getDeclaredField("amount").get(item)));
+            assertThat(orderModel.isDeepEquals(order, copy, new IdentityHashMap<>()), is(true));
+
+            itemClass.getDeclaredField("amount").set(item, new java.math.BigDecimal("1.00"));
+            assertThat(orderModel.isDeepEquals(order, copy, new IdentityHashMap<>()), is(true));
+
+            itemClass.getDeclaredField("paid").set(item, true);
+            orderClass.getMethod("setVersion", int.class).invoke(order, 2);
+            assertThat(orderModel.isDeepEquals(order, copy, new IdentityHashMap<>()), is(false));
+            assertEquals(new HashSet<>(Arrays.asList("version", "items")), orderModel.getChangedFields(copy, order));
+
+            Object delta = orderModel.getDelta(copy, order);
+            assertThat(orderClass.getMethod("getId").invoke(delta) == null, is(true));
+            assertThat(orderClass.getMethod("getVersion").invoke(delta), is(2));
+        }
+    }
+
+    @Test
+    public void should_reject_field_which_cannot_be_accessed() throws Exception {
+        String source = String.join("\n",
+                "package sample;",
+                "@com.github.meixuesong.aggregatepersistence.CompiledModel",
+                "public class Customer {",
+                "    private String name;",
+                "    public String getName() { return name; }",
+                "}");
+
+        DiagnosticCollector<JavaFileObject> diagnostics = compile(folder.newFolder(), source("sample.Customer", source));
+
+        List<String> errors = new ArrayList<>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        assertEquals(1, errors.size());
+        assertThat(errors.get(0), containsString("Field name should be non-private, non-final or have a setter."));
+    }
+
+    private DiagnosticCollector<JavaFileObject> compile(File output, JavaFileObject... sources) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-d", output.getPath());
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Arrays.asList(sources));
+        task.setProcessors(Collections.singletonList(new CompiledModelProcessor()));
+        task.call();
+        return diagnostics;
+    }
+
+    private static JavaFileObject source(String className, String code) {
+        URI uri = URI.create("string:///" + className.replace('.', '/') + JavaFileObject.Kind.SOURCE.extension);
+        return new SimpleJavaFileObject(uri, JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return code;
+            }
+        };
+    }
+
+    private static GeneratedModel<Object> newModel(ClassLoader loader, String className) throws Exception {
+        return (GeneratedModel<Object>) loader.loadClass(className).getConstructor().newInstance();
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+/**
+ * The base class of the tracked root and entities. Call {@link #markChanged()} at the beginning of every method
+ * which changes the object, including the methods which add or remove the entities of a collection.
+ *
+ * <pre><code class="java">
+ public class OrderItem extends AbstractChangeTrackable {
+     public void setAmount(BigDecimal amount) {
+         markChanged();
+         this.amount = amount;
+     }
+ }
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+public abstract class AbstractChangeTrackable implements ChangeTrackable {
+    private transient ChangeTracker changeTracker;
+
+    @Override
+    public ChangeTracker getChangeTracker() {
+        return changeTracker;
+    }
+
+    @Override
+    public void setChangeTracker(ChangeTracker changeTracker) {
+        this.changeTracker = changeTracker;
+    }
+
+    /**
+     * Report that this object is going to be changed. Call it before the fields are written.
+     */
+    protected void markChanged() {
+        if (changeTracker != null) {
+            changeTracker.markChanged(this);
+        }
+    }
+}
@@ -14,12 +14,16 @@
 package com.github.meixuesong.aggregatepersistence;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -44,6 +48,10 @@ public class Aggregate<R extends Versionable> {
     protected R root;
     protected R snapshot;
     protected DeepComparator deepComparator;
+    protected DeepCopier copier;
+    private static final StructuralHasher DIFF_HASHER = new StructuralHasher();
+    private static final ObjectSizeEstimator SIZE_ESTIMATOR = new ObjectSizeEstimator();
+    private final Map<Object, CachedDiff> diffs = new HashMap<>();
 
     /**
      * Construct the aggregate object
@@ -52,8 +60,21 @@ public class Aggregate<R extends Versionable> {
      * @param deepComparator the deepComparator which is used to compare the root and snapshot
      */
     Aggregate(R root, DeepCopier copier, DeepComparator deepComparator) {
+        this(root, copy(root, copier, null), copier, deepComparator);
+    }
+
+    /**
+     * Construct the aggregate object with a prepared snapshot.
+     * @param root the aggregate root
+     * @param snapshot the snapshot of the root, it can be null if the subclass provides the snapshot by {@link #getRootSnapshot()}
+     * @param copier the deepCopier which is used to take the snapshot again when it's committed, it can be null if
+     *               the subclass overrides {@link #commit()}
+     * @param deepComparator the deepComparator which is used to compare the root and snapshot
+     */
+    Aggregate(R root, R snapshot, DeepCopier copier, DeepComparator deepComparator) {
         this.root = root;
-        this.snapshot = copier.copy(root);
+        this.snapshot = snapshot;
+        this.copier = copier;
         this.deepComparator = deepComparator;
     }
 
@@ -71,6 +92,7 @@ public class Aggregate<R extends Versionable> {
      */
     public void setRoot(R root) {
         this.root = root;
+        clearDiffs();
     }
 
     /**
@@ -86,7 +108,44 @@ public class Aggregate<R extends Versionable> {
      * @return true if the aggregate is changed, false if the aggregate is unchanged.
      */
     public boolean isChanged() {
-        return !deepComparator.isDeepEquals(root, snapshot);
+        AggregateMetrics metrics = AggregateFactory.getMetrics();
+        AggregateChangeCheckEvent event = new AggregateChangeCheckEvent();
+        if (metrics == null && !event.isEnabled()) {
+            return !deepComparator.isDeepEquals(root, getRootSnapshot());
+        }
+
+        R rootSnapshot = getRootSnapshot();
+        long start = System.nanoTime();
+        event.begin();
+        boolean changed = !deepComparator.isDeepEquals(root, rootSnapshot);
+        event.end();
+        if (metrics != null) {
+            metrics.record(AggregateMetricsEvent.ofCompare(root.getClass(), System.nanoTime() - start, changed));
+        }
+        if (event.shouldCommit()) {
+            event.aggregateType = root.getClass();
+            event.comparator = deepComparator.getClass().getName();
+            event.changed = changed;
+            event.commit();
+        }
+        return changed;
+    }
+
+    /**
+     * Whether the snapshot can be got by {@link #getRootSnapshot()}, e.g. it's false in fingerprint mode without
+     * snapshot loader.
+     * @return true if the snapshot is available
+     */
+    public boolean isSnapshotAvailable() {
+        return true;
+    }
+
+    /**
+     * Whether the aggregate is read-only, i.e. it's created for queries and should never be saved.
+     * @return true if it's read-only, see {@link ReadOnlyAggregate}
+     */
+    public boolean isReadOnly() {
+        return false;
     }
 
     /**
@@ -146,22 +205,9 @@ public class Aggregate<R extends Versionable> {
      * @return All the entities that has been changed.
      */
     public <T, ID> Collection<T> findChangedEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
-        Collection<T> newEntities = getCollection.apply(root);
-        Collection<T> oldEntities = getCollection.apply(snapshot);
-
-        Set<ID> newIds = getEntityIds(newEntities, getId);
-        Set<ID> oldIds = getEntityIds(oldEntities, getId);
-
-        oldIds.retainAll(newIds);
-
         Collection<T> results = new ArrayList<>();
-        for (ID id : oldIds) {
-            T oldEntity = getEntity(oldEntities, id, getId);
-            T newEntity = getEntity(newEntities, id, getId);
-
-            if (!deepComparator.isDeepEquals(oldEntity, newEntity)) {
-                results.add(newEntity);
-            }
+        for (ChangedEntity<T> changedEntity : getChangedEntities(getCollection, getId)) {
+            results.add(changedEntity.getNewEntity());
         }
 
         return results;
@@ -176,24 +222,7 @@ public class Aggregate<R extends Versionable> {
      * @return All the entities that has been changed.
      */
     public <T, ID> Collection<ChangedEntity<T>> findChangedEntitiesWithOldValues(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
-        Collection<T> newEntities = getCollection.apply(root);
-        Collection<T> oldEntities = getCollection.apply(snapshot);
-
-        Map<ID, T> newEntityMap = newEntities.stream().collect(Collectors.toMap(getId, x -> x));
-        Map<ID, T> oldEntityMap = oldEntities.stream().collect(Collectors.toMap(getId, x -> x));
-
-        oldEntityMap.keySet().retainAll(newEntityMap.keySet());
-
-        Collection<ChangedEntity<T>> results = new ArrayList<>();
-        for (Map.Entry<ID, T> entry : oldEntityMap.entrySet()) {
-            T oldEntity = entry.getValue();
-            T newEntity = newEntityMap.get(entry.getKey());
-            if (!deepComparator.isDeepEquals(oldEntity, newEntity)) {
-                results.add(new ChangedEntity<>(oldEntity, newEntity));
-            }
-        }
-
-        return results;
+        return getChangedEntities(getCollection, getId);
     }
 
     /**
@@ -206,14 +235,113 @@ public class Aggregate<R extends Versionable> {
      */
     public <T, ID> Collection<T> findRemovedEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
         Collection<T> newEntities = getCollection.apply(root);
-        Collection<T> oldEntities = getCollection.apply(snapshot);
+        Collection<T> oldEntities = getCollection.apply(getRootSnapshot());
 
         Set<ID> newIds = getEntityIds(newEntities, getId);
-        Set<ID> oldIds = getEntityIds(oldEntities, getId);
 
-        oldIds.removeAll(newIds);
+        return oldEntities.stream().filter(item -> !newIds.contains(getId.apply(item))).collect(Collectors.toList());
+    }
+
+    /**
+     * Find the new, changed and removed entities in one pass. The root and the snapshot entities are indexed by id
+     * only once, so it's cheaper than calling findNewEntitiesById, findChangedEntities and findRemovedEntities one by one.
+     *
+     * <pre><code class="java">
+     AggregateDiff&lt;OrderItem, Long&gt; diff = orderAggregate.diff(Order::getItems, OrderItem::getId);
+     * </code></pre>
+     *
+     * The result is cached by getCollection and getId, until the root is replaced by {@link #setRoot(Versionable)},
+     * or {@link #clearDiffs()} is called. The cached result keeps the fingerprint of the collection, and it's computed
+     * again if the collection or its entities have been mutated, so a lookup hashes the collection instead of diffing
+     * it. The result is not cached if the collection can't be hashed. The functions are compared by identity, so share
+     * the functions, e.g. the constants of {@link EntityCollection}, to share the result among the callers.
+     *
+     * @param getCollection The function of the aggregate root, used to get entity collection. e.g. Order:getItems
+     * @param getId The function of get ID. Entity are identified by ID.
+     * @param <T> The entity type
+     * @param <ID> The type of the entity id.
+     * @return the new, changed and removed entities. All the entities are new if the aggregate is new.
+     */
+    public <T, ID> AggregateDiff<T, ID> diff(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        List<Object> key = Arrays.asList(getCollection, getId);
+        Fingerprint fingerprint = fingerprintOf(getCollection);
+        AggregateDiff<T, ID> diff = getCachedDiff(key, fingerprint);
+        if (diff == null) {
+            diff = createDiff(getCollection, getId);
+            cacheDiff(key, getCollection, fingerprint, diff);
+        }
+
+        return diff;
+    }
+
+    /**
+     * Find the new, changed and removed entities of the entity collection in one pass, see {@link #diff(Function, Function)}.
+     * @param collection the entity collection descriptor, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param <T> The entity type
+     * @param <ID> The type of the entity id.
+     * @return the new, changed and removed entities.
+     */
+    public <T, ID> AggregateDiff<T, ID> diff(EntityCollection<R, T, ID> collection) {
+        return diff(collection.getCollectionFunction(), collection.getIdFunction());
+    }
+
+    /**
+     * Clear the cached diffs, so they will be computed again. Call it if the root is changed after {@link #diff(Function, Function)}.
+     */
+    public void clearDiffs() {
+        diffs.clear();
+    }
+
+    /**
+     * @param getCollection the function of the aggregate root, used to get entity collection.
+     * @return the fingerprint of the entity collection of the root, or null if it can't be hashed.
+     */
+    Fingerprint fingerprintOf(Function<R, ? extends Collection<?>> getCollection) {
+        try {
+            return DIFF_HASHER.hash(getCollection.apply(root));
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the cached diff, or null if it's not cached or the collection has been mutated since it was computed.
+     */
+    <T, ID> AggregateDiff<T, ID> getCachedDiff(Object key, Fingerprint fingerprint) {
+        CachedDiff cached = diffs.get(key);
+        return cached == null || fingerprint == null || !fingerprint.equals(cached.fingerprint) ? null
+                : (AggregateDiff<T, ID>) cached.diff;
+    }
+
+    /**
+     * Cache the diff with the fingerprint of the collection, it's not cached if the fingerprint is null.
+     */
+    void cacheDiff(Object key, Function<R, ? extends Collection<?>> getCollection, Fingerprint fingerprint, AggregateDiff<?, ?> diff) {
+        if (fingerprint != null) {
+            diffs.put(key, new CachedDiff(getCollection, fingerprint, diff));
+        }
+    }
+
+    /**
+     * Promote the current root to the snapshot, so the aggregate can be changed and saved again without being created
+     * again. Call it after the aggregate is saved.
+     *
+     * The entities which are found unchanged by the cached diffs, see {@link #diff(Function, Function)}, reuse their
+     * snapshot values, and the others are copied again. The cached diffs are ignored if their collections have been
+     * mutated since they were computed. So the cost is proportional to what changed if the copier
+     * supports reusing copies, e.g. {@link MethodHandleDeepCopier}. Otherwise the whole root is copied.
+     * The reused entities should not reference the root, or they keep referencing the old snapshot root.
+     */
+    public void commit() {
+        Map<Object, Object> unchangedEntities = new IdentityHashMap<>();
+        for (CachedDiff cached : diffs.values()) {
+            if (cached.fingerprint.equals(fingerprintOf(cached.getCollection))) {
+                cached.diff.collectUnchangedEntities(unchangedEntities);
+            }
+        }
 
-        return oldEntities.stream().filter(item -> oldIds.contains(getId.apply(item))).collect(Collectors.toList());
+        clearDiffs();
+        snapshot = copy(root, copier, unchangedEntities);
     }
 
     /**
@@ -234,38 +362,145 @@ public class Aggregate<R extends Versionable> {
             results.put(DeltaType.UPDATED, new ArrayList<>());
             results.put(DeltaType.REMOVED, new ArrayList<>());
         } else {
-            results.put(DeltaType.NEW, getCollectionNewEntities(getCollection, getId));
-            results.put(DeltaType.UPDATED, findChangedEntities(getCollection, getId));
-            results.put(DeltaType.REMOVED, findRemovedEntities(getCollection, getId));
+            AggregateDiff<T, ID> diff = createDiff(getCollection, getId);
+            results.put(DeltaType.NEW, diff.getNewEntities());
+            results.put(DeltaType.UPDATED, diff.getChangedEntities());
+            results.put(DeltaType.REMOVED, diff.getRemovedEntities());
         }
 
         return results;
     }
 
-    private <T, ID> List<T> getCollectionNewEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+    private <T, ID> AggregateDiff<T, ID> createDiff(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        if (isNew()) {
+            return AggregateDiff.ofNew(getCollection.apply(root));
+        }
+
+        AggregateMetrics metrics = AggregateFactory.getMetrics();
+        CollectionDiffEvent event = new CollectionDiffEvent();
+        if (metrics == null && !event.isEnabled()) {
+            return AggregateDiff.of(getCollection.apply(root), getCollection.apply(getRootSnapshot()), getId, this::isEntityChanged);
+        }
+
         Collection<T> currentEntities = getCollection.apply(root);
-        Collection<T> snapshotEntities = getCollection.apply(snapshot);
+        Collection<T> snapshotEntities = getCollection.apply(getRootSnapshot());
+        long start = System.nanoTime();
+        event.begin();
+        AggregateDiff<T, ID> diff = AggregateDiff.of(currentEntities, snapshotEntities, getId, this::isEntityChanged);
+        event.end();
+        int currentSize = AggregateDiff.nullToEmpty(currentEntities).size();
+        int snapshotSize = AggregateDiff.nullToEmpty(snapshotEntities).size();
+        if (metrics != null) {
+            metrics.record(AggregateMetricsEvent.ofDiff(root.getClass(), System.nanoTime() - start, currentSize + snapshotSize,
+                    diff.getNewEntities().size() + diff.getChangedEntities().size() + diff.getRemovedIds().size()));
+        }
+        if (event.shouldCommit()) {
+            event.aggregateType = root.getClass();
+            event.collection = getFieldName(currentEntities);
+            event.currentSize = currentSize;
+            event.snapshotSize = snapshotSize;
+            event.newCount = diff.getNewEntities().size();
+            event.changedCount = diff.getChangedEntities().size();
+            event.removedCount = diff.getRemovedIds().size();
+            event.commit();
+        }
+        return diff;
+    }
 
-        Set<ID> currentIds = getEntityIds(currentEntities, getId);
-        Set<ID> snapshotIds = getEntityIds(snapshotEntities, getId);
+    /**
+     * @return the name of the root field which holds the value, null if it's not found.
+     */
+    private String getFieldName(Object value) {
+        if (value != null) {
+            for (FieldAccessor field : DataObjectSchema.of(root.getClass()).getAccessors()) {
+                if (field.get(root) == value) {
+                    return field.getName();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy the snapshot, and record the metrics and the JFR event if they are enabled.
+     * @param reusableCopies the reusable copies, see {@link DeepCopier#copy(Object, Map)}, null if there is none.
+     */
+    static <R> R copy(R root, DeepCopier copier, Map<Object, Object> reusableCopies) {
+        AggregateMetrics metrics = AggregateFactory.getMetrics();
+        AggregateSnapshotEvent event = new AggregateSnapshotEvent();
+        if (metrics == null && !event.isEnabled()) {
+            return reusableCopies == null ? copier.copy(root) : copier.copy(root, reusableCopies);
+        }
 
-        currentIds.removeAll(snapshotIds);
-        List<T> newEntities = currentEntities.stream().filter(i -> currentIds.contains(getId.apply(i))).collect(Collectors.toList());
-        return newEntities;
+        long start = System.nanoTime();
+        event.begin();
+        R result = reusableCopies == null ? copier.copy(root) : copier.copy(root, reusableCopies);
+        event.end();
+        recordCopy(metrics, event, root.getClass(), copier, System.nanoTime() - start, () -> SIZE_ESTIMATOR.estimate(result));
+        return result;
     }
 
-    private <T, ID> Set<ID> getEntityIds(Collection<T> entity, Function<T, ID> getId) {
-        return entity.stream().map(item -> getId.apply(item)).collect(Collectors.toSet());
+    /**
+     * Record the metrics and the JFR event of a copy. The copied bytes are only computed if they are recorded, and
+     * the copy is not referenced by the recorded event.
+     * @param event the JFR event, which has been ended.
+     * @param copier the copier or serializer which creates the copy
+     * @param copiedBytes computes the bytes of the copy
+     */
+    static void recordCopy(AggregateMetrics metrics, AggregateSnapshotEvent event, Class<?> aggregateType, Object copier,
+                           long durationNanos, LongSupplier copiedBytes) {
+        long bytes = -1;
+        if (metrics != null) {
+            bytes = copiedBytes.getAsLong();
+            metrics.record(AggregateMetricsEvent.ofCopy(aggregateType, durationNanos, bytes));
+        }
+        if (event.shouldCommit()) {
+            event.aggregateType = aggregateType;
+            event.copier = copier.getClass().getName();
+            event.graphSize = bytes < 0 ? copiedBytes.getAsLong() : bytes;
+            event.commit();
+        }
+    }
+
+    private <T, ID> List<T> getCollectionNewEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        Collection<T> currentEntities = getCollection.apply(root);
+        Collection<T> snapshotEntities = getCollection.apply(getRootSnapshot());
+
+        Set<ID> snapshotIds = getEntityIds(snapshotEntities, getId);
+
+        return currentEntities.stream().filter(i -> !snapshotIds.contains(getId.apply(i))).collect(Collectors.toList());
     }
 
-    private <T, ID> T getEntity(Collection<T> entities, ID id, Function<T, ID> getId) {
-        for (T entity : entities) {
-            if (id != null && id.equals(getId.apply(entity))) {
-                return entity;
+    private <T, ID> List<ChangedEntity<T>> getChangedEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        Collection<T> newEntities = getCollection.apply(root);
+        Map<ID, T> oldEntityMap = AggregateDiff.indexById(getCollection.apply(getRootSnapshot()), getId);
+
+        Set<ID> comparedIds = new HashSet<>();
+        List<ChangedEntity<T>> results = new ArrayList<>();
+        for (T newEntity : newEntities) {
+            ID id = getId.apply(newEntity);
+            T oldEntity = oldEntityMap.get(id);
+            if (oldEntity != null && comparedIds.add(id) && isEntityChanged(oldEntity, newEntity)) {
+                results.add(new ChangedEntity<>(oldEntity, newEntity));
             }
         }
 
-        throw new IllegalArgumentException(String.format("Internal error. Couldn't find entity with id: %s", id == null? "null" :id.toString()));
+        return results;
+    }
+
+    /**
+     * Whether the entity exists in both the root and the snapshot is changed.
+     * @param oldEntity the entity of the snapshot
+     * @param newEntity the entity of the root
+     * @param <T> The entity type
+     * @return true if it's changed. It's deep compared by default.
+     */
+    protected <T> boolean isEntityChanged(T oldEntity, T newEntity) {
+        return !deepComparator.isDeepEquals(oldEntity, newEntity);
+    }
+
+    private <T, ID> Set<ID> getEntityIds(Collection<T> entity, Function<T, ID> getId) {
+        return entity.stream().map(item -> getId.apply(item)).collect(Collectors.toSet());
     }
 
     public static enum DeltaType {
@@ -277,4 +512,16 @@ public class Aggregate<R extends Versionable> {
     public DeepComparator getDeepComparator() {
         return deepComparator;
     }
+
+    private final class CachedDiff {
+        private final Function<R, ? extends Collection<?>> getCollection;
+        private final Fingerprint fingerprint;
+        private final AggregateDiff<?, ?> diff;
+
+        CachedDiff(Function<R, ? extends Collection<?>> getCollection, Fingerprint fingerprint, AggregateDiff<?, ?> diff) {
+            this.getCollection = getCollection;
+            this.fingerprint = fingerprint;
+            this.diff = diff;
+        }
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A step of the {@link WritePlan}: an aggregate which is going to be inserted, updated or deleted,
+ * with the diffs of its entity collections.
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ */
+public class AggregateChange<R extends Versionable> {
+    private final Class<R> type;
+    private final Object id;
+    private final Aggregate<R> aggregate;
+    private final Aggregate.DeltaType deltaType;
+    private final Map<EntityCollection<R, ?, ?>, AggregateDiff<?, ?>> diffs;
+
+    AggregateChange(Class<R> type, Object id, Aggregate<R> aggregate, Aggregate.DeltaType deltaType,
+                    Map<EntityCollection<R, ?, ?>, AggregateDiff<?, ?>> diffs) {
+        this.type = type;
+        this.id = id;
+        this.aggregate = aggregate;
+        this.deltaType = deltaType;
+        this.diffs = Collections.unmodifiableMap(diffs);
+    }
+
+    public Class<R> getType() {
+        return type;
+    }
+
+    public Object getId() {
+        return id;
+    }
+
+    public Aggregate<R> getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * @return NEW to insert the aggregate, UPDATED to update it, REMOVED to delete it.
+     */
+    public Aggregate.DeltaType getDeltaType() {
+        return deltaType;
+    }
+
+    /**
+     * @return the diffs of the entity collections registered in the unit of work, in the registration order.
+     * All the entities are removed if the aggregate is removed.
+     */
+    public Map<EntityCollection<R, ?, ?>, AggregateDiff<?, ?>> getDiffs() {
+        return diffs;
+    }
+
+    /**
+     * @param collection the entity collection
+     * @param <T> The entity type
+     * @param <ID> The type of the entity id.
+     * @return the diff of the entity collection, null if it's not registered.
+     */
+    public <T, ID> AggregateDiff<T, ID> getDiff(EntityCollection<?, T, ID> collection) {
+        return (AggregateDiff<T, ID>) diffs.get(collection);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event of {@link Aggregate#isChanged()}.
+ *
+ * @author meixuesong
+ */
+@Name("com.github.meixuesong.aggregatepersistence.AggregateChangeCheck")
+@Label("Aggregate Change Check")
+@Description("The aggregate root is compared with the snapshot")
+@Category("Aggregate Persistence")
+@Enabled(false)
+final class AggregateChangeCheckEvent extends Event {
+    @Label("Aggregate Type")
+    Class<?> aggregateType;
+
+    @Label("Comparator")
+    String comparator;
+
+    @Label("Changed")
+    boolean changed;
+}
@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collection;
+import java.util.function.Supplier;
+
+/**
+ * The aggregate factory of a bounded context. Each context has its own immutable {@link AggregateFactoryConfig},
+ * so the contexts of an application can tune their own copiers and comparators. It's thread safe.
+ *
+ * {@link AggregateFactory} delegates to the default context.
+ *
+ * <pre><code class='java'>
+ AggregateContext orderContext = new AggregateContext(AggregateFactoryConfig.builder()
+         .copier(Order.class, new MethodHandleDeepCopier())
+         .build());
+ Aggregate&lt;Order&gt; aggregate = orderContext.createAggregate(order);
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+public class AggregateContext {
+    private final AggregateFactoryConfig config;
+    private final StructuralHasher hasher = new StructuralHasher();
+    private final SerializableDeepCopier serializer = new SerializableDeepCopier();
+
+    public AggregateContext(AggregateFactoryConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("The config should not be null.");
+        }
+        this.config = config;
+    }
+
+    public AggregateFactoryConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The factory method.
+     *
+     * @param root The aggregate root
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> Aggregate<R> createAggregate(R root) {
+        return new Aggregate<R>(root, config.getCopier(root.getClass()), config.getComparator(root.getClass()));
+    }
+
+    /**
+     * Create the read-only aggregate for queries, which keeps no snapshot, see {@link ReadOnlyAggregate}.
+     *
+     * @param root The aggregate root
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> ReadOnlyAggregate<R> createReadOnlyAggregate(R root) {
+        return createReadOnlyAggregate(root, false);
+    }
+
+    /**
+     * Create the read-only aggregate for queries, which keeps no snapshot, see {@link ReadOnlyAggregate}.
+     *
+     * @param root The aggregate root
+     * @param fingerprint true to keep the fingerprint of the root, so {@link ReadOnlyAggregate#assertUnmodified()} can detect changes.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> ReadOnlyAggregate<R> createReadOnlyAggregate(R root, boolean fingerprint) {
+        return new ReadOnlyAggregate<R>(root, fingerprint ? hasher : null, config.getComparator(root.getClass()));
+    }
+
+    /**
+     * Create the aggregate which keeps the snapshot as serialized bytes, see {@link SerializedAggregate}.
+     * The snapshot is deserialized only when it's required.
+     *
+     * @param root The aggregate root, it should be serializable.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> SerializedAggregate<R> createSerializedAggregate(R root) {
+        return new SerializedAggregate<R>(root, serializer, config.getComparator(root.getClass()));
+    }
+
+    /**
+     * Create the aggregate which recognizes changes by the write log of its root and entities, see {@link TrackedAggregate}.
+     *
+     * @param root The aggregate root, it should implement {@link ChangeTrackable}.
+     * @param collections The entity collections whose entities are tracked, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> TrackedAggregate<R> createTrackedAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections) {
+        return createTrackedAggregate(root, collections, false);
+    }
+
+    /**
+     * Create the aggregate which recognizes changes by the write log of its root and entities, see {@link TrackedAggregate}.
+     *
+     * @param root The aggregate root, it should implement {@link ChangeTrackable}.
+     * @param collections The entity collections whose entities are tracked, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param lazySnapshot true to copy the snapshot right before the first change, so the aggregates which are only read never copy.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> TrackedAggregate<R> createTrackedAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections,
+                                                                                     boolean lazySnapshot) {
+        return new TrackedAggregate<R>(root, collections, config.getCopier(root.getClass()), config.getComparator(root.getClass()), lazySnapshot);
+    }
+
+    /**
+     * Create the aggregate which keeps the serialized snapshot off heap, see {@link OffHeapSnapshotStore}.
+     * Close the aggregate to release the off heap memory when it's saved or discarded.
+     *
+     * @param root The aggregate root, it should be serializable.
+     * @param store The off heap store shared by the aggregates. The snapshot is kept in heap if the store is full.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> SerializedAggregate<R> createOffHeapAggregate(R root, OffHeapSnapshotStore store) {
+        return new SerializedAggregate<R>(root, serializer, store, config.getComparator(root.getClass()));
+    }
+
+    /**
+     * Create the aggregate which keeps the fingerprints instead of the snapshot, see {@link FingerprintAggregate}.
+     * The snapshot and old values are unavailable.
+     *
+     * @param root The aggregate root
+     * @param collections The entity collections which will be diffed, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> FingerprintAggregate<R> createFingerprintAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections) {
+        return createFingerprintAggregate(root, collections, null);
+    }
+
+    /**
+     * Create the aggregate which keeps the fingerprints instead of the snapshot, see {@link FingerprintAggregate}.
+     *
+     * @param root The aggregate root
+     * @param collections The entity collections which will be diffed, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param snapshotLoader The loader to rebuild the snapshot when the old values are required, e.g. reload the root from DB.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> FingerprintAggregate<R> createFingerprintAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections,
+                                                                                             Supplier<R> snapshotLoader) {
+        return new FingerprintAggregate<R>(root, collections, snapshotLoader, hasher, config.getComparator(root.getClass()));
+    }
+
+    /**
+     * Create the aggregate with a prepared snapshot, e.g. the snapshot cached by {@link SnapshotCache}.
+     */
+    <R extends Versionable> Aggregate<R> createAggregate(R root, R snapshot) {
+        return new Aggregate<R>(root, snapshot, config.getCopier(root.getClass()), config.getComparator(root.getClass()));
+    }
+}
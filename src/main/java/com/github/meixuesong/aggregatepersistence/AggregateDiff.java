@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * The delta of an entity collection, i.e. the new, changed and removed entities, computed in one pass.
+ *
+ * <pre><code class="java">
+ AggregateDiff&lt;OrderItem, Long&gt; diff = orderAggregate.diff(Order::getItems, OrderItem::getId);
+ diff.getRemovedEntities().forEach(item -&gt; orderItemMapper.deleteByPrimaryKey(item.getId()));
+ diff.getChangedEntitiesWithOldValues().forEach(pair -&gt; updateOrderItem(pair.getOldEntity(), pair.getNewEntity()));
+ diff.getNewEntities().forEach(item -&gt; orderItemMapper.insert(item));
+ * </code></pre>
+ *
+ * @author meixuesong
+ * @param <T> The entity type. e.g. OrderItem
+ * @param <ID> The type of the entity id.
+ */
+public class AggregateDiff<T, ID> {
+    private final List<T> newEntities;
+    private final List<ChangedEntity<T>> changedEntities;
+    private final List<T> removedEntities;
+    private final List<ID> removedIds;
+    private final boolean oldValuesAvailable;
+    private List<ChangedEntity<T>> unchangedEntities = Collections.emptyList();
+
+    AggregateDiff(List<T> newEntities, List<ChangedEntity<T>> changedEntities, List<T> removedEntities, List<ID> removedIds) {
+        this(newEntities, changedEntities, removedEntities, removedIds, true);
+    }
+
+    /**
+     * @param removedEntities null if the removed entities are unknown, e.g. in fingerprint mode without snapshot loader.
+     * @param oldValuesAvailable false if the old entities of changedEntities are unknown.
+     */
+    AggregateDiff(List<T> newEntities, List<ChangedEntity<T>> changedEntities, List<T> removedEntities, List<ID> removedIds,
+                  boolean oldValuesAvailable) {
+        this.newEntities = Collections.unmodifiableList(newEntities);
+        this.changedEntities = Collections.unmodifiableList(changedEntities);
+        this.removedEntities = removedEntities == null ? null : Collections.unmodifiableList(removedEntities);
+        this.removedIds = Collections.unmodifiableList(removedIds);
+        this.oldValuesAvailable = oldValuesAvailable;
+    }
+
+    /**
+     * The diff of a new aggregate, all the entities are new.
+     */
+    static <T, ID> AggregateDiff<T, ID> ofNew(Collection<T> currentEntities) {
+        return new AggregateDiff<>(new ArrayList<>(nullToEmpty(currentEntities)), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+    }
+
+    /**
+     * Compare the current entities with the snapshot entities. Each side is indexed by id only once,
+     * and every entity exists in both sides is compared only once.
+     * @param isChanged test whether the entity is changed, the arguments are the old and new entity.
+     */
+    static <T, ID> AggregateDiff<T, ID> of(Collection<T> currentEntities, Collection<T> snapshotEntities,
+                                           Function<T, ID> getId, BiPredicate<T, T> isChanged) {
+        Map<ID, T> snapshotIndex = indexById(nullToEmpty(snapshotEntities), getId);
+
+        List<T> newEntities = new ArrayList<>();
+        List<ChangedEntity<T>> changedEntities = new ArrayList<>();
+        List<ChangedEntity<T>> unchangedEntities = new ArrayList<>();
+        Set<ID> currentIds = new HashSet<>();
+        for (T entity : nullToEmpty(currentEntities)) {
+            ID id = getId.apply(entity);
+            boolean firstOccurrence = currentIds.add(id);
+
+            T oldEntity = snapshotIndex.get(id);
+            if (oldEntity == null && !snapshotIndex.containsKey(id)) {
+                newEntities.add(entity);
+            } else if (firstOccurrence) {
+                if (isChanged.test(oldEntity, entity)) {
+                    changedEntities.add(new ChangedEntity<>(oldEntity, entity));
+                } else {
+                    unchangedEntities.add(new ChangedEntity<>(oldEntity, entity));
+                }
+            }
+        }
+
+        List<T> removedEntities = new ArrayList<>();
+        List<ID> removedIds = new ArrayList<>();
+        for (T entity : nullToEmpty(snapshotEntities)) {
+            ID id = getId.apply(entity);
+            if (!currentIds.contains(id)) {
+                removedEntities.add(entity);
+                removedIds.add(id);
+            }
+        }
+
+        AggregateDiff<T, ID> diff = new AggregateDiff<>(newEntities, changedEntities, removedEntities, removedIds);
+        diff.unchangedEntities = unchangedEntities;
+        return diff;
+    }
+
+    /**
+     * Put the unchanged entities of the root into the map, with their snapshot values.
+     */
+    void collectUnchangedEntities(Map<Object, Object> entities) {
+        for (ChangedEntity<T> pair : unchangedEntities) {
+            if (pair.getNewEntity() != null && pair.getOldEntity() != null) {
+                entities.put(pair.getNewEntity(), pair.getOldEntity());
+            }
+        }
+    }
+
+    /**
+     * Index the entities by id. If several entities have the same id, the first one wins.
+     */
+    static <T, ID> Map<ID, T> indexById(Collection<T> entities, Function<T, ID> getId) {
+        Map<ID, T> index = new HashMap<>((int) (entities.size() / 0.75F) + 1);
+        for (T entity : entities) {
+            index.putIfAbsent(getId.apply(entity), entity);
+        }
+        return index;
+    }
+
+    static <T> Collection<T> nullToEmpty(Collection<T> entities) {
+        return entities == null ? Collections.emptyList() : entities;
+    }
+
+    /**
+     * @return the entities exist in the root but not in the snapshot, which are going to be inserted into the DB.
+     */
+    public List<T> getNewEntities() {
+        return newEntities;
+    }
+
+    /**
+     * @return the new values of the changed entities, which are going to be updated into the DB.
+     */
+    public List<T> getChangedEntities() {
+        List<T> results = new ArrayList<>(changedEntities.size());
+        for (ChangedEntity<T> changedEntity : changedEntities) {
+            results.add(changedEntity.getNewEntity());
+        }
+        return results;
+    }
+
+    /**
+     * @return the old and new values of the changed entities.
+     * @throws UnsupportedOperationException if the old values are unknown, e.g. in fingerprint mode without snapshot loader.
+     */
+    public List<ChangedEntity<T>> getChangedEntitiesWithOldValues() {
+        if (!oldValuesAvailable) {
+            throw new UnsupportedOperationException("The old values are not kept in fingerprint mode, please provide a snapshot loader.");
+        }
+        return changedEntities;
+    }
+
+    /**
+     * @return the entities exist in the snapshot but not in the root, which are going to be deleted from the DB.
+     * @throws UnsupportedOperationException if the removed entities are unknown, e.g. in fingerprint mode without snapshot loader.
+     * Use {@link #getRemovedIds()} instead.
+     */
+    public List<T> getRemovedEntities() {
+        if (removedEntities == null) {
+            throw new UnsupportedOperationException("The removed entities are not kept in fingerprint mode, please use getRemovedIds or provide a snapshot loader.");
+        }
+        return removedEntities;
+    }
+
+    /**
+     * @return the ids of the removed entities. It's always available.
+     */
+    public List<ID> getRemovedIds() {
+        return removedIds;
+    }
+
+    boolean isOldValuesAvailable() {
+        return oldValuesAvailable;
+    }
+
+    boolean isRemovedEntitiesAvailable() {
+        return removedEntities != null;
+    }
+
+    /**
+     * @return true if there is no new, changed or removed entity.
+     */
+    public boolean isEmpty() {
+        return newEntities.isEmpty() && changedEntities.isEmpty() && removedIds.isEmpty();
+    }
+}
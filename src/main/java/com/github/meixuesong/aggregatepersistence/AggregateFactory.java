@@ -13,9 +13,20 @@
 
 package com.github.meixuesong.aggregatepersistence;
 
+import java.util.Collection;
+import java.util.function.Supplier;
+
 /**
  * The aggregate factory will create the aggregate.
  *
+ * The static methods delegate to the default {@link AggregateContext}. The setters replace its configuration with
+ * a modified copy, so the aggregates which are being created are never affected. Use several AggregateContext
+ * instances if the bounded contexts of an application need different strategies.
+ *
+ * The roots which have generated models, see {@link CompiledModel}, are copied and compared by the generated code
+ * unless their classes have their own strategies, or the default copier or comparator is set explicitly, see
+ * {@link AggregateFactoryConfig}.
+ *
  * @author meixuesong
  */
 public class AggregateFactory {
@@ -23,7 +34,9 @@ public class AggregateFactory {
         throw new IllegalStateException("A factory class, please use static method");
     }
 
-    private static DeepCopier copier = new SerializableDeepCopier();
+    private static volatile AggregateContext defaultContext = new AggregateContext(AggregateFactoryConfig.builder().build());
+    private static volatile AggregateMetrics metrics;
+
     /**
      * The factory method.
      *
@@ -32,14 +45,151 @@ public class AggregateFactory {
      * @return the aggregate object
      */
     public static <R extends Versionable> Aggregate<R> createAggregate(R root) {
-        return new Aggregate<R>(root, copier, new JavaUtilDeepComparator());
+        return defaultContext.createAggregate(root);
+    }
+
+    /**
+     * Create the read-only aggregate for queries, which keeps no snapshot, see {@link ReadOnlyAggregate}.
+     *
+     * @param root The aggregate root
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> ReadOnlyAggregate<R> createReadOnlyAggregate(R root) {
+        return defaultContext.createReadOnlyAggregate(root);
+    }
+
+    /**
+     * Create the read-only aggregate for queries, which keeps no snapshot, see {@link ReadOnlyAggregate}.
+     *
+     * @param root The aggregate root
+     * @param fingerprint true to keep the fingerprint of the root, so {@link ReadOnlyAggregate#assertUnmodified()} can detect changes.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> ReadOnlyAggregate<R> createReadOnlyAggregate(R root, boolean fingerprint) {
+        return defaultContext.createReadOnlyAggregate(root, fingerprint);
+    }
+
+    /**
+     * Create the aggregate which keeps the snapshot as serialized bytes, see {@link SerializedAggregate}.
+     * The snapshot is deserialized only when it's required.
+     *
+     * @param root The aggregate root, it should be serializable.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> SerializedAggregate<R> createSerializedAggregate(R root) {
+        return defaultContext.createSerializedAggregate(root);
+    }
+
+    /**
+     * Create the aggregate which recognizes changes by the write log of its root and entities, see {@link TrackedAggregate}.
+     *
+     * @param root The aggregate root, it should implement {@link ChangeTrackable}.
+     * @param collections The entity collections whose entities are tracked, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> TrackedAggregate<R> createTrackedAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections) {
+        return defaultContext.createTrackedAggregate(root, collections);
+    }
+
+    /**
+     * Create the aggregate which recognizes changes by the write log of its root and entities, see {@link TrackedAggregate}.
+     *
+     * @param root The aggregate root, it should implement {@link ChangeTrackable}.
+     * @param collections The entity collections whose entities are tracked, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param lazySnapshot true to copy the snapshot right before the first change, so the aggregates which are only read never copy.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> TrackedAggregate<R> createTrackedAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections,
+                                                                                     boolean lazySnapshot) {
+        return defaultContext.createTrackedAggregate(root, collections, lazySnapshot);
+    }
+
+    /**
+     * Create the aggregate which keeps the serialized snapshot off heap, see {@link OffHeapSnapshotStore}.
+     * Close the aggregate to release the off heap memory when it's saved or discarded.
+     *
+     * @param root The aggregate root, it should be serializable.
+     * @param store The off heap store shared by the aggregates. The snapshot is kept in heap if the store is full.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> SerializedAggregate<R> createOffHeapAggregate(R root, OffHeapSnapshotStore store) {
+        return defaultContext.createOffHeapAggregate(root, store);
+    }
+
+    /**
+     * Create the aggregate which keeps the fingerprints instead of the snapshot, see {@link FingerprintAggregate}.
+     * The snapshot and old values are unavailable.
+     *
+     * @param root The aggregate root
+     * @param collections The entity collections which will be diffed, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> FingerprintAggregate<R> createFingerprintAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections) {
+        return defaultContext.createFingerprintAggregate(root, collections);
+    }
+
+    /**
+     * Create the aggregate which keeps the fingerprints instead of the snapshot, see {@link FingerprintAggregate}.
+     *
+     * @param root The aggregate root
+     * @param collections The entity collections which will be diffed, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param snapshotLoader The loader to rebuild the snapshot when the old values are required, e.g. reload the root from DB.
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public static <R extends Versionable> FingerprintAggregate<R> createFingerprintAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections,
+                                                                                             Supplier<R> snapshotLoader) {
+        return defaultContext.createFingerprintAggregate(root, collections, snapshotLoader);
+    }
+
+    static AggregateMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the default context which the static methods delegate to.
+     */
+    public static AggregateContext getDefaultContext() {
+        return defaultContext;
+    }
+
+    /**
+     * set the configuration of the default context.
+     * @param config the immutable configuration
+     */
+    public static synchronized void setConfig(AggregateFactoryConfig config) {
+        defaultContext = new AggregateContext(config);
+    }
+
+    /**
+     * set the default deep copier.
+     * @param copier the deepcopier object, null to restore the default.
+     */
+    public static synchronized void setCopier(DeepCopier copier) {
+        setConfig(defaultContext.getConfig().toBuilder().copier(copier).build());
+    }
+
+    /**
+     * set the default deep comparator, which will be shared by all the aggregates created afterwards.
+     * By default, each aggregate has its own JavaUtilDeepComparator.
+     * @param comparator the deep comparator object, it should be thread safe. null to restore the default.
+     */
+    public static synchronized void setComparator(DeepComparator comparator) {
+        setConfig(defaultContext.getConfig().toBuilder().comparator(comparator).build());
     }
 
     /**
-     * set deep copier.
-     * @param copier the deepcopier object
+     * set the metrics listener of the copies, comparisons and diffs of all the aggregates.
+     * @param metrics the listener, null to stop measuring.
      */
-    public static void setCopier(DeepCopier copier) {
-        AggregateFactory.copier = copier;
+    public static void setMetrics(AggregateMetrics metrics) {
+        AggregateFactory.metrics = metrics;
     }
 }
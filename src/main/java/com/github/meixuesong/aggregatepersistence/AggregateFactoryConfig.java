@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The immutable configuration of an {@link AggregateContext}: the default copier and comparator, and the strategies
+ * of the aggregate root classes which need a different performance profile, e.g. a fast copier for a hot aggregate
+ * and a safe one for the others.
+ *
+ * The strategy of a root class is looked up by the class, then its superclasses, then the default which is set
+ * explicitly, then its generated model (see {@link CompiledModel}), then the built-in defaults. So an explicit default,
+ * e.g. {@link AggregateFactory#setCopier(DeepCopier)}, always wins over the generated models. The result is cached
+ * per class. The configured comparators are
+ * shared by all the aggregates, so they should be thread safe. If there is no default comparator, each aggregate has
+ * its own {@link JavaUtilDeepComparator}, so the ignored equals classes added to the comparator of one aggregate
+ * don't affect the others.
+ *
+ * <pre><code class='java'>
+ AggregateFactoryConfig config = AggregateFactoryConfig.builder()
+         .copier(Order.class, new MethodHandleDeepCopier())
+         .comparator(Order.class, new MethodHandleDeepComparator())
+         .build();
+ AggregateContext orderContext = new AggregateContext(config);
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+public final class AggregateFactoryConfig {
+    private static final DeepCopier DEFAULT_COPIER = new SerializableDeepCopier();
+
+    private final DeepCopier copier;
+    private final DeepComparator comparator;
+    private final Map<Class<?>, DeepCopier> copiers;
+    private final Map<Class<?>, DeepComparator> comparators;
+    private final ClassValue<DeepCopier> copierCache = new ClassValue<DeepCopier>() {
+        @Override
+        protected DeepCopier computeValue(Class<?> type) {
+            DeepCopier result = find(copiers, type);
+            if (result == null) {
+                result = copier != null || GeneratedModels.find(type) == null ? getCopier() : GeneratedModels.COPIER;
+            }
+            return result;
+        }
+    };
+    private final ClassValue<Optional<DeepComparator>> comparatorCache = new ClassValue<Optional<DeepComparator>>() {
+        @Override
+        protected Optional<DeepComparator> computeValue(Class<?> type) {
+            DeepComparator result = find(comparators, type);
+            if (result == null) {
+                result = comparator != null || GeneratedModels.find(type) == null ? comparator : GeneratedModels.COMPARATOR;
+            }
+            return Optional.ofNullable(result);
+        }
+    };
+
+    private AggregateFactoryConfig(Builder builder) {
+        this.copier = builder.copier;
+        this.comparator = builder.comparator;
+        this.copiers = Collections.unmodifiableMap(new LinkedHashMap<>(builder.copiers));
+        this.comparators = Collections.unmodifiableMap(new LinkedHashMap<>(builder.comparators));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return a builder with the same settings, to build a modified configuration.
+     */
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        builder.copier = copier;
+        builder.comparator = comparator;
+        builder.copiers.putAll(copiers);
+        builder.comparators.putAll(comparators);
+        return builder;
+    }
+
+    /**
+     * @return the default copier, {@link SerializableDeepCopier} if there is no default copier.
+     */
+    public DeepCopier getCopier() {
+        return copier == null ? DEFAULT_COPIER : copier;
+    }
+
+    /**
+     * @return the default comparator, a new {@link JavaUtilDeepComparator} if there is no default comparator.
+     */
+    public DeepComparator getComparator() {
+        return comparator == null ? new JavaUtilDeepComparator() : comparator;
+    }
+
+    /**
+     * @param rootType the aggregate root class
+     * @return the copier of the aggregate root class
+     */
+    public DeepCopier getCopier(Class<?> rootType) {
+        return copierCache.get(rootType);
+    }
+
+    /**
+     * @param rootType the aggregate root class
+     * @return the comparator of the aggregate root class, a new {@link JavaUtilDeepComparator} if there is neither
+     * a strategy nor a default comparator.
+     */
+    public DeepComparator getComparator(Class<?> rootType) {
+        return comparatorCache.get(rootType).orElseGet(JavaUtilDeepComparator::new);
+    }
+
+    private static <S> S find(Map<Class<?>, S> strategies, Class<?> type) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            S strategy = strategies.get(current);
+            if (strategy != null) {
+                return strategy;
+            }
+        }
+
+        return null;
+    }
+
+    public static final class Builder {
+        private DeepCopier copier;
+        private DeepComparator comparator;
+        private final Map<Class<?>, DeepCopier> copiers = new LinkedHashMap<>();
+        private final Map<Class<?>, DeepComparator> comparators = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * @param copier the default copier, null to use {@link SerializableDeepCopier}.
+         */
+        public Builder copier(DeepCopier copier) {
+            this.copier = copier;
+            return this;
+        }
+
+        /**
+         * @param comparator the default comparator, it should be thread safe. null to create a
+         *                   {@link JavaUtilDeepComparator} per aggregate.
+         */
+        public Builder comparator(DeepComparator comparator) {
+            this.comparator = comparator;
+            return this;
+        }
+
+        /**
+         * @param rootType the aggregate root class, the subclasses use the same copier.
+         * @param copier the copier of the class, null to remove the strategy.
+         */
+        public Builder copier(Class<?> rootType, DeepCopier copier) {
+            put(copiers, rootType, copier);
+            return this;
+        }
+
+        /**
+         * @param rootType the aggregate root class, the subclasses use the same comparator.
+         * @param comparator the comparator of the class, it should be thread safe. null to remove the strategy.
+         */
+        public Builder comparator(Class<?> rootType, DeepComparator comparator) {
+            put(comparators, rootType, comparator);
+            return this;
+        }
+
+        public AggregateFactoryConfig build() {
+            return new AggregateFactoryConfig(this);
+        }
+
+        private static <S> void put(Map<Class<?>, S> strategies, Class<?> rootType, S strategy) {
+            if (rootType == null) {
+                throw new IllegalArgumentException("The aggregate root class should not be null.");
+            }
+
+            if (strategy == null) {
+                strategies.remove(rootType);
+            } else {
+                strategies.put(rootType, strategy);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Three-way merge of an aggregate after an optimistic lock conflict. The base is the snapshot of the aggregate,
+ * ours is the root of the aggregate, and theirs is the root freshly loaded from the DB. If ours and theirs changed
+ * different fields of the root, or different entities or fields of the registered entity collections, the changes
+ * are merged without reloading the aggregate and applying the command again.
+ *
+ * The fields are merged one by one: a field changed by one side takes the value of that side, a field changed by
+ * both sides to different values is a conflict. The entities are matched by id: the entities added or removed by one
+ * side are added or removed, unless the other side changed them. The other fields of the root and the entities,
+ * e.g. a value object or a collection which is not registered, are merged as a whole.
+ *
+ * <pre><code class='java'>
+ static final AggregateMerger&lt;Order&gt; MERGER = new AggregateMerger&lt;&gt;(Arrays.asList(ORDER_ITEMS));
+
+ try {
+     orderRepository.save(aggregate);
+ } catch (OptimisticLockException e) {
+     MergeResult&lt;Order&gt; result = MERGER.merge(aggregate, orderRepository.findById(id).getRoot());
+     if (!result.isMerged()) {
+         throw e;
+     }
+     orderRepository.save(result.getAggregate());
+ }
+ * </code></pre>
+ *
+ * The merged root is a copy of theirs with the changes of a copy of ours, and the snapshot of the merged aggregate is
+ * another copy of theirs, so the merged aggregate shares no objects with ours or theirs. They are copied and compared
+ * by the copier and comparator of the aggregate, or the copier of the default context if the aggregate has no copier,
+ * e.g. a {@link SerializedAggregate}. The getCollection function of an
+ * entity collection should return the collection field of the root, so the field is merged by entities.
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ */
+public class AggregateMerger<R extends Versionable> {
+    private static final ClassValue<List<FieldAccessor>> ACCESSORS = new ClassValue<List<FieldAccessor>>() {
+        @Override
+        protected List<FieldAccessor> computeValue(Class<?> type) {
+            try {
+                return FieldAccessor.of(type);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException(String.format("%s can't be merged: %s", type.getName(), e.getMessage()), e);
+            }
+        }
+    };
+
+    private final List<EntityCollection<R, ?, ?>> collections;
+
+    /**
+     * @param collections the entity collections merged by entities.
+     */
+    public AggregateMerger(Collection<? extends EntityCollection<R, ?, ?>> collections) {
+        this.collections = new ArrayList<>(collections);
+    }
+
+    /**
+     * @param aggregate the aggregate which failed to be saved, its snapshot is the base.
+     * @param theirs the root loaded from the DB, it's not modified.
+     * @return the merged aggregate or the conflicts.
+     */
+    public MergeResult<R> merge(Aggregate<R> aggregate, R theirs) {
+        R base = aggregate.getRootSnapshot();
+        DeepCopier copier = aggregate.copier == null
+                ? AggregateFactory.getDefaultContext().getConfig().getCopier(aggregate.getRoot().getClass()) : aggregate.copier;
+        R ours = copier.copy(aggregate.getRoot());
+        R merged = copier.copy(theirs);
+        Merging merging = new Merging(aggregate.deepComparator);
+
+        List<FieldAccessor> collectionFields = new ArrayList<>();
+        for (EntityCollection<R, ?, ?> collection : collections) {
+            merging.mergeCollection(collection, base, ours, merged);
+            FieldAccessor field = findField(ours, collection.getCollectionFunction().apply(ours));
+            if (field != null) {
+                collectionFields.add(field);
+            }
+        }
+
+        for (FieldAccessor field : ACCESSORS.get(ours.getClass())) {
+            if (!collectionFields.contains(field)) {
+                merging.mergeField(field, "", base, ours, merged);
+            }
+        }
+
+        return new MergeResult<>(new Aggregate<>(merged, copier.copy(theirs), copier, aggregate.deepComparator), merging.conflicts);
+    }
+
+    private static FieldAccessor findField(Object root, Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        for (FieldAccessor field : ACCESSORS.get(root.getClass())) {
+            if (field.get(root) == value) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static class Merging {
+        private final DeepComparator comparator;
+        private final List<String> conflicts = new ArrayList<>();
+
+        Merging(DeepComparator comparator) {
+            this.comparator = comparator;
+        }
+
+        /**
+         * Merge the field of ours into the target, which is a copy of theirs.
+         */
+        void mergeField(FieldAccessor field, String path, Object base, Object ours, Object target) {
+            Object baseValue = field.get(base);
+            Object ourValue = field.get(ours);
+            if (comparator.isDeepEquals(ourValue, baseValue)) {
+                return;
+            }
+
+            Object theirValue = field.get(target);
+            if (comparator.isDeepEquals(theirValue, baseValue) || comparator.isDeepEquals(theirValue, ourValue)) {
+                field.set(target, ourValue);
+            } else {
+                conflicts.add(path + field.getName());
+            }
+        }
+
+        <P, T, ID> void mergeCollection(EntityCollection<P, T, ID> collection, P base, P ours, P merged) {
+            Collection<T> target = collection.getCollectionFunction().apply(merged);
+            Map<ID, T> baseEntities = AggregateDiff.indexById(AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(base)), collection.getIdFunction());
+            Map<ID, T> ourEntities = AggregateDiff.indexById(AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(ours)), collection.getIdFunction());
+            Map<ID, T> theirEntities = new LinkedHashMap<>(AggregateDiff.indexById(AggregateDiff.nullToEmpty(target), collection.getIdFunction()));
+            String name = findFieldName(ours, collection.getCollectionFunction().apply(ours));
+            int conflictCount = conflicts.size();
+
+            for (Map.Entry<ID, T> entry : baseEntities.entrySet()) {
+                ID id = entry.getKey();
+                T baseEntity = entry.getValue();
+                T ourEntity = ourEntities.get(id);
+                T theirEntity = theirEntities.get(id);
+                String path = String.format("%s[%s]", name, id);
+                if (ourEntity == null && theirEntity != null) {
+                    if (comparator.isDeepEquals(theirEntity, baseEntity)) {
+                        theirEntities.remove(id);
+                    } else {
+                        conflicts.add(path);
+                    }
+                } else if (ourEntity != null && theirEntity == null) {
+                    if (!comparator.isDeepEquals(ourEntity, baseEntity)) {
+                        conflicts.add(path);
+                    }
+                } else if (ourEntity != null) {
+                    for (FieldAccessor field : ACCESSORS.get(ourEntity.getClass())) {
+                        mergeField(field, path + ".", baseEntity, ourEntity, theirEntity);
+                    }
+                }
+            }
+
+            for (Map.Entry<ID, T> entry : ourEntities.entrySet()) {
+                if (!baseEntities.containsKey(entry.getKey())) {
+                    T theirEntity = theirEntities.putIfAbsent(entry.getKey(), entry.getValue());
+                    if (theirEntity != null && !comparator.isDeepEquals(theirEntity, entry.getValue())) {
+                        conflicts.add(String.format("%s[%s]", name, entry.getKey()));
+                    }
+                }
+            }
+
+            if (conflicts.size() > conflictCount) {
+                return;
+            }
+            if (target == null) {
+                if (!theirEntities.isEmpty()) {
+                    conflicts.add(name);
+                }
+                return;
+            }
+            target.clear();
+            target.addAll(theirEntities.values());
+        }
+
+        private static String findFieldName(Object root, Object collection) {
+            FieldAccessor field = findField(root, collection);
+            return field == null ? "collection" : field.getName();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+/**
+ * The listener of the timings and counts of the aggregate operations, register it by
+ * {@link AggregateFactory#setMetrics(AggregateMetrics)}. Nothing is measured if no listener is registered.
+ *
+ * It's called in the thread of the operation, so it should be fast and thread safe, e.g. update a timer of
+ * the metrics library:
+ *
+ * <pre><code class='java'>
+ AggregateFactory.setMetrics(event -&gt; registry
+         .timer("aggregate." + event.getOperation().name().toLowerCase(), "type", event.getAggregateType().getSimpleName())
+         .record(event.getDurationNanos(), TimeUnit.NANOSECONDS));
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+public interface AggregateMetrics {
+    enum Operation {
+        /**
+         * The snapshot is copied from the root.
+         */
+        COPY,
+        /**
+         * The root is compared with the snapshot by {@link Aggregate#isChanged()}.
+         */
+        COMPARE,
+        /**
+         * The entities of a collection are compared with the snapshot, see {@link Aggregate#diff(EntityCollection)}.
+         */
+        DIFF
+    }
+
+    /**
+     * @param event the operation which is done
+     */
+    void record(AggregateMetricsEvent event);
+}
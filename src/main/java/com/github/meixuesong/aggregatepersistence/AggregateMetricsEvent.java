@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+/**
+ * The timing and counts of an aggregate operation, see {@link AggregateMetrics}.
+ *
+ * @author meixuesong
+ */
+public final class AggregateMetricsEvent {
+    private final AggregateMetrics.Operation operation;
+    private final Class<?> aggregateType;
+    private final long durationNanos;
+    private final int comparedEntities;
+    private final int changedEntities;
+    private final long copiedBytes;
+
+    private AggregateMetricsEvent(AggregateMetrics.Operation operation, Class<?> aggregateType, long durationNanos,
+                                  int comparedEntities, int changedEntities, long copiedBytes) {
+        this.operation = operation;
+        this.aggregateType = aggregateType;
+        this.durationNanos = durationNanos;
+        this.comparedEntities = comparedEntities;
+        this.changedEntities = changedEntities;
+        this.copiedBytes = copiedBytes;
+    }
+
+    static AggregateMetricsEvent ofCopy(Class<?> aggregateType, long durationNanos, long copiedBytes) {
+        return new AggregateMetricsEvent(AggregateMetrics.Operation.COPY, aggregateType, durationNanos, 0, 0, copiedBytes);
+    }
+
+    static AggregateMetricsEvent ofCompare(Class<?> aggregateType, long durationNanos, boolean changed) {
+        return new AggregateMetricsEvent(AggregateMetrics.Operation.COMPARE, aggregateType, durationNanos, 1, changed ? 1 : 0, 0);
+    }
+
+    static AggregateMetricsEvent ofDiff(Class<?> aggregateType, long durationNanos, int comparedEntities, int changedEntities) {
+        return new AggregateMetricsEvent(AggregateMetrics.Operation.DIFF, aggregateType, durationNanos, comparedEntities, changedEntities, 0);
+    }
+
+    public AggregateMetrics.Operation getOperation() {
+        return operation;
+    }
+
+    public Class<?> getAggregateType() {
+        return aggregateType;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    /**
+     * @return the number of the entities in the current and snapshot collections of a DIFF, 1 (the root) of
+     * a COMPARE, 0 of a COPY.
+     */
+    public int getComparedEntities() {
+        return comparedEntities;
+    }
+
+    /**
+     * @return the number of the new, changed and removed entities of a DIFF, 1 if the root is changed of a COMPARE,
+     * 0 of a COPY.
+     */
+    public int getChangedEntities() {
+        return changedEntities;
+    }
+
+    /**
+     * The bytes are estimated by walking the copy when the event is created, i.e. only if a listener is registered.
+     * @return the estimated bytes of the copy of a COPY, or the length of the serialized snapshot of
+     * {@link SerializedAggregate}, 0 of the others.
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+}
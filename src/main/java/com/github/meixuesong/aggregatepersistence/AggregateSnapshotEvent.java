@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event of copying the snapshot, when the aggregate is created or committed.
+ *
+ * @author meixuesong
+ */
+@Name("com.github.meixuesong.aggregatepersistence.AggregateSnapshot")
+@Label("Aggregate Snapshot")
+@Description("The snapshot of the aggregate root is copied")
+@Category("Aggregate Persistence")
+@Enabled(false)
+final class AggregateSnapshotEvent extends Event {
+    @Label("Aggregate Type")
+    Class<?> aggregateType;
+
+    @Label("Copier")
+    String copier;
+
+    @Label("Graph Size")
+    @Description("The estimated size of the snapshot")
+    @DataAmount
+    long graphSize;
+}
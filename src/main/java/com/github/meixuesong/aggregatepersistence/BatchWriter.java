@@ -0,0 +1,27 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+/**
+ * The SPI of {@link FlushPlanner}, which writes a batch of entities into the DB, e.g. by JDBC batching.
+ *
+ * @author meixuesong
+ */
+public interface BatchWriter {
+    /**
+     * Insert, update or delete the entities of the batch, see {@link WriteBatch#getDeltaType()}.
+     * @param batch the entities of the same type, and the same changed fields if it's an update batch.
+     */
+    void write(WriteBatch<?> batch);
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+/**
+ * The root or entity which reports its own changes to the {@link ChangeTracker} of the aggregate, so
+ * {@link TrackedAggregate} can recognize the changes without walking the object graph.
+ * Extend {@link AbstractChangeTrackable} for convenience.
+ *
+ * The tracker should be kept in a transient field, so it's not a part of the snapshot.
+ *
+ * @author meixuesong
+ */
+public interface ChangeTrackable {
+    /**
+     * @return the tracker attached by the aggregate, null if it's not tracked.
+     */
+    ChangeTracker getChangeTracker();
+
+    /**
+     * Attach the tracker. It's called by the aggregate when the aggregate is created.
+     * @param changeTracker the tracker of the aggregate
+     */
+    void setChangeTracker(ChangeTracker changeTracker);
+}
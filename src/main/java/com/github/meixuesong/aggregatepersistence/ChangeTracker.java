@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * The write log of a tracked aggregate. The root and the entities call {@link #markChanged(Object)} before their
+ * fields are written, so the aggregate knows whether it changed and which entities changed without comparing them.
+ *
+ * It's not thread safe, same as the aggregate.
+ *
+ * @author meixuesong
+ * @see ChangeTrackable
+ * @see TrackedAggregate
+ */
+public final class ChangeTracker {
+    private final Set<Object> changedObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+    private Runnable beforeFirstChange;
+
+    ChangeTracker() {
+    }
+
+    /**
+     * Record that the object is going to be changed. Call it before the field is written.
+     * @param target the root or the entity which is going to be changed.
+     */
+    public void markChanged(Object target) {
+        if (beforeFirstChange != null) {
+            Runnable action = beforeFirstChange;
+            beforeFirstChange = null;
+            action.run();
+        }
+        changedObjects.add(target);
+    }
+
+    /**
+     * @param action the action which runs once before the first change is recorded, e.g. take the snapshot.
+     */
+    void setBeforeFirstChange(Runnable action) {
+        this.beforeFirstChange = action;
+    }
+
+    /**
+     * @return true if any tracked object has been changed.
+     */
+    public boolean isChanged() {
+        return !changedObjects.isEmpty();
+    }
+
+    /**
+     * @param target the root or the entity
+     * @return true if the object has been changed.
+     */
+    public boolean isChanged(Object target) {
+        return changedObjects.contains(target);
+    }
+
+    void reset() {
+        changedObjects.clear();
+    }
+}
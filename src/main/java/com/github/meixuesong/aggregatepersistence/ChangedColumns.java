@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changed fields of a data object as a bitmask, one bit per field of the data object class. It's compact and
+ * cheap to compare, so it can be used as the key of the statement cache, see {@link PartialUpdateBuilder}.
+ *
+ * <pre><code class="java">
+ ChangedColumns columns = DataObjectUtils.getChangedColumns(oldPerson, person);
+ if (!columns.isEmpty()) {
+     jdbcTemplate.update(updateBuilder.getSql(columns), ...);
+ }
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+public final class ChangedColumns {
+    private final DataObjectSchema<?> schema;
+    private final long[] words;
+
+    private ChangedColumns(DataObjectSchema<?> schema, long[] words) {
+        this.schema = schema;
+        this.words = words;
+    }
+
+    static ChangedColumns none(DataObjectSchema<?> schema) {
+        return new ChangedColumns(schema, new long[(schema.size() + 63) >>> 6]);
+    }
+
+    /**
+     * @param dataObjectClass the data object class
+     * @param fieldNames the changed field names
+     * @return the changed columns of the fields
+     * @throws IllegalArgumentException if the class has no such field.
+     */
+    public static ChangedColumns of(Class<?> dataObjectClass, String... fieldNames) {
+        DataObjectSchema<?> schema = DataObjectSchema.of(dataObjectClass);
+        ChangedColumns columns = none(schema);
+        for (String fieldName : fieldNames) {
+            columns.set(indexOf(schema, fieldName));
+        }
+        return columns;
+    }
+
+    /**
+     * Mark the column of the field as changed, the shadowed fields are the same column as the fields of the same name.
+     */
+    void set(int index) {
+        int column = schema.columnIndexOf(index);
+        words[column >>> 6] |= 1L << column;
+    }
+
+    boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public Class<?> getDataObjectClass() {
+        return schema.getType();
+    }
+
+    /**
+     * @param fieldName the field name
+     * @return true if the field is changed.
+     * @throws IllegalArgumentException if the class has no such field.
+     */
+    public boolean contains(String fieldName) {
+        return get(indexOf(schema, fieldName));
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of the changed fields.
+     */
+    public int size() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * @return the changed field names, in the order of the fields of the data object class.
+     */
+    public List<String> getFieldNames() {
+        List<String> results = new ArrayList<>(size());
+        for (int i = 0; i < schema.size(); i++) {
+            if (get(i)) {
+                results.add(schema.getFieldNames().get(i));
+            }
+        }
+        return Collections.unmodifiableList(results);
+    }
+
+    /**
+     * @param fieldNames the field names to remove, e.g. the id and version fields.
+     * @return the changed columns without the fields.
+     * @throws IllegalArgumentException if the class has no such field.
+     */
+    public ChangedColumns without(String... fieldNames) {
+        ChangedColumns result = new ChangedColumns(schema, words.clone());
+        for (String fieldName : fieldNames) {
+            int index = indexOf(schema, fieldName);
+            result.words[index >>> 6] &= ~(1L << index);
+        }
+        return result;
+    }
+
+    /**
+     * @return the bitmask, bit i of word i / 64 is set if the column of field i is changed.
+     */
+    public long[] toLongArray() {
+        return words.clone();
+    }
+
+    private static int indexOf(DataObjectSchema<?> schema, String fieldName) {
+        int index = schema.indexOf(fieldName);
+        if (index < 0) {
+            throw new IllegalArgumentException(String.format("There is no field %s in %s.", fieldName, schema.getType().getName()));
+        }
+        return index;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ChangedColumns that = (ChangedColumns) o;
+        return schema == that.schema && Arrays.equals(words, that.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * schema.getType().hashCode() + Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return schema.getType().getSimpleName() + getFieldNames();
+    }
+}
@@ -22,4 +22,25 @@ public class ChangedEntity<T> {
     public T getNewEntity() {
         return newEntity;
     }
+
+    /**
+     * @return true if the entity implements {@link Versionable}, so it has its own version.
+     */
+    public boolean isVersioned() {
+        return (oldEntity != null ? oldEntity : newEntity) instanceof Versionable;
+    }
+
+    /**
+     * The version loaded from the DB, which is used to check the conflict of the entity, e.g.
+     * update order_item set amount = ?, version = version + 1 where id = ? and version = ?
+     * @return the version of the old entity, or the new entity if the old one is unknown.
+     * @throws IllegalStateException if the entity is not versioned.
+     */
+    public int getExpectedVersion() {
+        T entity = oldEntity != null ? oldEntity : newEntity;
+        if (!(entity instanceof Versionable)) {
+            throw new IllegalStateException(String.format("The entity %s is not versioned.", entity == null ? null : entity.getClass().getName()));
+        }
+        return ((Versionable) entity).getVersion();
+    }
 }
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an aggregate root or entity whose copier, comparator and delta code are generated at compile time by the
+ * aggregate-persistence-processor module, see {@link GeneratedModel}. The generated models are registered as services
+ * and picked up by {@link AggregateFactory} and {@link DataObjectUtils} automatically.
+ *
+ * The class should be concrete with a non-private no-arg constructor. Its fields, including the inherited ones, should
+ * be non-private or have a getter and a setter, static and transient fields are skipped.
+ *
+ * <pre><code class='java'>
+ &#64;CompiledModel
+ public class Order implements Versionable {
+     private String id;
+     private List&lt;OrderItem&gt; items;
+     ...
+ }
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.TYPE)
+public @interface CompiledModel {
+}
@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The JFR event of comparing two data objects by {@link DataObjectUtils}.
+ *
+ * @author meixuesong
+ */
+@Name("com.github.meixuesong.aggregatepersistence.DataObjectDelta")
+@Label("Data Object Delta")
+@Description("Two data objects are compared field by field")
+@Category("Aggregate Persistence")
+@Enabled(false)
+final class DataObjectDeltaEvent extends Event {
+    @Label("Data Object Type")
+    Class<?> dataObjectType;
+
+    @Label("Method")
+    String method;
+
+    @Label("Fields")
+    int fieldCount;
+
+    @Label("Changed Fields")
+    int changedCount;
+}
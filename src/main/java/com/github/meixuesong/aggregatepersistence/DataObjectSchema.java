@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compiled metadata of a data object class which is compared by {@link DataObjectUtils}. It's created once per
+ * class, with the field accessors, the ignore masks of the ignored field names and the constructor handle, so
+ * comparing two data objects is a plain loop without reflective lookups.
+ *
+ * The field order is fixed when the schema is created, so a field can be identified by its index,
+ * see {@link ChangedColumns}. The fields of the same name, i.e. a field and the superclass fields it shadows, are one
+ * column, which is identified by the index of the first of them.
+ *
+ * @author meixuesong
+ * @param <T> The data object type
+ */
+final class DataObjectSchema<T> {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final int MAX_IGNORE_MASKS = 256;
+    private static final ClassValue<DataObjectSchema<?>> SCHEMAS = new ClassValue<DataObjectSchema<?>>() {
+        @Override
+        protected DataObjectSchema<?> computeValue(Class<?> type) {
+            return new DataObjectSchema<>(type);
+        }
+    };
+
+    private final Class<T> type;
+    private final List<FieldAccessor> accessors;
+    private final List<String> fieldNames;
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private final int[] columnIndexes;
+    private final boolean[] noIgnoredFields;
+    private final Map<List<String>, boolean[]> ignoreMasks = new ConcurrentHashMap<>();
+    private final MethodHandle constructor;
+
+    private DataObjectSchema(Class<T> type) {
+        this.type = type;
+        try {
+            this.accessors = FieldAccessor.of(type);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(String.format("%s is not accessible", type.getName()), e);
+        }
+        List<String> names = new ArrayList<>();
+        for (FieldAccessor accessor : accessors) {
+            indexes.putIfAbsent(accessor.getName(), names.size());
+            names.add(accessor.getName());
+        }
+        this.fieldNames = Collections.unmodifiableList(names);
+        this.noIgnoredFields = new boolean[names.size()];
+        this.columnIndexes = new int[names.size()];
+        for (int i = 0; i < names.size(); i++) {
+            columnIndexes[i] = indexes.get(names.get(i));
+        }
+        this.constructor = findConstructor(type);
+    }
+
+    private static MethodHandle findConstructor(Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return LOOKUP.unreflectConstructor(constructor).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    static <T> DataObjectSchema<T> of(Class<T> type) {
+        return (DataObjectSchema<T>) SCHEMAS.get(type);
+    }
+
+    Class<T> getType() {
+        return type;
+    }
+
+    List<FieldAccessor> getAccessors() {
+        return accessors;
+    }
+
+    List<String> getFieldNames() {
+        return fieldNames;
+    }
+
+    int size() {
+        return accessors.size();
+    }
+
+    /**
+     * @return the index of the field, -1 if there is no such field.
+     */
+    int indexOf(String fieldName) {
+        Integer index = indexes.get(fieldName);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the index of the first field of the same name, which identifies the column of the field.
+     */
+    int columnIndexOf(int index) {
+        return columnIndexes[index];
+    }
+
+    /**
+     * The masks are cached by the field names, the unknown names are skipped. Only a limited number of masks are
+     * cached, in case the ignored field names are built dynamically.
+     * @param ignoredFields the ignored field names
+     * @return the mask, element i is true if the field i is ignored.
+     */
+    boolean[] getIgnoreMask(String... ignoredFields) {
+        if (ignoredFields.length == 0) {
+            return noIgnoredFields;
+        }
+
+        boolean[] mask = ignoreMasks.get(Arrays.asList(ignoredFields));
+        if (mask == null) {
+            mask = new boolean[size()];
+            for (String fieldName : ignoredFields) {
+                for (int i = 0; i < fieldNames.size(); i++) {
+                    if (fieldNames.get(i).equals(fieldName)) {
+                        mask[i] = true;
+                    }
+                }
+            }
+            if (ignoreMasks.size() < MAX_IGNORE_MASKS) {
+                ignoreMasks.put(new ArrayList<>(Arrays.asList(ignoredFields)), mask);
+            }
+        }
+
+        return mask;
+    }
+
+    /**
+     * @return a new instance created by the no-arg constructor.
+     * @throws IllegalStateException if there is no accessible no-arg constructor.
+     */
+    T newInstance() {
+        if (constructor == null) {
+            throw new IllegalStateException(String.format("%s has no accessible no-arg constructor.", type.getName()));
+        }
+
+        try {
+            return (T) (Object) constructor.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed to create %s", type.getName()), e);
+        }
+    }
+}
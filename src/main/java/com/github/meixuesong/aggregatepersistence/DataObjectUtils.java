@@ -14,10 +14,9 @@
 package com.github.meixuesong.aggregatepersistence;
 
 import com.cedarsoftware.util.DeepEquals;
-import com.cedarsoftware.util.ReflectionUtils;
 
-import java.lang.reflect.Field;
 import java.util.*;
+import java.util.stream.IntStream;
 
 /**
  * The data object utiles. Data object are persistence object, which is used to persistent to DB
@@ -33,13 +32,16 @@ import java.util.*;
  *     }
  * </code></pre>
  *
+ * getDelta and getChangedFields use the generated code of the data objects marked by {@link CompiledModel}
+ * if no field is ignored.
+ *
  * @author meixuesong
  */
 public class DataObjectUtils {
-    // add empty settings, let DeepEquals.deepEquals() ignore equals method
-    private static final Map<String, Object> options = new HashMap<String, Object>() {{
-        put(DeepEquals.IGNORE_CUSTOM_EQUALS, new HashSet<>());
-    }};
+    /**
+     * The batch methods compare the objects in the fork/join common pool if the batch is not smaller than it.
+     */
+    public static final int PARALLEL_THRESHOLD = 1024;
 
     private DataObjectUtils() {
         throw new IllegalStateException("Utility class");
@@ -65,25 +67,32 @@ public class DataObjectUtils {
      * @return the delta object which unchanged field is null and the changed field will have the value of current object
      */
     public static <T> T getDelta(T old, T current, String... ignoredFields) {
-        T result = createInstance(current.getClass());
+        GeneratedModel<T> model = ignoredFields.length == 0 ? modelOf(current) : null;
+        if (model != null) {
+            return model.getDelta(old, current);
+        }
 
-        Set<String> ignoreFieldSet = new HashSet<>(Arrays.asList(ignoredFields));
-        Collection<Field> fields = ReflectionUtils.getDeepDeclaredFields(current.getClass());
-        for (Field field : fields) {
-            if (ignoreFieldSet.contains(field.getName())) {
-                continue;
-            }
+        return compare(old, current, (o, c, options) -> getDelta(o, c, options, ignoredFields));
+    }
 
-            try {
-                if (! DeepEquals.deepEquals(field.get(old), field.get(current), options)) {
-                    field.set(result, field.get(current));
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+    private static <T> T getDelta(T old, T current, Map<String, Object> options, String... ignoredFields) {
+        DataObjectDeltaEvent event = new DataObjectDeltaEvent();
+        event.begin();
+        DataObjectSchema<T> schema = schemaOf(current);
+        T result = schema.newInstance();
+
+        int changedCount = 0;
+        boolean[] ignored = schema.getIgnoreMask(ignoredFields);
+        List<FieldAccessor> accessors = schema.getAccessors();
+        for (int i = 0; i < accessors.size(); i++) {
+            FieldAccessor accessor = accessors.get(i);
+            if (!ignored[i] && !DeepEquals.deepEquals(accessor.get(old), accessor.get(current), options)) {
+                accessor.copy(result, current);
+                changedCount++;
             }
         }
 
-
+        commit(event, schema, "getDelta", changedCount);
         return result;
     }
 
@@ -96,34 +105,165 @@ public class DataObjectUtils {
      * @return set of changed field names
      */
     public static <T> Set<String> getChangedFields(T old, T current, String... ignoredFields) {
+        GeneratedModel<T> model = ignoredFields.length == 0 ? modelOf(current) : null;
+        if (model != null) {
+            return model.getChangedFields(old, current);
+        }
+
+        return compare(old, current, (o, c, options) -> getChangedFields(o, c, options, ignoredFields));
+    }
+
+    private static <T> Set<String> getChangedFields(T old, T current, Map<String, Object> options, String... ignoredFields) {
+        DataObjectDeltaEvent event = new DataObjectDeltaEvent();
+        event.begin();
         Set<String> results = new HashSet<>();
 
-        Set<String> ignoreFieldSet = new HashSet<>(Arrays.asList(ignoredFields));
-        Collection<Field> fields = ReflectionUtils.getDeepDeclaredFields(current.getClass());
-        for (Field field : fields) {
-            if (ignoreFieldSet.contains(field.getName())) {
-                continue;
+        DataObjectSchema<T> schema = schemaOf(current);
+        boolean[] ignored = schema.getIgnoreMask(ignoredFields);
+        List<FieldAccessor> accessors = schema.getAccessors();
+        for (int i = 0; i < accessors.size(); i++) {
+            FieldAccessor accessor = accessors.get(i);
+            if (!ignored[i] && !DeepEquals.deepEquals(accessor.get(old), accessor.get(current), options)) {
+                results.add(accessor.getName());
             }
+        }
+
+        commit(event, schema, "getChangedFields", results.size());
+        return results;
+    }
+
+    /**
+     * Get the changed fields as a bitmask, which is compact and can be used as a cache key,
+     * see {@link PartialUpdateBuilder}.
+     * @param old object
+     * @param current object
+     * @param ignoredFields the field names to be ignored
+     * @param <T> the type to be compare.
+     * @return the changed columns
+     */
+    public static <T> ChangedColumns getChangedColumns(T old, T current, String... ignoredFields) {
+        return compare(old, current, (o, c, options) -> getChangedColumns(o, c, options, ignoredFields));
+    }
+
+    private static <T> ChangedColumns getChangedColumns(T old, T current, Map<String, Object> options, String... ignoredFields) {
+        DataObjectDeltaEvent event = new DataObjectDeltaEvent();
+        event.begin();
+        DataObjectSchema<T> schema = schemaOf(current);
+        ChangedColumns results = ChangedColumns.none(schema);
+
+        boolean[] ignored = schema.getIgnoreMask(ignoredFields);
+        List<FieldAccessor> accessors = schema.getAccessors();
+        for (int i = 0; i < accessors.size(); i++) {
+            FieldAccessor accessor = accessors.get(i);
+            if (!ignored[i] && !DeepEquals.deepEquals(accessor.get(old), accessor.get(current), options)) {
+                results.set(i);
+            }
+        }
+
+        commit(event, schema, "getChangedColumns", results.size());
+        return results;
+    }
+
+    /**
+     * Get the deltas of the aligned old and current objects, e.g. the child rows of a batch aggregate.
+     * The objects are compared in parallel if there are at least {@link #PARALLEL_THRESHOLD} pairs.
+     * @param olds the old objects
+     * @param currents the current objects, the i-th current object is compared to the i-th old object.
+     * @param ignoredFields the field names to be ignored
+     * @param <T> the type to be compare.
+     * @return the delta objects in the same order, see {@link #getDelta(Object, Object, String...)}
+     * @throws IllegalArgumentException if the sizes of the lists are different.
+     */
+    public static <T> List<T> getDeltasInBatch(List<T> olds, List<T> currents, String... ignoredFields) {
+        return compareInBatch(olds, currents, (old, current, options) -> getDelta(old, current, options, ignoredFields));
+    }
+
+    /**
+     * Get the changed field names of the aligned old and current objects.
+     * The objects are compared in parallel if there are at least {@link #PARALLEL_THRESHOLD} pairs.
+     * @param olds the old objects
+     * @param currents the current objects, the i-th current object is compared to the i-th old object.
+     * @param ignoredFields the field names to be ignored
+     * @param <T> the type to be compare.
+     * @return the changed field names in the same order
+     * @throws IllegalArgumentException if the sizes of the lists are different.
+     */
+    public static <T> List<Set<String>> getChangedFieldsInBatch(List<T> olds, List<T> currents, String... ignoredFields) {
+        return compareInBatch(olds, currents, (old, current, options) -> getChangedFields(old, current, options, ignoredFields));
+    }
+
+    /**
+     * Get the changed columns of the aligned old and current objects.
+     * The objects are compared in parallel if there are at least {@link #PARALLEL_THRESHOLD} pairs.
+     * @param olds the old objects
+     * @param currents the current objects, the i-th current object is compared to the i-th old object.
+     * @param ignoredFields the field names to be ignored
+     * @param <T> the type to be compare.
+     * @return the changed columns in the same order
+     * @throws IllegalArgumentException if the sizes of the lists are different.
+     */
+    public static <T> List<ChangedColumns> getChangedColumnsInBatch(List<T> olds, List<T> currents, String... ignoredFields) {
+        return compareInBatch(olds, currents, (old, current, options) -> getChangedColumns(old, current, options, ignoredFields));
+    }
 
+    private static <T, V> List<V> compareInBatch(List<T> olds, List<T> currents, Comparison<T, V> comparison) {
+        if (olds.size() != currents.size()) {
+            throw new IllegalArgumentException(String.format("The sizes of the old (%d) and current (%d) objects are different.",
+                    olds.size(), currents.size()));
+        }
+
+        Object[] results = new Object[olds.size()];
+        if (results.length < PARALLEL_THRESHOLD) {
+            Map<String, Object> options = DeepEqualsOptions.acquire(DeepEqualsOptions.IGNORE_ALL_CUSTOM_EQUALS);
             try {
-                if (! DeepEquals.deepEquals(field.get(old), field.get(current), options)) {
-                    results.add(field.getName());
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = comparison.compare(olds.get(i), currents.get(i), options);
                 }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            } finally {
+                DeepEqualsOptions.release(options);
             }
+        } else {
+            List<T> oldList = olds instanceof RandomAccess ? olds : new ArrayList<>(olds);
+            List<T> currentList = currents instanceof RandomAccess ? currents : new ArrayList<>(currents);
+            // DeepEquals writes into the options, so every worker thread borrows its own options.
+            IntStream.range(0, results.length).parallel()
+                    .forEach(i -> results[i] = compare(oldList.get(i), currentList.get(i), comparison));
         }
 
-        return results;
+        return (List<V>) Collections.unmodifiableList(Arrays.asList(results));
     }
 
-    private static <T> T createInstance(Class<?> aClass) {
-        T result;
+    /**
+     * Compare with the options which ignore all the custom equals methods, borrowed from the per-thread pool.
+     */
+    private static <T, V> V compare(T old, T current, Comparison<T, V> comparison) {
+        Map<String, Object> options = DeepEqualsOptions.acquire(DeepEqualsOptions.IGNORE_ALL_CUSTOM_EQUALS);
         try {
-            result = (T) aClass.newInstance();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            return comparison.compare(old, current, options);
+        } finally {
+            DeepEqualsOptions.release(options);
         }
-        return result;
+    }
+
+    private interface Comparison<T, V> {
+        V compare(T old, T current, Map<String, Object> options);
+    }
+
+    private static void commit(DataObjectDeltaEvent event, DataObjectSchema<?> schema, String method, int changedCount) {
+        if (event.shouldCommit()) {
+            event.dataObjectType = schema.getType();
+            event.method = method;
+            event.fieldCount = schema.size();
+            event.changedCount = changedCount;
+            event.commit();
+        }
+    }
+
+    private static <T> GeneratedModel<T> modelOf(T object) {
+        return GeneratedModels.find((Class<T>) object.getClass());
+    }
+
+    private static <T> DataObjectSchema<T> schemaOf(T object) {
+        return DataObjectSchema.of((Class<T>) object.getClass());
     }
 }
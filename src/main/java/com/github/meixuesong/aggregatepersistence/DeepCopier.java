@@ -13,6 +13,8 @@
 
 package com.github.meixuesong.aggregatepersistence;
 
+import java.util.Map;
+
 /**
  * DeepCopier is used to deep copy object. Aggregate use it to create aggregate root snapshot.
  *
@@ -26,4 +28,16 @@ public interface DeepCopier {
      * @return the new instance copy from object
      */
     <T> T copy(T object);
+
+    /**
+     * deep copy object, and reuse the copies of the objects which have been copied.
+     * @param object the object to be copy
+     * @param reusableCopies the objects in the graph of object, mapped to their copies, which don't need to be copied
+     *                       again. The default implementation ignores it and copies the whole graph.
+     * @param <T> the type
+     * @return the new instance copy from object
+     */
+    default <T> T copy(T object, Map<Object, Object> reusableCopies) {
+        return copy(object);
+    }
 }
@@ -0,0 +1,75 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.cedarsoftware.util.DeepEquals;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The options of DeepEquals. The configuration is frozen into an immutable map which is shared across threads.
+ *
+ * DeepEquals writes the diff into the options map, so each comparison works on a mutable copy which is borrowed
+ * from a per-thread pool and cleared when it's returned. A pool rather than one map per thread, because a comparison
+ * may start another one on the same thread, e.g. a custom equals method which uses a comparator.
+ *
+ * @author meixuesong
+ */
+final class DeepEqualsOptions {
+    private static final int MAX_POOLED = 4;
+    private static final ThreadLocal<ArrayDeque<Map<String, Object>>> POOL = ThreadLocal.withInitial(ArrayDeque::new);
+
+    /**
+     * An empty IGNORE_CUSTOM_EQUALS set lets DeepEquals ignore all the custom equals methods.
+     */
+    static final Map<String, Object> IGNORE_ALL_CUSTOM_EQUALS = freeze(Collections.emptySet());
+
+    private DeepEqualsOptions() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param ignoreCustomEqualsClasses the classes whose equals methods are ignored, empty to ignore all.
+     * @return the immutable options
+     */
+    static Map<String, Object> freeze(Set<Class<?>> ignoreCustomEqualsClasses) {
+        Set<Class<?>> classes = Collections.unmodifiableSet(new HashSet<>(ignoreCustomEqualsClasses));
+        return Collections.singletonMap(DeepEquals.IGNORE_CUSTOM_EQUALS, classes);
+    }
+
+    /**
+     * Borrow a mutable copy of the frozen options, return it by {@link #release(Map)}.
+     */
+    static Map<String, Object> acquire(Map<String, Object> frozenOptions) {
+        Map<String, Object> options = POOL.get().pollFirst();
+        if (options == null) {
+            options = new HashMap<>();
+        }
+        options.putAll(frozenOptions);
+        return options;
+    }
+
+    static void release(Map<String, Object> options) {
+        options.clear();
+        ArrayDeque<Map<String, Object>> pool = POOL.get();
+        if (pool.size() < MAX_POOLED) {
+            pool.addFirst(options);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * The descriptor of an entity collection of the aggregate root, e.g. the items of an order.
+ * Define it once as a constant, and use it to find the delta of the collection.
+ *
+ * <pre><code class="java">
+ static final EntityCollection&lt;Order, OrderItem, Long&gt; ORDER_ITEMS = EntityCollection.of(Order::getItems, OrderItem::getId);
+
+ AggregateDiff&lt;OrderItem, Long&gt; diff = orderAggregate.diff(ORDER_ITEMS);
+ * </code></pre>
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ * @param <T> The entity type. e.g. OrderItem
+ * @param <ID> The type of the entity id.
+ */
+public final class EntityCollection<R, T, ID> {
+    private final Class<T> entityType;
+    private final Function<R, Collection<T>> getCollection;
+    private final Function<T, ID> getId;
+    private final String fieldName;
+
+    private EntityCollection(Class<T> entityType, Function<R, Collection<T>> getCollection, Function<T, ID> getId, String fieldName) {
+        this.entityType = entityType;
+        this.getCollection = Objects.requireNonNull(getCollection, "getCollection");
+        this.getId = Objects.requireNonNull(getId, "getId");
+        this.fieldName = fieldName;
+    }
+
+    /**
+     * @param getCollection The function of the aggregate root, used to get entity collection. e.g. Order:getItems
+     * @param getId The function of get ID. Entity are identified by ID.
+     * @param <R> The aggregate root type
+     * @param <T> The entity type
+     * @param <ID> The type of the entity id.
+     * @return the entity collection descriptor
+     */
+    public static <R, T, ID> EntityCollection<R, T, ID> of(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        return new EntityCollection<>(null, getCollection, getId, null);
+    }
+
+    /**
+     * Declare the entity type as well, it's required by {@link FlushPlanner} when only the ids of the removed
+     * entities are known, e.g. in fingerprint mode without snapshot loader.
+     * @param entityType The entity type. e.g. OrderItem.class
+     * @param getCollection The function of the aggregate root, used to get entity collection. e.g. Order:getItems
+     * @param getId The function of get ID. Entity are identified by ID.
+     * @param <R> The aggregate root type
+     * @param <T> The entity type
+     * @param <ID> The type of the entity id.
+     * @return the entity collection descriptor
+     */
+    public static <R, T, ID> EntityCollection<R, T, ID> of(Class<T> entityType, Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        return new EntityCollection<>(Objects.requireNonNull(entityType, "entityType"), getCollection, getId, null);
+    }
+
+    /**
+     * Declare the field of the aggregate root which holds the entities. {@link FlushPlanner} excludes the field from
+     * the changed fields of the root. It's required if getCollection doesn't return the field itself, e.g. it returns
+     * an unmodifiable view or a copy.
+     * @param fieldName the field name, e.g. "items"
+     * @return a new entity collection descriptor with the same functions
+     */
+    public EntityCollection<R, T, ID> withField(String fieldName) {
+        return new EntityCollection<>(entityType, getCollection, getId, Objects.requireNonNull(fieldName, "fieldName"));
+    }
+
+    /**
+     * @return the declared entity type, or null if it's not declared.
+     */
+    public Class<T> getEntityType() {
+        return entityType;
+    }
+
+    /**
+     * @return the declared field name, or null if it's not declared.
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public Function<R, Collection<T>> getCollectionFunction() {
+        return getCollection;
+    }
+
+    public Function<T, ID> getIdFunction() {
+        return getId;
+    }
+
+    boolean isDefinedBy(Function<?, ?> getCollection, Function<?, ?> getId) {
+        return this.getCollection == getCollection && this.getId == getId;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The method handle based accessor of an instance field. The handles are resolved once when the class is planned,
+ * so reading or writing the field is a plain method handle invocation without reflective access checks.
+ *
+ * @author meixuesong
+ */
+final class FieldAccessor {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Field field;
+    private final MethodHandle rawGetter;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle copier;
+
+    private FieldAccessor(Field field) throws IllegalAccessException {
+        this.field = field;
+        Class<?> type = field.getType();
+        this.rawGetter = LOOKUP.unreflectGetter(field);
+        MethodHandle rawSetter = LOOKUP.unreflectSetter(field);
+
+        this.getter = rawGetter.asType(MethodType.methodType(Object.class, Object.class));
+        this.setter = rawSetter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+
+        Class<?> valueType = type.isPrimitive() ? type : Object.class;
+        this.copier = MethodHandles.filterArguments(
+                rawSetter.asType(MethodType.methodType(void.class, Object.class, valueType)),
+                1,
+                rawGetter.asType(MethodType.methodType(valueType, Object.class)));
+    }
+
+    /**
+     * Resolve the accessors of all the instance fields of the class, including the fields declared by super classes.
+     * Static, transient and synthetic fields are not part of the object state, so they are skipped.
+     *
+     * @param clazz the class
+     * @return the field accessors
+     * @throws IllegalAccessException if any field of the class hierarchy is not accessible, e.g. a JDK internal field.
+     */
+    static List<FieldAccessor> of(Class<?> clazz) throws IllegalAccessException {
+        List<FieldAccessor> accessors = new ArrayList<>();
+        for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+
+                try {
+                    field.setAccessible(true);
+                } catch (RuntimeException e) {
+                    throw new IllegalAccessException(String.format("%s is not accessible: %s", field, e.getMessage()));
+                }
+                accessors.add(new FieldAccessor(field));
+            }
+        }
+
+        return Collections.unmodifiableList(accessors);
+    }
+
+    Field getField() {
+        return field;
+    }
+
+    String getName() {
+        return field.getName();
+    }
+
+    Class<?> getType() {
+        return field.getType();
+    }
+
+    boolean isPrimitive() {
+        return field.getType().isPrimitive();
+    }
+
+    /**
+     * The getter which returns the field value as the given type, e.g. long for an int field, so primitive
+     * values can be read without boxing.
+     * @param valueType the return type of the getter
+     * @return the getter method handle, its type is (Object)valueType
+     */
+    MethodHandle getter(Class<?> valueType) {
+        return rawGetter.asType(MethodType.methodType(valueType, Object.class));
+    }
+
+    Object get(Object target) {
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed to read %s", field), e);
+        }
+    }
+
+    void set(Object target, Object value) {
+        try {
+            setter.invokeExact(target, value);
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed to write %s", field), e);
+        }
+    }
+
+    /**
+     * Copy the field value from source to target as is. Primitive values are copied without boxing.
+     * @param target the object to write
+     * @param source the object to read
+     */
+    void copy(Object target, Object source) {
+        try {
+            copier.invokeExact(target, source);
+        } catch (Throwable e) {
+            throw new IllegalStateException(String.format("Failed to copy %s", field), e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The aggregate which keeps the fingerprints of the root instead of the snapshot. A fingerprint is a 128 bits
+ * structural hash, so the memory cost of an aggregate is about 50 bytes per entity rather than a full copy of the root.
+ * It's designed for batch jobs which load lots of aggregates.
+ *
+ * The entity collections have to be registered when the aggregate is created, each entity of them is fingerprinted
+ * and keyed by its id. isChanged and the diff of the registered collections work on the fingerprints.
+ *
+ * The old values, e.g. {@link #getRootSnapshot()}, the removed entities and the old values of the changed entities,
+ * are not kept. They are rebuilt by the snapshot loader if it's provided, otherwise an UnsupportedOperationException
+ * will be thrown. The removed entity ids are always available by {@link AggregateDiff#getRemovedIds()}.
+ *
+ * Different from the deep comparator, float and double values are fingerprinted exactly.
+ *
+ * <pre><code class='java'>
+ static final EntityCollection&lt;Order, OrderItem, Long&gt; ORDER_ITEMS = EntityCollection.of(Order::getItems, OrderItem::getId);
+
+ Aggregate&lt;Order&gt; aggregate = AggregateFactory.createFingerprintAggregate(order, Arrays.asList(ORDER_ITEMS));
+ AggregateDiff&lt;OrderItem, Long&gt; diff = aggregate.diff(ORDER_ITEMS);
+ diff.getRemovedIds().forEach(id -&gt; orderItemMapper.deleteByPrimaryKey(id));
+ * </code></pre>
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ */
+public class FingerprintAggregate<R extends Versionable> extends Aggregate<R> {
+    private final StructuralHasher hasher;
+    private Fingerprint rootFingerprint;
+    private final Map<EntityCollection<R, ?, ?>, Map<Object, Fingerprint>> entityFingerprints = new LinkedHashMap<>();
+    private final Supplier<R> snapshotLoader;
+
+    FingerprintAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections, Supplier<R> snapshotLoader,
+                         StructuralHasher hasher, DeepComparator deepComparator) {
+        super(root, null, null, deepComparator);
+        this.hasher = hasher;
+        this.snapshotLoader = snapshotLoader;
+        this.rootFingerprint = hasher.hash(root);
+        for (EntityCollection<R, ?, ?> collection : collections) {
+            entityFingerprints.put(collection, fingerprint(collection));
+        }
+    }
+
+    private <T, ID> Map<Object, Fingerprint> fingerprint(EntityCollection<R, T, ID> collection) {
+        Collection<T> entities = AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(root));
+        Map<Object, Fingerprint> fingerprints = new LinkedHashMap<>((int) (entities.size() / 0.75F) + 1);
+        for (T entity : entities) {
+            ID id = collection.getIdFunction().apply(entity);
+            if (!fingerprints.containsKey(id)) {
+                fingerprints.put(id, hasher.hash(entity));
+            }
+        }
+
+        return fingerprints;
+    }
+
+    /**
+     * The snapshot is rebuilt by the snapshot loader when it's used at the first time.
+     * @return Aggregate root snapshot
+     * @throws UnsupportedOperationException if there is no snapshot loader.
+     */
+    @Override
+    public R getRootSnapshot() {
+        if (snapshot == null) {
+            if (snapshotLoader == null) {
+                throw new UnsupportedOperationException("The snapshot is not kept in fingerprint mode, please provide a snapshot loader.");
+            }
+            snapshot = snapshotLoader.get();
+        }
+
+        return snapshot;
+    }
+
+    @Override
+    public boolean isSnapshotAvailable() {
+        return snapshot != null || snapshotLoader != null;
+    }
+
+    /**
+     * @return true if the fingerprint of the root is changed.
+     */
+    @Override
+    public boolean isChanged() {
+        return !rootFingerprint.equals(hasher.hash(root));
+    }
+
+    /**
+     * Find the new, changed and removed entities of the registered entity collection by fingerprints.
+     * The removed entities and the old values of the changed entities are only available with the snapshot loader.
+     *
+     * @param collection the entity collection registered when the aggregate is created.
+     * @return the new, changed and removed entities.
+     * @throws IllegalArgumentException if the entity collection is not registered.
+     */
+    @Override
+    public <T, ID> AggregateDiff<T, ID> diff(EntityCollection<R, T, ID> collection) {
+        Fingerprint fingerprint = fingerprintOf(collection.getCollectionFunction());
+        AggregateDiff<T, ID> diff = getCachedDiff(collection, fingerprint);
+        if (diff == null) {
+            diff = createFingerprintDiff(collection);
+            cacheDiff(collection, collection.getCollectionFunction(), fingerprint, diff);
+        }
+
+        return diff;
+    }
+
+    /**
+     * Use the fingerprints if getCollection and getId are the same functions of a registered entity collection,
+     * otherwise the snapshot is required.
+     */
+    @Override
+    public <T, ID> AggregateDiff<T, ID> diff(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        EntityCollection<R, T, ID> collection = findCollection(getCollection, getId);
+        return collection == null ? super.diff(getCollection, getId) : diff(collection);
+    }
+
+    @Override
+    public <T, ID> Collection<T> findNewEntitiesById(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        EntityCollection<R, T, ID> collection = findCollection(getCollection, getId);
+        return collection == null ? super.findNewEntitiesById(getCollection, getId) : diff(collection).getNewEntities();
+    }
+
+    @Override
+    public <T, ID> Collection<T> findChangedEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        EntityCollection<R, T, ID> collection = findCollection(getCollection, getId);
+        return collection == null ? super.findChangedEntities(getCollection, getId) : diff(collection).getChangedEntities();
+    }
+
+    @Override
+    public <T, ID> Collection<ChangedEntity<T>> findChangedEntitiesWithOldValues(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        EntityCollection<R, T, ID> collection = findCollection(getCollection, getId);
+        return collection == null ? super.findChangedEntitiesWithOldValues(getCollection, getId)
+                : diff(collection).getChangedEntitiesWithOldValues();
+    }
+
+    @Override
+    public <T, ID> Collection<T> findRemovedEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        EntityCollection<R, T, ID> collection = findCollection(getCollection, getId);
+        return collection == null ? super.findRemovedEntities(getCollection, getId) : diff(collection).getRemovedEntities();
+    }
+
+    /**
+     * Fingerprint the current root again after the aggregate is saved.
+     */
+    @Override
+    public void commit() {
+        clearDiffs();
+        snapshot = null;
+        rootFingerprint = hasher.hash(root);
+        for (Map.Entry<EntityCollection<R, ?, ?>, Map<Object, Fingerprint>> entry : entityFingerprints.entrySet()) {
+            entry.setValue(fingerprint(entry.getKey()));
+        }
+    }
+
+    private <T, ID> EntityCollection<R, T, ID> findCollection(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        for (EntityCollection<R, ?, ?> collection : entityFingerprints.keySet()) {
+            if (collection.isDefinedBy(getCollection, getId)) {
+                return (EntityCollection<R, T, ID>) collection;
+            }
+        }
+
+        return null;
+    }
+
+    private <T, ID> AggregateDiff<T, ID> createFingerprintDiff(EntityCollection<R, T, ID> collection) {
+        Map<Object, Fingerprint> fingerprints = entityFingerprints.get(collection);
+        if (fingerprints == null) {
+            throw new IllegalArgumentException("The entity collection is not registered when the aggregate is created.");
+        }
+
+        Function<T, ID> getId = collection.getIdFunction();
+        Collection<T> currentEntities = AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(root));
+        if (isNew()) {
+            return AggregateDiff.ofNew(currentEntities);
+        }
+
+        Map<ID, T> snapshotIndex = snapshotLoader == null ? null
+                : AggregateDiff.indexById(AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(getRootSnapshot())), getId);
+
+        List<T> newEntities = new ArrayList<>();
+        List<ChangedEntity<T>> changedEntities = new ArrayList<>();
+        Set<ID> currentIds = new HashSet<>();
+        for (T entity : currentEntities) {
+            ID id = getId.apply(entity);
+            boolean firstOccurrence = currentIds.add(id);
+
+            Fingerprint fingerprint = fingerprints.get(id);
+            if (fingerprint == null) {
+                newEntities.add(entity);
+            } else if (firstOccurrence && !fingerprint.equals(hasher.hash(entity))) {
+                changedEntities.add(new ChangedEntity<>(snapshotIndex == null ? null : snapshotIndex.get(id), entity));
+            }
+        }
+
+        List<T> removedEntities = snapshotIndex == null ? null : new ArrayList<>();
+        List<ID> removedIds = new ArrayList<>();
+        for (Object key : fingerprints.keySet()) {
+            ID id = (ID) key;
+            if (!currentIds.contains(id)) {
+                removedIds.add(id);
+                if (snapshotIndex != null && snapshotIndex.containsKey(id)) {
+                    removedEntities.add(snapshotIndex.get(id));
+                }
+            }
+        }
+
+        return new AggregateDiff<>(newEntities, changedEntities, removedEntities, removedIds, snapshotIndex != null);
+    }
+}
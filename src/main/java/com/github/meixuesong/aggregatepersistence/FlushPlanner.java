@@ -0,0 +1,279 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Plan the batches of a {@link WritePlan}, so the entities of many aggregates can be written by JDBC batching instead
+ * of one round trip per entity. The roots and the entities are grouped by the delta type, the entity type and,
+ * for updates, the changed fields.
+ *
+ * The batches are ordered as: inserts of the roots, inserts of the entities, updates of the roots, updates of the
+ * entities, deletes of the entities, and deletes of the roots. So the parents are inserted before their children
+ * and deleted after them. The entities are inserted and updated in the order of the registered entity collections of
+ * their aggregate, and deleted in the reverse order, so a collection which references an earlier one should be
+ * registered after it.
+ *
+ * The changed fields of a root update don't include the fields of the entity collections, they are written by the
+ * batches of the entities.
+ *
+ * If the entities implement {@link Versionable}, they are checked by their own versions, see
+ * {@link WriteBatch#getExpectedVersions()}. The root is not updated if only the versioned entities are changed,
+ * so the changes of different entities of a hot aggregate don't conflict on the version of the root.
+ *
+ * <pre><code class='java'>
+ WritePlan plan = unitOfWork.flush();
+ new FlushPlanner(500).flush(plan, jdbcBatchWriter);
+ unitOfWork.commit();
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+public class FlushPlanner {
+    private static final int ROOT = -1;
+    private final int maxBatchSize;
+
+    public FlushPlanner() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBatchSize the max size of a batch, a larger group is split into several batches.
+     */
+    public FlushPlanner(int maxBatchSize) {
+        if (maxBatchSize <= 0) {
+            throw new IllegalArgumentException(String.format("Invalid max batch size %d", maxBatchSize));
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Plan the batches and write them in order.
+     * @param writePlan the changes of the aggregates
+     * @param writer the batch writer
+     */
+    public void flush(WritePlan writePlan, BatchWriter writer) {
+        for (WriteBatch<?> batch : plan(writePlan)) {
+            writer.write(batch);
+        }
+    }
+
+    /**
+     * @param writePlan the changes of the aggregates
+     * @return the ordered batches
+     */
+    public List<WriteBatch<?>> plan(WritePlan writePlan) {
+        Planning planning = new Planning();
+        for (AggregateChange<?> change : writePlan.getChanges()) {
+            planning.addAggregate(change);
+        }
+
+        List<WriteBatch<?>> batches = planning.batches;
+        batches.sort(Comparator.comparingInt(FlushPlanner::order).thenComparingInt(planning::collectionOrder));
+        return batches;
+    }
+
+    private static int order(WriteBatch<?> batch) {
+        switch (batch.getDeltaType()) {
+            case NEW:
+                return batch.isRoot() ? 0 : 1;
+            case UPDATED:
+                return batch.isRoot() ? 2 : 3;
+            default:
+                return batch.isRoot() ? 5 : 4;
+        }
+    }
+
+    private class Planning {
+        private final Map<List<Object>, WriteBatch<?>> openBatches = new HashMap<>();
+        private final List<WriteBatch<?>> batches = new ArrayList<>();
+        private final Map<WriteBatch<?>, Integer> collectionIndexes = new IdentityHashMap<>();
+
+        private <R extends Versionable> void addAggregate(AggregateChange<R> change) {
+            Aggregate<R> aggregate = change.getAggregate();
+            Aggregate.DeltaType deltaType = change.getDeltaType();
+            if (deltaType == Aggregate.DeltaType.UPDATED) {
+                R snapshot = aggregate.isSnapshotAvailable() ? aggregate.getRootSnapshot() : null;
+                Set<String> changedFields = snapshot == null ? null : getRootChangedFields(change, snapshot);
+                if (changedFields == null || !changedFields.isEmpty() || !isOnlyVersionedEntitiesChanged(change)) {
+                    add(deltaType, change.getType(), ROOT, new ChangedEntity<>(snapshot, aggregate.getRoot()), change.getId(),
+                            changedFields, true);
+                }
+            } else if (deltaType == Aggregate.DeltaType.NEW) {
+                add(deltaType, change.getType(), ROOT, new ChangedEntity<>(null, aggregate.getRoot()), change.getId(), true);
+            } else {
+                add(deltaType, change.getType(), ROOT, new ChangedEntity<>(aggregate.getRoot(), null), change.getId(), true);
+            }
+
+            int collectionIndex = 0;
+            for (Map.Entry<EntityCollection<R, ?, ?>, AggregateDiff<?, ?>> entry : change.getDiffs().entrySet()) {
+                addDiff(entry.getKey(), entry.getValue(), collectionIndex++);
+            }
+        }
+
+        /**
+         * @param collectionIndex the index of the collection in the registered entity collections of the aggregate.
+         */
+        private <T, ID> void addDiff(EntityCollection<?, T, ID> collection, AggregateDiff<?, ?> aggregateDiff, int collectionIndex) {
+            AggregateDiff<T, ID> diff = (AggregateDiff<T, ID>) aggregateDiff;
+            Class<T> declaredType = collection.getEntityType();
+            for (T entity : diff.getNewEntities()) {
+                add(Aggregate.DeltaType.NEW, entityType(entity, declaredType), collectionIndex, new ChangedEntity<>(null, entity),
+                        collection.getIdFunction().apply(entity), true);
+            }
+
+            if (diff.isOldValuesAvailable()) {
+                for (ChangedEntity<T> entity : diff.getChangedEntitiesWithOldValues()) {
+                    add(Aggregate.DeltaType.UPDATED, entityType(entity.getNewEntity(), declaredType), collectionIndex, entity,
+                            collection.getIdFunction().apply(entity.getNewEntity()), true);
+                }
+            } else {
+                for (T entity : diff.getChangedEntities()) {
+                    add(Aggregate.DeltaType.UPDATED, entityType(entity, declaredType), collectionIndex, new ChangedEntity<>(null, entity),
+                            collection.getIdFunction().apply(entity), false);
+                }
+            }
+
+            if (diff.isRemovedEntitiesAvailable()) {
+                for (T entity : diff.getRemovedEntities()) {
+                    add(Aggregate.DeltaType.REMOVED, entityType(entity, declaredType), collectionIndex, new ChangedEntity<>(entity, null),
+                            collection.getIdFunction().apply(entity), true);
+                }
+            } else {
+                for (ID id : diff.getRemovedIds()) {
+                    add(Aggregate.DeltaType.REMOVED, entityType(null, declaredType), collectionIndex, new ChangedEntity<>(null, null), id, false);
+                }
+            }
+        }
+
+        /**
+         * @param collectionIndex the index of the entity collection, or {@link #ROOT} for the root.
+         * @param valuesKnown whether the old values of an update, or the removed entity of a delete, is known.
+         */
+        private <T> void add(Aggregate.DeltaType deltaType, Class<T> entityType, int collectionIndex, ChangedEntity<T> entity,
+                             Object id, boolean valuesKnown) {
+            Set<String> changedFields = deltaType == Aggregate.DeltaType.UPDATED && valuesKnown
+                    ? DataObjectUtils.getChangedFields(entity.getOldEntity(), entity.getNewEntity()) : null;
+            add(deltaType, entityType, collectionIndex, entity, id, changedFields, deltaType != Aggregate.DeltaType.REMOVED || valuesKnown);
+        }
+
+        private <T> void add(Aggregate.DeltaType deltaType, Class<T> entityType, int collectionIndex, ChangedEntity<T> entity,
+                             Object id, Set<String> changedFields, boolean entitiesAvailable) {
+            Set<String> sortedFields = changedFields == null ? null : new TreeSet<>(changedFields);
+            List<Object> key = Arrays.asList(deltaType, collectionIndex, entityType, sortedFields, entitiesAvailable);
+
+            WriteBatch<T> batch = (WriteBatch<T>) openBatches.get(key);
+            if (batch == null || batch.size() >= maxBatchSize) {
+                batch = new WriteBatch<>(deltaType, entityType, collectionIndex == ROOT, sortedFields, entitiesAvailable);
+                openBatches.put(key, batch);
+                batches.add(batch);
+                collectionIndexes.put(batch, collectionIndex);
+            }
+            batch.add(entity, id);
+        }
+
+        /**
+         * The inserts and updates of the entities are ordered by the registered collections, the deletes by the
+         * reverse order. The batches of the same collection keep their order.
+         */
+        private int collectionOrder(WriteBatch<?> batch) {
+            int collectionIndex = collectionIndexes.get(batch);
+            return batch.getDeltaType() == Aggregate.DeltaType.REMOVED ? -collectionIndex : collectionIndex;
+        }
+    }
+
+    /**
+     * @return the changed fields of the root, except the fields of the entity collections.
+     */
+    private static <R extends Versionable> Set<String> getRootChangedFields(AggregateChange<R> change, R snapshot) {
+        R root = change.getAggregate().getRoot();
+        Set<String> changedFields = new HashSet<>(DataObjectUtils.getChangedFields(snapshot, root));
+        for (EntityCollection<R, ?, ?> collection : change.getDiffs().keySet()) {
+            String fieldName = getCollectionFieldName(collection, root);
+            if (fieldName != null) {
+                changedFields.remove(fieldName);
+            }
+        }
+
+        return changedFields;
+    }
+
+    /**
+     * @return the declared field name of the collection, or the name of the field which getCollection returns.
+     * @throws IllegalStateException if the field can't be found.
+     */
+    private static <R> String getCollectionFieldName(EntityCollection<R, ?, ?> collection, R root) {
+        DataObjectSchema<?> schema = DataObjectSchema.of(root.getClass());
+        if (collection.getFieldName() != null) {
+            if (schema.indexOf(collection.getFieldName()) < 0) {
+                throw new IllegalStateException(String.format("There is no field %s in %s.",
+                        collection.getFieldName(), root.getClass().getName()));
+            }
+            return collection.getFieldName();
+        }
+
+        Object entities = collection.getCollectionFunction().apply(root);
+        if (entities == null) {
+            return null;
+        }
+        for (FieldAccessor field : schema.getAccessors()) {
+            if (field.get(root) == entities) {
+                return field.getName();
+            }
+        }
+
+        throw new IllegalStateException(String.format("The entity collection of %s is not a field of it, "
+                + "please declare the field by EntityCollection.withField.", root.getClass().getName()));
+    }
+
+    private static <R extends Versionable> boolean isOnlyVersionedEntitiesChanged(AggregateChange<R> change) {
+        for (AggregateDiff<?, ?> diff : change.getDiffs().values()) {
+            if (!isVersioned(diff.getChangedEntities())
+                    || (diff.isRemovedEntitiesAvailable() ? !isVersioned(diff.getRemovedEntities()) : !diff.getRemovedIds().isEmpty())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVersioned(List<?> entities) {
+        for (Object entity : entities) {
+            if (!(entity instanceof Versionable)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static <T> Class<T> entityType(T entity, Class<T> declaredType) {
+        if (entity != null) {
+            return (Class<T>) entity.getClass();
+        }
+        if (declaredType == null) {
+            throw new IllegalStateException("Only the ids of the removed entities are known, please declare the entity type by EntityCollection.of(entityType, getCollection, getId).");
+        }
+
+        return declaredType;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The copier, comparator and delta code of a class which are generated at compile time for {@link CompiledModel}.
+ * The implementations are registered in META-INF/services and loaded by {@link GeneratedModels}, they must be
+ * stateless and thread safe.
+ *
+ * @author meixuesong
+ * @param <T> The model type, such as Order
+ */
+public interface GeneratedModel<T> {
+    /**
+     * @return the exact class of the model, subclasses have their own models.
+     */
+    Class<T> getType();
+
+    /**
+     * Deep copy the source. The copy should be put into copies before the fields are copied, so shared and cyclic
+     * references are copied once.
+     * @param source the object to be copied
+     * @param copies the objects which have been copied, mapped to their copies
+     * @return the copy
+     */
+    T copy(T source, Map<Object, Object> copies);
+
+    /**
+     * Compare a and b field by field, with the same semantics as {@link MethodHandleDeepComparator}.
+     * @param a the object to be compared, not null
+     * @param b the object to be compared, not null
+     * @param visited the pairs which are being compared, to stop at cyclic references
+     * @return true if all the fields are deep equal
+     */
+    boolean isDeepEquals(T a, T b, Map<Object, Object> visited);
+
+    /**
+     * @return the names of the changed fields, see {@link DataObjectUtils#getChangedFields(Object, Object, String...)}
+     */
+    Set<String> getChangedFields(T old, T current);
+
+    /**
+     * @return a new instance with the changed fields of current, see {@link DataObjectUtils#getDelta(Object, Object)}
+     */
+    T getDelta(T old, T current);
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+/**
+ * The registry of the {@link GeneratedModel}s, and the runtime helpers called by the generated code.
+ *
+ * The models are loaded by ServiceLoader once per class loader. The generated code dispatches the field values by their runtime classes:
+ * the objects which have generated models, the JDK lists, sets and maps are handled without reflection, other values
+ * fall back to {@link MethodHandleDeepCopier} and {@link MethodHandleDeepComparator}.
+ *
+ * @author meixuesong
+ */
+public final class GeneratedModels {
+    private static final MethodHandleDeepCopier FALLBACK_COPIER = new MethodHandleDeepCopier();
+    private static final MethodHandleDeepComparator FALLBACK_COMPARATOR = new MethodHandleDeepComparator();
+    private static final Map<Class<?>, Supplier<Collection<Object>>> COLLECTION_FACTORIES = new HashMap<>();
+    private static final Map<Class<?>, Supplier<Map<Object, Object>>> MAP_FACTORIES = new HashMap<>();
+
+    static {
+        COLLECTION_FACTORIES.put(ArrayList.class, ArrayList::new);
+        COLLECTION_FACTORIES.put(LinkedList.class, LinkedList::new);
+        COLLECTION_FACTORIES.put(HashSet.class, HashSet::new);
+        COLLECTION_FACTORIES.put(LinkedHashSet.class, LinkedHashSet::new);
+        MAP_FACTORIES.put(HashMap.class, HashMap::new);
+        MAP_FACTORIES.put(LinkedHashMap.class, LinkedHashMap::new);
+    }
+
+    /**
+     * The copier of the roots which have generated models.
+     */
+    static final DeepCopier COPIER = new DeepCopier() {
+        @Override
+        public <T> T copy(T object) {
+            return copy(object, new IdentityHashMap<>());
+        }
+
+        @Override
+        public <T> T copy(T object, Map<Object, Object> reusableCopies) {
+            return (T) copyValue(object, new IdentityHashMap<>(reusableCopies));
+        }
+    };
+
+    /**
+     * The comparator of the roots which have generated models, it's thread safe.
+     */
+    static final DeepComparator COMPARATOR = new DeepComparator() {
+        @Override
+        public <T> boolean isDeepEquals(T a, T b) {
+            return GeneratedModels.isDeepEquals(a, b, new IdentityHashMap<>());
+        }
+    };
+
+    private static final Map<ClassLoader, Map<Class<?>, GeneratedModel<?>>> LOADED_MODELS = new WeakHashMap<>();
+    private static final ClassValue<GeneratedModel<?>> MODELS = new ClassValue<GeneratedModel<?>>() {
+        @Override
+        protected GeneratedModel<?> computeValue(Class<?> type) {
+            ClassLoader loader = type.getClassLoader();
+            return loader == null ? null : modelsOf(loader).get(type);
+        }
+    };
+
+    private GeneratedModels() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * @param type the exact class
+     * @return the generated model of the class, or null if it's not generated.
+     */
+    static <T> GeneratedModel<T> find(Class<T> type) {
+        return (GeneratedModel<T>) MODELS.get(type);
+    }
+
+    /**
+     * Deep copy a field value.
+     * @param value the field value
+     * @param copies the objects which have been copied, mapped to their copies
+     * @return the copy, or the value itself if it's immutable
+     */
+    public static Object copyValue(Object value, Map<Object, Object> copies) {
+        if (value == null || ValueTypes.isImmutable(value.getClass())) {
+            return value;
+        }
+
+        Object copy = copies.get(value);
+        if (copy != null) {
+            return copy;
+        }
+
+        GeneratedModel<Object> model = find((Class<Object>) value.getClass());
+        if (model != null) {
+            return model.copy(value, copies);
+        }
+
+        Supplier<Collection<Object>> collectionFactory = COLLECTION_FACTORIES.get(value.getClass());
+        if (collectionFactory != null) {
+            Collection<Object> collection = collectionFactory.get();
+            copies.put(value, collection);
+            for (Object element : (Collection<?>) value) {
+                collection.add(copyValue(element, copies));
+            }
+            return collection;
+        }
+
+        Supplier<Map<Object, Object>> mapFactory = MAP_FACTORIES.get(value.getClass());
+        if (mapFactory != null) {
+            Map<Object, Object> map = mapFactory.get();
+            copies.put(value, map);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                map.put(copyValue(entry.getKey(), copies), copyValue(entry.getValue(), copies));
+            }
+            return map;
+        }
+
+        return FALLBACK_COPIER.copyInto(value, copies);
+    }
+
+    /**
+     * Deep compare two field values.
+     * @param a the field value
+     * @param b the field value
+     * @param visited the pairs which are being compared, a pair is removed when it's compared.
+     * @return true if they are deep equal
+     */
+    public static boolean isDeepEquals(Object a, Object b, Map<Object, Object> visited) {
+        if (a == b) {
+            return true;
+        }
+
+        if (a == null || b == null) {
+            return false;
+        }
+
+        if (a.getClass() == b.getClass()) {
+            GeneratedModel<Object> model = find((Class<Object>) a.getClass());
+            if (model != null) {
+                Object comparing = visited.get(a);
+                if (comparing == b) {
+                    return true;
+                }
+
+                visited.put(a, b);
+                try {
+                    return model.isDeepEquals(a, b, visited);
+                } finally {
+                    if (comparing == null) {
+                        visited.remove(a);
+                    } else {
+                        visited.put(a, comparing);
+                    }
+                }
+            }
+
+            if (a instanceof ArrayList || a instanceof LinkedList) {
+                return isListEquals((List<?>) a, (List<?>) b, visited);
+            }
+        }
+
+        return FALLBACK_COMPARATOR.isDeepEquals(a, b);
+    }
+
+    /**
+     * Compare float and double fields with the same epsilon as DeepEquals.
+     */
+    public static boolean isDeepEquals(double a, double b) {
+        return MethodHandleDeepComparator.nearlyEqual(a, b);
+    }
+
+    private static boolean isListEquals(List<?> a, List<?> b, Map<Object, Object> visited) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+
+        Iterator<?> iteratorA = a.iterator();
+        Iterator<?> iteratorB = b.iterator();
+        while (iteratorA.hasNext()) {
+            if (!isDeepEquals(iteratorA.next(), iteratorB.next(), visited)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The models are registered next to the model classes, so they are loaded by the class loader of the model class.
+     */
+    private static synchronized Map<Class<?>, GeneratedModel<?>> modelsOf(ClassLoader loader) {
+        Map<Class<?>, GeneratedModel<?>> models = LOADED_MODELS.get(loader);
+        if (models == null) {
+            models = new HashMap<>();
+            for (GeneratedModel<?> model : ServiceLoader.load(GeneratedModel.class, loader)) {
+                models.put(model.getType(), model);
+            }
+            LOADED_MODELS.put(loader, models);
+        }
+
+        return models;
+    }
+}
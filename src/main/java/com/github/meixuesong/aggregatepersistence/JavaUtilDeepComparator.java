@@ -15,7 +15,7 @@ package com.github.meixuesong.aggregatepersistence;
 
 import com.cedarsoftware.util.DeepEquals;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -23,10 +23,14 @@ import java.util.Set;
 /**
  * JavaUtilDeepComparator use deepEquals, which is based on https://github.com/jdereg/java-util, to implement the DeepComparator interface.
  *
+ * The ignored classes are frozen into immutable options, which are replaced rather than modified when the classes
+ * are added or removed. So the comparator is thread safe, and a comparison doesn't copy the configuration.
+ *
  * @author meixuesong
  */
 public class JavaUtilDeepComparator implements DeepComparator {
-    private Set<Class<?>> ignoreCustomEqualsClasses = new HashSet<>();
+    private volatile Set<Class<?>> ignoreCustomEqualsClasses = Collections.emptySet();
+    private volatile Map<String, Object> options = DeepEqualsOptions.IGNORE_ALL_CUSTOM_EQUALS;
 
     @Override
     public <T> boolean isDeepEquals(T a, T b) {
@@ -35,40 +39,39 @@ public class JavaUtilDeepComparator implements DeepComparator {
         }
 
         if (a != null && b != null) {
-            Map<String, Object> options = new HashMap<>();
-            Set<Class<?>> ignoreCustomEquals = new HashSet<>(ignoreCustomEqualsClasses);
-            options.put(DeepEquals.IGNORE_CUSTOM_EQUALS, ignoreCustomEquals);
-
-            return DeepEquals.deepEquals(a, b, options);
+            Map<String, Object> options = DeepEqualsOptions.acquire(this.options);
+            try {
+                return DeepEquals.deepEquals(a, b, options);
+            } finally {
+                DeepEqualsOptions.release(options);
+            }
         }
 
         return false;
     }
 
-
     public void addIgnoreEqualsClass(Class<?> clazz) {
-        if (ignoreCustomEqualsClasses == null) {
-            ignoreCustomEqualsClasses = new HashSet<>();
-        }
-        ignoreCustomEqualsClasses.add(clazz);
+        addIgnoreEqualsClasses(Collections.singleton(clazz));
     }
 
-    public void addIgnoreEqualsClasses(Set<Class<?>> clazzes) {
-        if (ignoreCustomEqualsClasses == null) {
-            ignoreCustomEqualsClasses = new HashSet<>();
-        }
-        ignoreCustomEqualsClasses.addAll(clazzes);
+    public synchronized void addIgnoreEqualsClasses(Set<Class<?>> clazzes) {
+        Set<Class<?>> classes = new HashSet<>(ignoreCustomEqualsClasses);
+        classes.addAll(clazzes);
+        setIgnoreCustomEqualsClasses(classes);
     }
 
     public void removeIgnoreEqualsClass(Class<?> clazz) {
-        if (ignoreCustomEqualsClasses != null) {
-            ignoreCustomEqualsClasses.remove(clazz);
-        }
+        removeIgnoreEqualsClasses(Collections.singleton(clazz));
     }
 
-    public void removeIgnoreEqualsClasses(Set<Class<?>> clazzes) {
-        if (ignoreCustomEqualsClasses != null) {
-            ignoreCustomEqualsClasses.removeAll(clazzes);
-        }
+    public synchronized void removeIgnoreEqualsClasses(Set<Class<?>> clazzes) {
+        Set<Class<?>> classes = new HashSet<>(ignoreCustomEqualsClasses);
+        classes.removeAll(clazzes);
+        setIgnoreCustomEqualsClasses(classes);
+    }
+
+    private void setIgnoreCustomEqualsClasses(Set<Class<?>> classes) {
+        ignoreCustomEqualsClasses = Collections.unmodifiableSet(classes);
+        options = DeepEqualsOptions.freeze(classes);
     }
 }
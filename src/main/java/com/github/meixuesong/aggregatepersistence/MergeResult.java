@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of {@link AggregateMerger#merge(Aggregate, Versionable)}.
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ */
+public class MergeResult<R extends Versionable> {
+    private final Aggregate<R> aggregate;
+    private final List<String> conflicts;
+
+    MergeResult(Aggregate<R> aggregate, List<String> conflicts) {
+        this.aggregate = aggregate;
+        this.conflicts = Collections.unmodifiableList(conflicts);
+    }
+
+    /**
+     * @return true if there is no conflict.
+     */
+    public boolean isMerged() {
+        return conflicts.isEmpty();
+    }
+
+    /**
+     * @return the paths of the conflicting fields, e.g. "status" or "items[1].amount".
+     */
+    public List<String> getConflicts() {
+        return conflicts;
+    }
+
+    /**
+     * @return the merged aggregate, its root is the merged root and its snapshot is the DB state (theirs),
+     * so the diff of the aggregate is the changes to save.
+     * @throws IllegalStateException if there are conflicts.
+     */
+    public Aggregate<R> getAggregate() {
+        if (!isMerged()) {
+            throw new IllegalStateException(String.format("The aggregate can't be merged because of the conflicts %s", conflicts));
+        }
+        return aggregate;
+    }
+}
@@ -0,0 +1,582 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.cedarsoftware.util.DeepEquals;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This DeepComparator compiles an equality plan once per class and caches it, instead of discovering fields
+ * reflectively on every comparison. It follows the semantics of {@link JavaUtilDeepComparator}:
+ *
+ * <ul>
+ *     <li>Primitive fields are compared inline without boxing. float and double are compared with the same epsilon as DeepEquals.</li>
+ *     <li>Numbers, String, java.time, Date and other immutable JDK values are compared directly. BigDecimal is compared by compareTo.</li>
+ *     <li>Lists are compared in order, other collections and maps are compared regardless of order.</li>
+ *     <li>Other objects are compared field by field, their own equals methods are ignored unless the class is added by
+ *     {@link #addEqualsClass(Class)}. Transient fields are skipped, since they are not part of the snapshot.</li>
+ *     <li>JDK types it can't plan are compared by DeepEquals.</li>
+ * </ul>
+ *
+ * @author meixuesong
+ */
+public class MethodHandleDeepComparator implements DeepComparator {
+    private static final double DOUBLE_EPSILON = 1e-15;
+    private static final Set<Class<?>> HASHABLE_TYPES = new HashSet<>();
+
+    static {
+        Collections.addAll(HASHABLE_TYPES, String.class, Boolean.class, Character.class, Byte.class, Short.class,
+                Integer.class, Long.class, java.math.BigInteger.class, java.util.UUID.class, java.net.URI.class,
+                java.util.Locale.class, java.util.Currency.class, Class.class);
+    }
+
+    private final Set<Class<?>> equalsClasses = ConcurrentHashMap.newKeySet();
+    private volatile ClassValue<ComparePlan> plans = newPlans();
+
+    @Override
+    public <T> boolean isDeepEquals(T a, T b) {
+        return isDeepEquals(a, b, new Context());
+    }
+
+    /**
+     * Compare instances of the class with their own equals method, instead of comparing them field by field.
+     * @param clazz the class, usually a value object with a well defined equals method.
+     */
+    public void addEqualsClass(Class<?> clazz) {
+        equalsClasses.add(clazz);
+        plans = newPlans();
+    }
+
+    public void removeEqualsClass(Class<?> clazz) {
+        equalsClasses.remove(clazz);
+        plans = newPlans();
+    }
+
+    private ClassValue<ComparePlan> newPlans() {
+        return new ClassValue<ComparePlan>() {
+            @Override
+            protected ComparePlan computeValue(Class<?> type) {
+                return createPlan(type);
+            }
+        };
+    }
+
+    private boolean isDeepEquals(Object a, Object b, Context context) {
+        if (a == b) {
+            return true;
+        }
+
+        if (a == null || b == null) {
+            return false;
+        }
+
+        return plans.get(a.getClass()).isEquals(a, b, context);
+    }
+
+    private ComparePlan createPlan(Class<?> type) {
+        if (equalsClasses.contains(type)) {
+            return EQUALS;
+        }
+
+        if (Number.class.isAssignableFrom(type)) {
+            return NUMBER;
+        }
+
+        if (type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum())) {
+            return IDENTITY;
+        }
+
+        if (Date.class.isAssignableFrom(type)) {
+            return DATE;
+        }
+
+        if (ValueTypes.isImmutable(type)) {
+            return Comparable.class.isAssignableFrom(type) ? COMPARABLE : EQUALS;
+        }
+
+        if (type.isArray()) {
+            return type.getComponentType().isPrimitive() ? new PrimitiveArrayPlan() : new ObjectArrayPlan();
+        }
+
+        if (List.class.isAssignableFrom(type)) {
+            return new ListPlan();
+        }
+
+        if (Collection.class.isAssignableFrom(type)) {
+            return new UnorderedCollectionPlan();
+        }
+
+        if (Map.class.isAssignableFrom(type)) {
+            return new MapPlan();
+        }
+
+        try {
+            return new ObjectPlan(type);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return FALLBACK;
+        }
+    }
+
+    private static boolean isHashable(Object value) {
+        return value == null || HASHABLE_TYPES.contains(value.getClass()) || value instanceof Enum;
+    }
+
+    static boolean longEquals(long a, long b) {
+        return a == b;
+    }
+
+    static boolean booleanEquals(boolean a, boolean b) {
+        return a == b;
+    }
+
+    /**
+     * The same as DeepEquals, so the comparison result doesn't depend on which DeepComparator is used.
+     */
+    static boolean nearlyEqual(double a, double b) {
+        double absA = Math.abs(a);
+        double absB = Math.abs(b);
+        double diff = Math.abs(a - b);
+
+        if (a == b) {
+            return true;
+        } else if (a == 0 || b == 0 || diff < Double.MIN_NORMAL) {
+            return diff < (DOUBLE_EPSILON * Double.MIN_NORMAL);
+        } else {
+            return diff / (absA + absB) < DOUBLE_EPSILON;
+        }
+    }
+
+    private static boolean isNumbersEqual(Number a, Number b) {
+        boolean floating = a instanceof Float || a instanceof Double || b instanceof Float || b instanceof Double;
+        if (floating && !(a instanceof BigDecimal) && !(b instanceof BigDecimal)) {
+            return nearlyEqual(a.doubleValue(), b.doubleValue());
+        }
+
+        if (a.getClass() == b.getClass() && (a instanceof Integer || a instanceof Long || a instanceof Short || a instanceof Byte)) {
+            return a.longValue() == b.longValue();
+        }
+
+        if (a instanceof BigDecimal && b instanceof BigDecimal) {
+            return ((BigDecimal) a).compareTo((BigDecimal) b) == 0;
+        }
+
+        return DeepEquals.deepEquals(a, b);
+    }
+
+    /**
+     * The per comparison state, which remembers the object pairs being compared, so cycles in the graph terminate.
+     * A pair is forgotten once it has been compared, because a pair which is rejected by a trial match of an unordered
+     * collection must not be regarded as equal afterwards.
+     */
+    private static class Context {
+        private Map<Object, Object> comparing;
+        private Set<List<Object>> comparingPairs;
+
+        /**
+         * @return false if the pair is already being compared.
+         */
+        boolean enter(Object a, Object b) {
+            if (comparing == null) {
+                comparing = new IdentityHashMap<>();
+            }
+
+            Object comparingB = comparing.putIfAbsent(a, b);
+            if (comparingB == null) {
+                return true;
+            }
+
+            if (comparingB == b) {
+                return false;
+            }
+
+            if (comparingPairs == null) {
+                comparingPairs = new HashSet<>();
+            }
+            return comparingPairs.add(List.of(new IdentityKey(a), new IdentityKey(b)));
+        }
+
+        void leave(Object a, Object b) {
+            if (comparing.get(a) == b) {
+                comparing.remove(a);
+            } else if (comparingPairs != null) {
+                comparingPairs.remove(List.of(new IdentityKey(a), new IdentityKey(b)));
+            }
+        }
+    }
+
+    private static final class IdentityKey {
+        private final Object value;
+
+        IdentityKey(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IdentityKey && ((IdentityKey) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+
+    private abstract static class ComparePlan {
+        /**
+         * Compare a and b, they are not null and not the same object. a is an instance of the planned class.
+         */
+        abstract boolean isEquals(Object a, Object b, Context context);
+    }
+
+    private static final ComparePlan IDENTITY = new ComparePlan() {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            return false;
+        }
+    };
+
+    private static final ComparePlan EQUALS = new ComparePlan() {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            return a.equals(b);
+        }
+    };
+
+    private static final ComparePlan COMPARABLE = new ComparePlan() {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            return a.getClass() == b.getClass() && ((Comparable<Object>) a).compareTo(b) == 0;
+        }
+    };
+
+    private static final ComparePlan NUMBER = new ComparePlan() {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            return b instanceof Number && isNumbersEqual((Number) a, (Number) b);
+        }
+    };
+
+    private static final ComparePlan DATE = new ComparePlan() {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            return b instanceof Date && ((Date) a).compareTo((Date) b) == 0;
+        }
+    };
+
+    private static final ComparePlan FALLBACK = new ComparePlan() {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            // DeepEquals writes the difference into the options, so they can't be shared.
+            Map<String, Object> options = new HashMap<>();
+            options.put(DeepEquals.IGNORE_CUSTOM_EQUALS, new HashSet<>());
+            return DeepEquals.deepEquals(a, b, options);
+        }
+    };
+
+    private static class PrimitiveArrayPlan extends ComparePlan {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            if (a.getClass() != b.getClass()) {
+                return false;
+            }
+
+            if (a instanceof double[]) {
+                double[] arrayA = (double[]) a;
+                double[] arrayB = (double[]) b;
+                if (arrayA.length != arrayB.length) {
+                    return false;
+                }
+                for (int i = 0; i < arrayA.length; i++) {
+                    if (!nearlyEqual(arrayA[i], arrayB[i])) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            if (a instanceof float[]) {
+                float[] arrayA = (float[]) a;
+                float[] arrayB = (float[]) b;
+                if (arrayA.length != arrayB.length) {
+                    return false;
+                }
+                for (int i = 0; i < arrayA.length; i++) {
+                    if (!nearlyEqual(arrayA[i], arrayB[i])) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            if (a instanceof int[]) {
+                return Arrays.equals((int[]) a, (int[]) b);
+            } else if (a instanceof long[]) {
+                return Arrays.equals((long[]) a, (long[]) b);
+            } else if (a instanceof byte[]) {
+                return Arrays.equals((byte[]) a, (byte[]) b);
+            } else if (a instanceof char[]) {
+                return Arrays.equals((char[]) a, (char[]) b);
+            } else if (a instanceof short[]) {
+                return Arrays.equals((short[]) a, (short[]) b);
+            } else {
+                return Arrays.equals((boolean[]) a, (boolean[]) b);
+            }
+        }
+    }
+
+    private class ObjectArrayPlan extends ComparePlan {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            if (a.getClass() != b.getClass()) {
+                return false;
+            }
+
+            Object[] arrayA = (Object[]) a;
+            Object[] arrayB = (Object[]) b;
+            if (arrayA.length != arrayB.length) {
+                return false;
+            }
+
+            for (int i = 0; i < arrayA.length; i++) {
+                if (!isDeepEquals(arrayA[i], arrayB[i], context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private class ListPlan extends ComparePlan {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            if (!(b instanceof List)) {
+                return false;
+            }
+
+            List<?> listA = (List<?>) a;
+            List<?> listB = (List<?>) b;
+            if (listA.size() != listB.size()) {
+                return false;
+            }
+
+            Iterator<?> iteratorB = listB.iterator();
+            for (Object itemA : listA) {
+                if (!isDeepEquals(itemA, iteratorB.next(), context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private class UnorderedCollectionPlan extends ComparePlan {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            if (!(b instanceof Collection) || b instanceof List) {
+                return false;
+            }
+
+            Collection<?> collectionA = (Collection<?>) a;
+            Collection<?> collectionB = (Collection<?>) b;
+            if (collectionA.size() != collectionB.size()) {
+                return false;
+            }
+
+            if (a instanceof Set && b instanceof Set && containsAllHashable(collectionA, collectionB)) {
+                return true;
+            }
+
+            List<Object> unmatched = new LinkedList<>(collectionB);
+            for (Object itemA : collectionA) {
+                if (!removeDeepEqual(unmatched, itemA, context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean containsAllHashable(Collection<?> collectionA, Collection<?> collectionB) {
+            try {
+                for (Object itemA : collectionA) {
+                    if (!isHashable(itemA) || !collectionB.contains(itemA)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (ClassCastException | NullPointerException e) {
+                // sorted sets reject incomparable elements
+                return false;
+            }
+        }
+
+        private boolean removeDeepEqual(List<Object> items, Object item, Context context) {
+            for (Iterator<Object> iterator = items.iterator(); iterator.hasNext(); ) {
+                if (isDeepEquals(item, iterator.next(), context)) {
+                    iterator.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class MapPlan extends ComparePlan {
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            if (!(b instanceof Map)) {
+                return false;
+            }
+
+            Map<?, ?> mapA = (Map<?, ?>) a;
+            Map<?, ?> mapB = (Map<?, ?>) b;
+            if (mapA.size() != mapB.size()) {
+                return false;
+            }
+
+            if (isAllKeysHashable(mapA, mapB)) {
+                for (Map.Entry<?, ?> entry : mapA.entrySet()) {
+                    if (!isDeepEquals(entry.getValue(), mapB.get(entry.getKey()), context)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            List<Map.Entry<?, ?>> unmatched = new LinkedList<>(mapB.entrySet());
+            for (Map.Entry<?, ?> entryA : mapA.entrySet()) {
+                if (!removeDeepEqual(unmatched, entryA, context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isAllKeysHashable(Map<?, ?> mapA, Map<?, ?> mapB) {
+            try {
+                for (Object key : mapA.keySet()) {
+                    if (!isHashable(key) || !mapB.containsKey(key)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (ClassCastException | NullPointerException e) {
+                // sorted maps reject incomparable keys
+                return false;
+            }
+        }
+
+        private boolean removeDeepEqual(List<Map.Entry<?, ?>> entries, Map.Entry<?, ?> entry, Context context) {
+            for (Iterator<Map.Entry<?, ?>> iterator = entries.iterator(); iterator.hasNext(); ) {
+                Map.Entry<?, ?> candidate = iterator.next();
+                if (isDeepEquals(entry.getKey(), candidate.getKey(), context)
+                        && isDeepEquals(entry.getValue(), candidate.getValue(), context)) {
+                    iterator.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private class ObjectPlan extends ComparePlan {
+        private final MethodHandle[] primitiveComparers;
+        private final FieldAccessor[] objectFields;
+
+        ObjectPlan(Class<?> type) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType longComparer = MethodType.methodType(boolean.class, long.class, long.class);
+            MethodHandle longEquals = lookup.findStatic(MethodHandleDeepComparator.class, "longEquals", longComparer);
+            MethodHandle doubleEquals = lookup.findStatic(MethodHandleDeepComparator.class, "nearlyEqual",
+                    MethodType.methodType(boolean.class, double.class, double.class));
+            MethodHandle booleanEquals = lookup.findStatic(MethodHandleDeepComparator.class, "booleanEquals",
+                    MethodType.methodType(boolean.class, boolean.class, boolean.class));
+
+            List<MethodHandle> primitives = new ArrayList<>();
+            List<FieldAccessor> objects = new ArrayList<>();
+            for (FieldAccessor field : FieldAccessor.of(type)) {
+                Class<?> fieldType = field.getType();
+                if (fieldType == boolean.class) {
+                    primitives.add(compareBy(booleanEquals, field.getter(boolean.class)));
+                } else if (fieldType == float.class || fieldType == double.class) {
+                    primitives.add(compareBy(doubleEquals, field.getter(double.class)));
+                } else if (fieldType.isPrimitive()) {
+                    primitives.add(compareBy(longEquals, field.getter(long.class)));
+                } else {
+                    objects.add(field);
+                }
+            }
+
+            primitiveComparers = primitives.toArray(new MethodHandle[0]);
+            objectFields = objects.toArray(new FieldAccessor[0]);
+        }
+
+        /**
+         * @return the method handle of (Object a, Object b)boolean, which compares the field of a and b.
+         */
+        private MethodHandle compareBy(MethodHandle equals, MethodHandle getter) {
+            return MethodHandles.filterArguments(equals, 0, getter, getter);
+        }
+
+        @Override
+        boolean isEquals(Object a, Object b, Context context) {
+            if (a.getClass() != b.getClass()) {
+                return false;
+            }
+
+            try {
+                for (MethodHandle comparer : primitiveComparers) {
+                    if (!(boolean) comparer.invokeExact(a, b)) {
+                        return false;
+                    }
+                }
+            } catch (Throwable e) {
+                throw new IllegalStateException(String.format("Failed to compare %s", a.getClass().getName()), e);
+            }
+
+            if (objectFields.length == 0 || !context.enter(a, b)) {
+                return true;
+            }
+
+            try {
+                for (FieldAccessor field : objectFields) {
+                    if (!isDeepEquals(field.get(a), field.get(b), context)) {
+                        return false;
+                    }
+                }
+                return true;
+            } finally {
+                context.leave(a, b);
+            }
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * This deepcopier copies objects field by field with method handles. A copy plan is built once per class and cached,
+ * so creating a snapshot does not go through Java serialization.
+ *
+ * <ul>
+ *     <li>Immutable JDK values (String, BigDecimal, java.time, enums...), records whose components are all immutable
+ *     and the classes registered by {@link #addImmutableClass(Class)} are shared with the snapshot.</li>
+ *     <li>Common JDK collections and maps are recreated with the same type and their elements copied.</li>
+ *     <li>Other objects are instantiated by their no-arg constructors, which may be private, and copied field by field.
+ *     Transient fields are skipped, which is the same as {@link SerializableDeepCopier}.</li>
+ *     <li>Types it can't plan, e.g. JDK internal classes, unmodifiable collections or classes without a no-arg
+ *     constructor, fall back to {@link SerializableDeepCopier}. The objects copied before are referenced by their
+ *     copies, and the objects serialized by the fallback are registered as copied.</li>
+ *     <li>A record can't be created before its components are copied, so a cycle back to a record which is being
+ *     copied is rejected with an IllegalStateException.</li>
+ * </ul>
+ *
+ * Shared references and cycles in the object graph are preserved.
+ *
+ * @author meixuesong
+ */
+public class MethodHandleDeepCopier implements DeepCopier {
+    private static final Map<Class<?>, Function<Object, Object>> CONTAINER_FACTORIES = new HashMap<>();
+
+    static {
+        CONTAINER_FACTORIES.put(ArrayList.class, source -> new ArrayList<>(((Collection<?>) source).size()));
+        CONTAINER_FACTORIES.put(LinkedList.class, source -> new LinkedList<>());
+        CONTAINER_FACTORIES.put(ArrayDeque.class, source -> new ArrayDeque<>(((Collection<?>) source).size()));
+        CONTAINER_FACTORIES.put(Vector.class, source -> new Vector<>(((Collection<?>) source).size()));
+        CONTAINER_FACTORIES.put(CopyOnWriteArrayList.class, source -> new CopyOnWriteArrayList<>());
+        CONTAINER_FACTORIES.put(HashSet.class, source -> new HashSet<>(capacity(((Collection<?>) source).size())));
+        CONTAINER_FACTORIES.put(LinkedHashSet.class, source -> new LinkedHashSet<>(capacity(((Collection<?>) source).size())));
+        CONTAINER_FACTORIES.put(TreeSet.class, source -> new TreeSet<>(((TreeSet<?>) source).comparator()));
+        CONTAINER_FACTORIES.put(HashMap.class, source -> new HashMap<>(capacity(((Map<?, ?>) source).size())));
+        CONTAINER_FACTORIES.put(LinkedHashMap.class, source -> new LinkedHashMap<>(capacity(((Map<?, ?>) source).size())));
+        CONTAINER_FACTORIES.put(TreeMap.class, source -> new TreeMap<>(((TreeMap<?, ?>) source).comparator()));
+        CONTAINER_FACTORIES.put(ConcurrentHashMap.class, source -> new ConcurrentHashMap<>(capacity(((Map<?, ?>) source).size())));
+        CONTAINER_FACTORIES.put(IdentityHashMap.class, source -> new IdentityHashMap<>(((Map<?, ?>) source).size()));
+    }
+
+    private final SerializableDeepCopier fallbackCopier = new SerializableDeepCopier();
+
+    private final Set<Class<?>> immutableClasses = ConcurrentHashMap.newKeySet();
+    private volatile ClassValue<CopyPlan> plans = newPlans();
+
+    @Override
+    public <T> T copy(T object) {
+        return (T) copyValue(object, new IdentityHashMap<>());
+    }
+
+    /**
+     * The reusable copies are shared with the new copy, e.g. the unchanged entities of the snapshot.
+     */
+    @Override
+    public <T> T copy(T object, Map<Object, Object> reusableCopies) {
+        return (T) copyValue(object, new IdentityHashMap<>(reusableCopies));
+    }
+
+    /**
+     * Copy the object into the copies of a larger copy, e.g. a field value which the generated code can't copy.
+     * @param object the object to be copied
+     * @param copies the objects which have been copied, mapped to their copies, the new copies are added.
+     * @return the copy
+     */
+    Object copyInto(Object object, Map<Object, Object> copies) {
+        return copyValue(object, copies);
+    }
+
+    /**
+     * Share the instances of the class with the snapshot instead of copying them.
+     * @param clazz the class whose instances never change after construction, e.g. a value object without setters.
+     */
+    public void addImmutableClass(Class<?> clazz) {
+        immutableClasses.add(clazz);
+        plans = newPlans();
+    }
+
+    public void removeImmutableClass(Class<?> clazz) {
+        immutableClasses.remove(clazz);
+        plans = newPlans();
+    }
+
+    private ClassValue<CopyPlan> newPlans() {
+        return new ClassValue<CopyPlan>() {
+            @Override
+            protected CopyPlan computeValue(Class<?> type) {
+                return createPlan(type);
+            }
+        };
+    }
+
+    private Object copyValue(Object source, Map<Object, Object> copies) {
+        if (source == null) {
+            return null;
+        }
+
+        CopyPlan plan = plans.get(source.getClass());
+        if (plan == SHARED) {
+            return source;
+        }
+
+        Object copied = copies.get(source);
+        if (copied == PENDING_RECORD) {
+            throw new IllegalStateException(String.format("Failed to copy the cyclic reference to record %s", source.getClass().getName()));
+        }
+        if (copied != null) {
+            return copied;
+        }
+
+        return plan.copy(source, copies);
+    }
+
+    private CopyPlan createPlan(Class<?> type) {
+        if (isImmutable(type)) {
+            return SHARED;
+        }
+
+        if (type.isArray()) {
+            return type.getComponentType().isPrimitive() ? new PrimitiveArrayPlan() : new ObjectArrayPlan();
+        }
+
+        if (Date.class.isAssignableFrom(type)) {
+            return new DatePlan();
+        }
+
+        if (EnumSet.class.isAssignableFrom(type)) {
+            return new EnumSetPlan();
+        }
+
+        if (type == EnumMap.class) {
+            return new MapPlan(source -> new EnumMap<>((EnumMap) source));
+        }
+
+        Function<Object, Object> containerFactory = CONTAINER_FACTORIES.get(type);
+        if (containerFactory != null) {
+            return Map.class.isAssignableFrom(type) ? new MapPlan(containerFactory) : new CollectionPlan(containerFactory);
+        }
+
+        try {
+            if (type.isRecord()) {
+                return new RecordPlan(type);
+            }
+
+            return new ObjectPlan(type);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return new FallbackPlan();
+        }
+    }
+
+    private boolean isImmutable(Class<?> type) {
+        return ValueTypes.isImmutable(type)
+                || immutableClasses.contains(type)
+                || ValueTypes.isImmutableRecord(type, immutableClasses::contains);
+    }
+
+    /**
+     * The field can be copied as is if all the values it can hold are immutable.
+     * A subclass of a registered immutable class may be mutable, so the field type should be final.
+     */
+    private boolean isImmutableField(Class<?> fieldType) {
+        return ValueTypes.isImmutable(fieldType) || (Modifier.isFinal(fieldType.getModifiers()) && isImmutable(fieldType));
+    }
+
+    private static int capacity(int size) {
+        return Math.max((int) (size / 0.75F) + 1, 16);
+    }
+
+    private abstract static class CopyPlan {
+        /**
+         * Copy the source object. The copy must be registered into copies before its references are copied,
+         * so cycles end up with the same copy.
+         */
+        abstract Object copy(Object source, Map<Object, Object> copies);
+    }
+
+    /**
+     * The mark of the records whose components are being copied.
+     */
+    private static final Object PENDING_RECORD = new Object();
+
+    private static final CopyPlan SHARED = new CopyPlan() {
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            return source;
+        }
+    };
+
+    private static class PrimitiveArrayPlan extends CopyPlan {
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            int length = Array.getLength(source);
+            Object result = Array.newInstance(source.getClass().getComponentType(), length);
+            System.arraycopy(source, 0, result, 0, length);
+            copies.put(source, result);
+            return result;
+        }
+    }
+
+    private class ObjectArrayPlan extends CopyPlan {
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            Object[] array = (Object[]) source;
+            Object[] result = (Object[]) Array.newInstance(source.getClass().getComponentType(), array.length);
+            copies.put(source, result);
+            for (int i = 0; i < array.length; i++) {
+                result[i] = copyValue(array[i], copies);
+            }
+            return result;
+        }
+    }
+
+    private static class DatePlan extends CopyPlan {
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            Object result = ((Date) source).clone();
+            copies.put(source, result);
+            return result;
+        }
+    }
+
+    private static class EnumSetPlan extends CopyPlan {
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            Object result = ((EnumSet<?>) source).clone();
+            copies.put(source, result);
+            return result;
+        }
+    }
+
+    private class CollectionPlan extends CopyPlan {
+        private final Function<Object, Object> factory;
+
+        CollectionPlan(Function<Object, Object> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            Collection<Object> result = (Collection<Object>) factory.apply(source);
+            copies.put(source, result);
+            for (Object item : (Collection<?>) source) {
+                result.add(copyValue(item, copies));
+            }
+            return result;
+        }
+    }
+
+    private class MapPlan extends CopyPlan {
+        private final Function<Object, Object> factory;
+
+        MapPlan(Function<Object, Object> factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            Map<Object, Object> result = (Map<Object, Object>) factory.apply(source);
+            copies.put(source, result);
+            if (result instanceof EnumMap) {
+                result.replaceAll((key, value) -> copyValue(value, copies));
+                return result;
+            }
+
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) source).entrySet()) {
+                result.put(copyValue(entry.getKey(), copies), copyValue(entry.getValue(), copies));
+            }
+            return result;
+        }
+    }
+
+    private class RecordPlan extends CopyPlan {
+        private final MethodHandle[] accessors;
+        private final MethodHandle constructor;
+
+        RecordPlan(Class<?> type) throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            RecordComponent[] components = type.getRecordComponents();
+            Class<?>[] componentTypes = new Class<?>[components.length];
+            accessors = new MethodHandle[components.length];
+            for (int i = 0; i < components.length; i++) {
+                componentTypes[i] = components[i].getType();
+                accessors[i] = lookup.unreflect(components[i].getAccessor()).asType(MethodType.methodType(Object.class, Object.class));
+            }
+
+            constructor = lookup.findConstructor(type, MethodType.methodType(void.class, componentTypes))
+                    .asSpreader(Object[].class, components.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+        }
+
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            copies.put(source, PENDING_RECORD);
+            Object[] values = new Object[accessors.length];
+            try {
+                for (int i = 0; i < accessors.length; i++) {
+                    values[i] = copyValue((Object) accessors[i].invokeExact(source), copies);
+                }
+                Object result = (Object) constructor.invokeExact(values);
+                copies.put(source, result);
+                return result;
+            } catch (IllegalStateException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(String.format("Failed to copy %s", source.getClass().getName()), e);
+            }
+        }
+    }
+
+    private class ObjectPlan extends CopyPlan {
+        private final MethodHandle instantiator;
+        private final FieldAccessor[] sharedFields;
+        private final FieldAccessor[] copiedFields;
+
+        ObjectPlan(Class<?> type) throws ReflectiveOperationException {
+            if (Modifier.isAbstract(type.getModifiers())) {
+                throw new InstantiationException(type.getName());
+            }
+            instantiator = MethodHandles.privateLookupIn(type, MethodHandles.lookup())
+                    .findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+
+            List<FieldAccessor> shared = new ArrayList<>();
+            List<FieldAccessor> copied = new ArrayList<>();
+            for (FieldAccessor accessor : FieldAccessor.of(type)) {
+                if (isImmutableField(accessor.getType())) {
+                    shared.add(accessor);
+                } else {
+                    copied.add(accessor);
+                }
+            }
+            sharedFields = shared.toArray(new FieldAccessor[0]);
+            copiedFields = copied.toArray(new FieldAccessor[0]);
+        }
+
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            Object result;
+            try {
+                result = (Object) instantiator.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException(String.format("Failed to instantiate %s", source.getClass().getName()), e);
+            }
+            copies.put(source, result);
+
+            for (FieldAccessor field : sharedFields) {
+                field.copy(result, source);
+            }
+            for (FieldAccessor field : copiedFields) {
+                field.set(result, copyValue(field.get(source), copies));
+            }
+            return result;
+        }
+    }
+
+    private class FallbackPlan extends CopyPlan {
+        @Override
+        Object copy(Object source, Map<Object, Object> copies) {
+            return fallbackCopier.copyInto(source, copies);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Estimate the retained heap size of an object graph, assuming a 64 bits JVM with compressed references.
+ * It's used to weigh the cached snapshots, so it's rough but cheap: the layout of each class is computed once,
+ * and the JDK collections and maps are estimated by their elements instead of their internal fields.
+ *
+ * @author meixuesong
+ */
+final class ObjectSizeEstimator {
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final int COLLECTION_ENTRY = 32;
+
+    private final ClassValue<Layout> layouts = new ClassValue<Layout>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            return createLayout(type);
+        }
+    };
+
+    /**
+     * @param root the root of the object graph
+     * @return the estimated bytes, the shared objects are counted only once and enums are not counted.
+     */
+    long estimate(Object root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        long size = 0;
+        if (root != null) {
+            pending.push(root);
+        }
+
+        while (!pending.isEmpty()) {
+            Object value = pending.pop();
+            if (!visited.add(value)) {
+                continue;
+            }
+
+            Class<?> type = value.getClass();
+            if (value instanceof String) {
+                size += align(HEADER + 12) + align(ARRAY_HEADER + ((String) value).length());
+            } else if (value instanceof Enum) {
+                continue;
+            } else if (type.isArray()) {
+                size += estimateArray(value, type, pending);
+            } else if (value instanceof Collection) {
+                Collection<?> collection = (Collection<?>) value;
+                size += align(HEADER + 4 * REFERENCE) + (long) collection.size() * COLLECTION_ENTRY;
+                for (Object item : collection) {
+                    pushIfNotNull(item, pending);
+                }
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                size += align(HEADER + 4 * REFERENCE) + (long) map.size() * COLLECTION_ENTRY;
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    pushIfNotNull(entry.getKey(), pending);
+                    pushIfNotNull(entry.getValue(), pending);
+                }
+            } else {
+                Layout layout = layouts.get(type);
+                size += layout.shallowSize;
+                for (FieldAccessor field : layout.references) {
+                    pushIfNotNull(field.get(value), pending);
+                }
+            }
+        }
+
+        return size;
+    }
+
+    private static long estimateArray(Object array, Class<?> type, Deque<Object> pending) {
+        int length = Array.getLength(array);
+        Class<?> componentType = type.getComponentType();
+        if (componentType.isPrimitive()) {
+            return align(ARRAY_HEADER + (long) length * sizeOf(componentType));
+        }
+
+        for (Object item : (Object[]) array) {
+            pushIfNotNull(item, pending);
+        }
+        return align(ARRAY_HEADER + (long) length * REFERENCE);
+    }
+
+    private static void pushIfNotNull(Object value, Deque<Object> pending) {
+        if (value != null) {
+            pending.push(value);
+        }
+    }
+
+    private static Layout createLayout(Class<?> type) {
+        long size = HEADER;
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += field.getType().isPrimitive() ? sizeOf(field.getType()) : REFERENCE;
+                }
+            }
+        }
+
+        List<FieldAccessor> references = new ArrayList<>();
+        if (!ValueTypes.isImmutable(type)) {
+            try {
+                for (FieldAccessor field : FieldAccessor.of(type)) {
+                    if (!field.isPrimitive()) {
+                        references.add(field);
+                    }
+                }
+            } catch (IllegalAccessException | RuntimeException e) {
+                references.clear();
+            }
+        }
+
+        return new Layout(align(size), references);
+    }
+
+    private static int sizeOf(Class<?> primitiveType) {
+        if (primitiveType == long.class || primitiveType == double.class) {
+            return 8;
+        }
+        if (primitiveType == int.class || primitiveType == float.class) {
+            return 4;
+        }
+        if (primitiveType == short.class || primitiveType == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    private static final class Layout {
+        private final long shallowSize;
+        private final List<FieldAccessor> references;
+
+        Layout(long shallowSize, List<FieldAccessor> references) {
+            this.shallowSize = shallowSize;
+            this.references = references;
+        }
+    }
+}
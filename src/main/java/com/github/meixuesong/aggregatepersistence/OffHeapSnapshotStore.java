@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+
+/**
+ * The off heap storage of the serialized snapshots. It allocates one direct buffer of the given capacity when it's
+ * created, and splits it into fixed size blocks. A snapshot takes as many blocks as it needs, and the blocks are
+ * returned to the store as soon as the aggregate is closed, so the off heap footprint is capped and measurable.
+ *
+ * If the store is full, the snapshot is kept in heap instead, see {@link #getRejectedCount()}. The blocks of an aggregate
+ * which is never closed are returned when it's garbage collected, but closing it returns them immediately.
+ *
+ * Share one store among the aggregates of a node, it's thread safe.
+ *
+ * <pre><code class='java'>
+ OffHeapSnapshotStore store = new OffHeapSnapshotStore(256 * 1024 * 1024);
+
+ try (SerializedAggregate&lt;Order&gt; aggregate = AggregateFactory.createOffHeapAggregate(order, store)) {
+     ...
+     repository.save(aggregate);
+ }
+ * </code></pre>
+ *
+ * @author meixuesong
+ */
+public class OffHeapSnapshotStore {
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final ByteBuffer memory;
+    private final int blockSize;
+    private final int[] freeBlocks;
+    private int freeCount;
+    private long rejectedCount;
+
+    /**
+     * @param capacity the off heap capacity in bytes
+     */
+    public OffHeapSnapshotStore(int capacity) {
+        this(capacity, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param capacity the off heap capacity in bytes
+     * @param blockSize the size of the blocks, a snapshot wastes less than one block.
+     */
+    public OffHeapSnapshotStore(int capacity, int blockSize) {
+        if (blockSize <= 0 || capacity < blockSize) {
+            throw new IllegalArgumentException(String.format("Invalid capacity %d or block size %d", capacity, blockSize));
+        }
+
+        this.blockSize = blockSize;
+        this.memory = ByteBuffer.allocateDirect(capacity / blockSize * blockSize);
+        this.freeCount = capacity / blockSize;
+        this.freeBlocks = new int[freeCount];
+        for (int i = 0; i < freeCount; i++) {
+            freeBlocks[i] = freeCount - 1 - i;
+        }
+    }
+
+    /**
+     * Copy the bytes to the off heap blocks.
+     * @param bytes the serialized snapshot
+     * @return the stored snapshot, or null if there are not enough free blocks.
+     */
+    SnapshotBytes store(byte[] bytes) {
+        int[] blocks = allocate((bytes.length + blockSize - 1) / blockSize);
+        if (blocks == null) {
+            return null;
+        }
+
+        for (int i = 0; i < blocks.length; i++) {
+            int offset = i * blockSize;
+            memory.put(blocks[i] * blockSize, bytes, offset, Math.min(blockSize, bytes.length - offset));
+        }
+
+        return new Entry(blocks, bytes.length);
+    }
+
+    public int getCapacity() {
+        return memory.capacity();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the bytes of the blocks which are in use.
+     */
+    public synchronized long getUsedBytes() {
+        return (long) (freeBlocks.length - freeCount) * blockSize;
+    }
+
+    /**
+     * @return how many snapshots are kept in heap because the store is full.
+     */
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    private synchronized int[] allocate(int count) {
+        if (count > freeCount) {
+            rejectedCount++;
+            return null;
+        }
+
+        int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = freeBlocks[--freeCount];
+        }
+
+        return blocks;
+    }
+
+    private synchronized void free(int[] blocks) {
+        for (int block : blocks) {
+            freeBlocks[freeCount++] = block;
+        }
+    }
+
+    /**
+     * The blocks of a snapshot. It's the cleaning action of the entry, so it must not reference the entry.
+     */
+    private static class Blocks implements Runnable {
+        private final OffHeapSnapshotStore store;
+        private int[] blocks;
+
+        Blocks(OffHeapSnapshotStore store, int[] blocks) {
+            this.store = store;
+            this.blocks = blocks;
+        }
+
+        synchronized int[] get() {
+            if (blocks == null) {
+                throw new IllegalStateException("The snapshot has been released.");
+            }
+            return blocks;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (blocks != null) {
+                store.free(blocks);
+                blocks = null;
+            }
+        }
+    }
+
+    /**
+     * The blocks are returned to the store by the cleaner if the entry becomes unreachable without being released,
+     * e.g. the aggregate is never closed.
+     */
+    private class Entry implements SnapshotBytes {
+        private final int length;
+        private final Blocks blocks;
+        private final Cleaner.Cleanable cleanable;
+
+        Entry(int[] blocks, int length) {
+            this.length = length;
+            this.blocks = new Blocks(OffHeapSnapshotStore.this, blocks);
+            this.cleanable = CLEANER.register(this, this.blocks);
+        }
+
+        @Override
+        public boolean contentEquals(byte[] bytes) {
+            int[] current = blocks.get();
+            if (bytes.length != length) {
+                return false;
+            }
+
+            for (int i = 0; i < current.length; i++) {
+                int offset = i * blockSize;
+                int size = Math.min(blockSize, length - offset);
+                if (memory.slice(current[i] * blockSize, size).mismatch(ByteBuffer.wrap(bytes, offset, size)) != -1) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public byte[] toByteArray() {
+            int[] current = blocks.get();
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < current.length; i++) {
+                int offset = i * blockSize;
+                memory.get(current[i] * blockSize, bytes, offset, Math.min(blockSize, length - offset));
+            }
+
+            return bytes;
+        }
+
+        @Override
+        public void release() {
+            cleanable.clean();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Build the partial update SQL of a data object class, which only updates the changed columns. One SQL string is
+ * built and interned per distinct {@link ChangedColumns}, so the same statement is reused for the same changes and the
+ * prepared statement cache keeps hitting. {@link #getShapeCount()} tells how many distinct statements there are.
+ *
+ * The columns are named by the fields in snake case, e.g. field birthDate is column birth_date. Override
+ * {@link #getColumnName(String)} for other naming rules.
+ *
+ * <pre><code class="java">
+ static final PartialUpdateBuilder PERSON_UPDATE = new PartialUpdateBuilder(PersonDO.class, "person", "id", "version");
+
+ ChangedColumns columns = DataObjectUtils.getChangedColumns(oldPerson, person);
+ PERSON_UPDATE.getSql(columns);
+ // update person set age = ?, address = ?, version = version + 1 where id = ? and version = ?
+ PERSON_UPDATE.getParameterFieldNames(columns);
+ // [age, address, id, version]
+ * </code></pre>
+ *
+ * It's thread safe.
+ *
+ * @author meixuesong
+ */
+public class PartialUpdateBuilder {
+    private final DataObjectSchema<?> schema;
+    private final String tableName;
+    private final String idField;
+    private final String versionField;
+    private final Map<ChangedColumns, Statement> statements = new ConcurrentHashMap<>();
+
+    /**
+     * @param dataObjectClass the data object class
+     * @param tableName the table name
+     * @param idField the field of the primary key
+     */
+    public PartialUpdateBuilder(Class<?> dataObjectClass, String tableName, String idField) {
+        this(dataObjectClass, tableName, idField, null);
+    }
+
+    /**
+     * @param dataObjectClass the data object class
+     * @param tableName the table name
+     * @param idField the field of the primary key
+     * @param versionField the version field for optimistic lock, null if there is no version.
+     * @throws IllegalArgumentException if the class has no such id or version field.
+     */
+    public PartialUpdateBuilder(Class<?> dataObjectClass, String tableName, String idField, String versionField) {
+        this.schema = DataObjectSchema.of(dataObjectClass);
+        this.tableName = tableName;
+        this.idField = checkField(idField);
+        this.versionField = versionField == null ? null : checkField(versionField);
+    }
+
+    private String checkField(String fieldName) {
+        if (schema.indexOf(fieldName) < 0) {
+            throw new IllegalArgumentException(String.format("There is no field %s in %s.", fieldName, schema.getType().getName()));
+        }
+        return fieldName;
+    }
+
+    /**
+     * @param columns the changed columns, the id and version fields are never updated even if they are changed.
+     * @return the interned update SQL, the parameters are in the order of {@link #getParameterFieldNames(ChangedColumns)}.
+     * @throws IllegalArgumentException if the columns belong to another class, or no column is changed.
+     */
+    public String getSql(ChangedColumns columns) {
+        return getStatement(columns).sql;
+    }
+
+    /**
+     * @param columns the changed columns
+     * @return the field names of the SQL parameters: the changed fields, the id field and the version field.
+     */
+    public List<String> getParameterFieldNames(ChangedColumns columns) {
+        return getStatement(columns).parameterFieldNames;
+    }
+
+    /**
+     * @return the number of distinct statements which have been built.
+     */
+    public int getShapeCount() {
+        return statements.size();
+    }
+
+    /**
+     * @param fieldName the field name
+     * @return the column name, the field name in snake case by default.
+     */
+    protected String getColumnName(String fieldName) {
+        StringBuilder result = new StringBuilder(fieldName.length() + 4);
+        for (int i = 0; i < fieldName.length(); i++) {
+            char c = fieldName.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0) {
+                    result.append('_');
+                }
+                result.append(Character.toLowerCase(c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private Statement getStatement(ChangedColumns columns) {
+        if (columns.getDataObjectClass() != schema.getType()) {
+            throw new IllegalArgumentException(String.format("The changed columns of %s can't be used to update %s.",
+                    columns.getDataObjectClass().getName(), schema.getType().getName()));
+        }
+
+        ChangedColumns key = versionField == null ? columns.without(idField) : columns.without(idField, versionField);
+        Statement statement = statements.get(key);
+        if (statement == null) {
+            statement = statements.computeIfAbsent(key, this::createStatement);
+        }
+        return statement;
+    }
+
+    private Statement createStatement(ChangedColumns columns) {
+        List<String> changedFields = columns.getFieldNames();
+        if (changedFields.isEmpty()) {
+            throw new IllegalArgumentException(String.format("There is no changed column of %s to update.", tableName));
+        }
+
+        StringBuilder sql = new StringBuilder("update ").append(tableName).append(" set ");
+        List<String> parameters = new ArrayList<>(changedFields);
+        for (int i = 0; i < changedFields.size(); i++) {
+            sql.append(i == 0 ? "" : ", ").append(getColumnName(changedFields.get(i))).append(" = ?");
+        }
+        if (versionField != null) {
+            String versionColumn = getColumnName(versionField);
+            sql.append(", ").append(versionColumn).append(" = ").append(versionColumn).append(" + 1");
+        }
+
+        sql.append(" where ").append(getColumnName(idField)).append(" = ?");
+        parameters.add(idField);
+        if (versionField != null) {
+            sql.append(" and ").append(getColumnName(versionField)).append(" = ?");
+            parameters.add(versionField);
+        }
+
+        return new Statement(sql.toString(), Collections.unmodifiableList(parameters));
+    }
+
+    private static class Statement {
+        private final String sql;
+        private final List<String> parameterFieldNames;
+
+        Statement(String sql, List<String> parameterFieldNames) {
+            this.sql = sql;
+            this.parameterFieldNames = parameterFieldNames;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * The aggregate for queries, which is never saved. It keeps no snapshot, so creating it costs nothing.
+ * isChanged, getRootSnapshot and the delta APIs throw UnsupportedOperationException, so an attempt to save it
+ * fails fast. Repositories can also check {@link #isReadOnly()}.
+ *
+ * It can keep the fingerprint of the root optionally, then {@link #assertUnmodified()} detects accidental changes,
+ * e.g. in tests.
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ */
+public class ReadOnlyAggregate<R extends Versionable> extends Aggregate<R> {
+    private final StructuralHasher hasher;
+    private final Fingerprint fingerprint;
+
+    /**
+     * @param hasher the hasher to fingerprint the root, null to keep no fingerprint.
+     */
+    ReadOnlyAggregate(R root, StructuralHasher hasher, DeepComparator deepComparator) {
+        super(root, null, null, deepComparator);
+        this.hasher = hasher;
+        this.fingerprint = hasher == null ? null : hasher.hash(root);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * Check the root is not modified since the aggregate was created.
+     * @throws IllegalStateException if the root is modified.
+     * @throws UnsupportedOperationException if the aggregate is created without fingerprint.
+     */
+    public void assertUnmodified() {
+        if (fingerprint == null) {
+            throw new UnsupportedOperationException("The read-only aggregate is created without fingerprint.");
+        }
+        if (!fingerprint.equals(hasher.hash(root))) {
+            throw new IllegalStateException(String.format("The read-only aggregate %s has been modified.", root.getClass().getName()));
+        }
+    }
+
+    @Override
+    public boolean isSnapshotAvailable() {
+        return false;
+    }
+
+    @Override
+    public R getRootSnapshot() {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isChanged() {
+        throw readOnly();
+    }
+
+    @Override
+    public <T> Collection<T> findNewEntities(Function<R, Collection<T>> getCollection, Predicate<T> isNew) {
+        throw readOnly();
+    }
+
+    @Override
+    public <T, ID> Collection<T> findNewEntitiesById(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        throw readOnly();
+    }
+
+    @Override
+    public <T, ID> Collection<T> findChangedEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        throw readOnly();
+    }
+
+    @Override
+    public <T, ID> Collection<ChangedEntity<T>> findChangedEntitiesWithOldValues(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        throw readOnly();
+    }
+
+    @Override
+    public <T, ID> Collection<T> findRemovedEntities(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        throw readOnly();
+    }
+
+    @Override
+    public <T, ID> AggregateDiff<T, ID> diff(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        throw readOnly();
+    }
+
+    @Deprecated
+    @Override
+    public <T, ID> Map<DeltaType, Collection<T>> findCollectionDelta(Function<R, Collection<T>> getCollection, Function<T, ID> getId) {
+        throw readOnly();
+    }
+
+    @Override
+    public void commit() {
+        throw readOnly();
+    }
+
+    private UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException(String.format("The aggregate of %s is read-only, it can't be saved.", root.getClass().getName()));
+    }
+}
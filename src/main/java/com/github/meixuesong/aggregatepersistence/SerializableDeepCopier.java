@@ -16,7 +16,18 @@ package com.github.meixuesong.aggregatepersistence;
 import org.apache.commons.lang3.SerializationException;
 import org.apache.commons.lang3.SerializationUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This deepcopier use Apache common lang to clone object. Objects need to implement Serializable interface
@@ -37,4 +48,152 @@ public class SerializableDeepCopier implements DeepCopier{
         }
         throw new IllegalArgumentException(String.format("%s should be a serializable object.", object.getClass().getName()));
     }
+
+    /**
+     * Copy the object into the copies of a larger copy, e.g. an object which {@link MethodHandleDeepCopier} can't
+     * plan. The objects which have been copied are not serialized, their copies are referenced instead, and the
+     * copies of all the serialized objects are added, so the references shared with the rest of the graph are kept.
+     * @param object the object to be copied
+     * @param copies the objects which have been copied, mapped to their copies, the new copies are added.
+     * @return the copy
+     * @throws IllegalArgumentException if the object is not serializable.
+     * @throws IllegalStateException if a copied object is referenced before its copy is created, e.g. a record whose
+     * components are being copied.
+     */
+    Object copyInto(Object object, Map<Object, Object> copies) {
+        if (!(object instanceof Serializable)) {
+            throw new IllegalArgumentException(String.format("%s should be a serializable object.", object.getClass().getName()));
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            List<Object> serialized = new ArrayList<>();
+            List<Object> referenced = new ArrayList<>();
+            Object[] sources;
+            try (CopiesOutputStream out = new CopiesOutputStream(bytes, copies, serialized, referenced)) {
+                out.writeObject(object);
+                sources = serialized.toArray();
+                out.completed = true;
+                out.writeObject(sources);
+            }
+
+            try (CopiesInputStream in = new CopiesInputStream(new ByteArrayInputStream(bytes.toByteArray()),
+                    object.getClass().getClassLoader(), copies, referenced)) {
+                Object result = in.readObject();
+                Object[] results = (Object[]) in.readObject();
+                for (int i = 0; i < sources.length; i++) {
+                    copies.putIfAbsent(sources[i], results[i]);
+                }
+                return result;
+            }
+        } catch (IOException | ClassNotFoundException exception) {
+            throw new IllegalArgumentException(String.format("%s should be a serializable object.", object.getClass().getName()), exception);
+        }
+    }
+
+    /**
+     * Serialize the object to a compact byte array, which can be kept as the snapshot and deserialized later.
+     * @param object the object to be serialized
+     * @return the serialized bytes
+     */
+    public byte[] serialize(Object object) {
+        if (object instanceof Serializable) {
+            try {
+                return SerializationUtils.serialize((Serializable) object);
+            } catch (SerializationException exception) {
+                throw new IllegalArgumentException(String.format("%s should be a serializable object.", object.getClass().getName()), exception);
+            }
+        }
+        throw new IllegalArgumentException(String.format("%s should be a serializable object.", object.getClass().getName()));
+    }
+
+    /**
+     * Deserialize the bytes created by {@link #serialize(Object)}.
+     * @param bytes the serialized bytes
+     * @param <T> the type
+     * @return the new instance
+     */
+    public <T> T deserialize(byte[] bytes) {
+        return SerializationUtils.deserialize(bytes);
+    }
+
+    /**
+     * The reference to an object which has been copied, it's resolved to the copy when it's deserialized.
+     */
+    private static final class CopiedReference implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int index;
+
+        private CopiedReference(int index) {
+            this.index = index;
+        }
+    }
+
+    private static final class CopiesOutputStream extends ObjectOutputStream {
+        private final Map<Object, Object> copies;
+        private final List<Object> serialized;
+        private final List<Object> referenced;
+        private boolean completed;
+
+        private CopiesOutputStream(OutputStream out, Map<Object, Object> copies, List<Object> serialized,
+                                   List<Object> referenced) throws IOException {
+            super(out);
+            this.copies = copies;
+            this.serialized = serialized;
+            this.referenced = referenced;
+            enableReplaceObject(true);
+        }
+
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (completed) {
+                return obj;
+            }
+            if (copies.containsKey(obj)) {
+                referenced.add(obj);
+                return new CopiedReference(referenced.size() - 1);
+            }
+
+            serialized.add(obj);
+            return obj;
+        }
+    }
+
+    private static final class CopiesInputStream extends ObjectInputStream {
+        private final ClassLoader classLoader;
+        private final Map<Object, Object> copies;
+        private final List<Object> referenced;
+
+        private CopiesInputStream(InputStream in, ClassLoader classLoader, Map<Object, Object> copies,
+                                  List<Object> referenced) throws IOException {
+            super(in);
+            this.classLoader = classLoader;
+            this.copies = copies;
+            this.referenced = referenced;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, classLoader);
+            } catch (ClassNotFoundException exception) {
+                return super.resolveClass(desc);
+            }
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            if (!(obj instanceof CopiedReference)) {
+                return obj;
+            }
+
+            Object source = referenced.get(((CopiedReference) obj).index);
+            Object copy = copies.get(source);
+            if (!source.getClass().isInstance(copy)) {
+                throw new IllegalStateException(String.format("Failed to copy the cyclic reference to %s", source.getClass().getName()));
+            }
+            return copy;
+        }
+    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+/**
+ * The aggregate which keeps the snapshot as serialized bytes. A byte array is much smaller than the object graph,
+ * and it's cheap for GC because it has no references to trace.
+ *
+ * The snapshot is deserialized only when it's required at the first time, e.g. {@link #getRootSnapshot()},
+ * findChangedEntitiesWithOldValues or findRemovedEntities. {@link #isChanged()} serializes the current root and
+ * compares the bytes first, the snapshot is deserialized and deep compared only if the bytes are different,
+ * because different bytes don't always mean changed values, e.g. BigDecimal 1.0 and 1.00.
+ *
+ * The bytes can be kept off heap by {@link OffHeapSnapshotStore}, close the aggregate to release them when the
+ * aggregate is saved or discarded.
+ *
+ * The root should be serializable, like {@link SerializableDeepCopier}.
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ */
+public class SerializedAggregate<R extends Versionable> extends Aggregate<R> implements AutoCloseable {
+    private final SerializableDeepCopier serializer;
+    private final OffHeapSnapshotStore store;
+    private SnapshotBytes snapshotBytes;
+
+    SerializedAggregate(R root, SerializableDeepCopier serializer, DeepComparator deepComparator) {
+        this(root, serializer, null, deepComparator);
+    }
+
+    /**
+     * @param store the off heap store, null to keep the bytes in heap.
+     */
+    SerializedAggregate(R root, SerializableDeepCopier serializer, OffHeapSnapshotStore store, DeepComparator deepComparator) {
+        super(root, null, null, deepComparator);
+        this.serializer = serializer;
+        this.store = store;
+        this.snapshotBytes = serialize(root);
+    }
+
+    /**
+     * Serialize the root as the snapshot, and record the metrics and the JFR event of the copy if they are enabled.
+     */
+    private SnapshotBytes serialize(R root) {
+        AggregateMetrics metrics = AggregateFactory.getMetrics();
+        AggregateSnapshotEvent event = new AggregateSnapshotEvent();
+        byte[] bytes;
+        if (metrics == null && !event.isEnabled()) {
+            bytes = serializer.serialize(root);
+        } else {
+            long start = System.nanoTime();
+            event.begin();
+            bytes = serializer.serialize(root);
+            event.end();
+            int length = bytes.length;
+            recordCopy(metrics, event, root.getClass(), serializer, System.nanoTime() - start, () -> length);
+        }
+        SnapshotBytes stored = store == null ? null : store.store(bytes);
+        return stored == null ? SnapshotBytes.onHeap(bytes) : stored;
+    }
+
+    /**
+     * The snapshot is deserialized at the first time, and the bytes are released.
+     * @return Aggregate root snapshot
+     * @throws IllegalStateException if the aggregate is closed before the snapshot is deserialized.
+     */
+    @Override
+    public R getRootSnapshot() {
+        if (snapshot == null) {
+            if (snapshotBytes == null) {
+                throw new IllegalStateException("The aggregate has been closed.");
+            }
+            snapshot = serializer.deserialize(snapshotBytes.toByteArray());
+            releaseSnapshotBytes();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return false if the aggregate has been closed before the snapshot is deserialized.
+     */
+    @Override
+    public boolean isSnapshotAvailable() {
+        return snapshot != null || snapshotBytes != null;
+    }
+
+    @Override
+    public boolean isChanged() {
+        if (snapshotBytes != null && snapshotBytes.contentEquals(serializer.serialize(root))) {
+            return false;
+        }
+
+        return super.isChanged();
+    }
+
+    /**
+     * Serialize the current root as the new snapshot after the aggregate is saved.
+     */
+    @Override
+    public void commit() {
+        clearDiffs();
+        releaseSnapshotBytes();
+        snapshot = null;
+        snapshotBytes = serialize(root);
+    }
+
+    /**
+     * Release the snapshot bytes, e.g. return the off heap blocks to the store. Call it when the aggregate is saved
+     * or discarded. The snapshot is unavailable afterwards unless it has been deserialized.
+     */
+    @Override
+    public void close() {
+        releaseSnapshotBytes();
+    }
+
+    private void releaseSnapshotBytes() {
+        if (snapshotBytes != null) {
+            snapshotBytes.release();
+            snapshotBytes = null;
+        }
+    }
+
+    /**
+     * @return whether the snapshot has been deserialized.
+     */
+    public boolean isSnapshotMaterialized() {
+        return snapshot != null;
+    }
+}
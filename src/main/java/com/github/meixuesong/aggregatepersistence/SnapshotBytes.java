@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Arrays;
+
+/**
+ * The serialized snapshot kept by {@link SerializedAggregate}, either in heap or off heap.
+ *
+ * @author meixuesong
+ */
+interface SnapshotBytes {
+    /**
+     * @param bytes the serialized bytes of the current root
+     * @return true if the snapshot has exactly the same bytes
+     */
+    boolean contentEquals(byte[] bytes);
+
+    byte[] toByteArray();
+
+    /**
+     * Release the memory of the snapshot. It can be called more than once.
+     */
+    void release();
+
+    static SnapshotBytes onHeap(byte[] bytes) {
+        return new SnapshotBytes() {
+            @Override
+            public boolean contentEquals(byte[] other) {
+                return Arrays.equals(bytes, other);
+            }
+
+            @Override
+            public byte[] toByteArray() {
+                return bytes;
+            }
+
+            @Override
+            public void release() {
+            }
+        };
+    }
+}
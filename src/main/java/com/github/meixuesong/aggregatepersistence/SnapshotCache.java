@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * The second level cache of the aggregate snapshots, for the hot aggregates which are loaded again and again.
+ *
+ * The snapshots are keyed by the aggregate type and id, and they are valid for the version they were loaded at.
+ * When the aggregate is loaded at the same version, the cached snapshot is shared by the new aggregate, and the root
+ * is a fresh copy of it, so it neither loads the root from DB nor copies the snapshot. The cached snapshots are never
+ * handed out as roots, so they are never changed.
+ *
+ * <pre><code class='java'>
+ SnapshotCache cache = new SnapshotCache(64 * 1024 * 1024);
+
+ public Aggregate&lt;Contract&gt; findById(String id) {
+     int version = contractMapper.selectVersion(id);
+     return cache.getAggregate(Contract.class, id, version, () -&gt; loadContract(id));
+ }
+ * </code></pre>
+ *
+ * The total weight of the snapshots is bounded, the weight is the estimated bytes by default. The least recently used
+ * snapshots are evicted first, and a new snapshot is admitted only if it's accessed more frequently recently than the
+ * snapshot it would evict. It's thread safe.
+ *
+ * @author meixuesong
+ */
+public class SnapshotCache {
+    private final AggregateContext context;
+    private final long maximumWeight;
+    private final ToLongFunction<Object> weigher;
+    private final FrequencySketch sketch;
+    private final LinkedHashMap<List<Object>, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+    private long weight;
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long rejectionCount;
+
+    /**
+     * @param maximumWeight the maximum estimated bytes of the cached snapshots
+     */
+    public SnapshotCache(long maximumWeight) {
+        this(maximumWeight, new ObjectSizeEstimator()::estimate, 1024);
+    }
+
+    /**
+     * @param maximumWeight the maximum weight of the cached snapshots
+     * @param weigher the weigher of the snapshots
+     * @param expectedEntries the expected number of the cached snapshots, used to size the frequency sketch
+     */
+    public SnapshotCache(long maximumWeight, ToLongFunction<Object> weigher, int expectedEntries) {
+        this(maximumWeight, weigher, expectedEntries, null);
+    }
+
+    /**
+     * @param maximumWeight the maximum weight of the cached snapshots
+     * @param weigher the weigher of the snapshots
+     * @param expectedEntries the expected number of the cached snapshots, used to size the frequency sketch
+     * @param context the context which creates the aggregates, null to use the default context of {@link AggregateFactory}.
+     */
+    public SnapshotCache(long maximumWeight, ToLongFunction<Object> weigher, int expectedEntries, AggregateContext context) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("maximumWeight should be positive.");
+        }
+
+        this.context = context;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * Get the aggregate at the given version. Use the cached snapshot if it's loaded at the same version,
+     * otherwise load the root and cache its snapshot.
+     *
+     * @param type the aggregate root type
+     * @param id the aggregate id
+     * @param version the current version of the aggregate, e.g. selected from DB
+     * @param loader load the aggregate root from DB
+     * @param <R> The type of aggregate root
+     * @return the aggregate object
+     */
+    public <R extends Versionable> Aggregate<R> getAggregate(Class<R> type, Object id, int version, Supplier<R> loader) {
+        List<Object> key = Arrays.asList(type, id);
+        R snapshot = (R) getSnapshot(key, version);
+        AggregateContext aggregateContext = context == null ? AggregateFactory.getDefaultContext() : context;
+        if (snapshot != null) {
+            DeepCopier copier = aggregateContext.getConfig().getCopier(snapshot.getClass());
+            return aggregateContext.createAggregate(Aggregate.copy(snapshot, copier, null), snapshot);
+        }
+
+        R root = loader.get();
+        snapshot = Aggregate.copy(root, aggregateContext.getConfig().getCopier(root.getClass()), null);
+        if (root.getVersion() != Versionable.NEW_VERSION) {
+            putSnapshot(key, root.getVersion(), snapshot);
+        }
+        return aggregateContext.createAggregate(root, snapshot);
+    }
+
+    /**
+     * Remove the cached snapshot of the aggregate, e.g. when it's deleted.
+     * @param type the aggregate root type
+     * @param id the aggregate id
+     */
+    public synchronized void invalidate(Class<?> type, Object id) {
+        Entry entry = entries.remove(Arrays.asList(type, id));
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return the statistics since the cache is created.
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hitCount, missCount, evictionCount, rejectionCount, entries.size(), weight);
+    }
+
+    private synchronized Object getSnapshot(List<Object> key, int version) {
+        sketch.increment(key);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.version == version) {
+            hitCount++;
+            return entry.snapshot;
+        }
+
+        missCount++;
+        return null;
+    }
+
+    private void putSnapshot(List<Object> key, int version, Object snapshot) {
+        long snapshotWeight = weigher.applyAsLong(snapshot);
+        synchronized (this) {
+            Entry old = entries.remove(key);
+            if (old != null) {
+                weight -= old.weight;
+            }
+
+            if (snapshotWeight > maximumWeight || !admit(key, snapshotWeight)) {
+                rejectionCount++;
+                return;
+            }
+
+            entries.put(key, new Entry(version, snapshot, snapshotWeight));
+            weight += snapshotWeight;
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the new entry fits. It's admitted only if it's accessed more
+     * frequently than every victim.
+     */
+    private boolean admit(List<Object> key, long snapshotWeight) {
+        int frequency = sketch.frequency(key);
+        long freed = 0;
+        Iterator<Map.Entry<List<Object>, Entry>> iterator = entries.entrySet().iterator();
+        while (weight - freed + snapshotWeight > maximumWeight) {
+            Map.Entry<List<Object>, Entry> victim = iterator.next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return false;
+            }
+            freed += victim.getValue().weight;
+        }
+
+        iterator = entries.entrySet().iterator();
+        while (freed > 0) {
+            Entry victim = iterator.next().getValue();
+            iterator.remove();
+            freed -= victim.weight;
+            weight -= victim.weight;
+            evictionCount++;
+        }
+
+        return true;
+    }
+
+    private static final class Entry {
+        private final int version;
+        private final Object snapshot;
+        private final long weight;
+
+        Entry(int version, Object snapshot, long weight) {
+            this.version = version;
+            this.snapshot = snapshot;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * The statistics of the snapshot cache.
+     */
+    public static final class Stats {
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long rejectionCount;
+        private final int size;
+        private final long weight;
+
+        Stats(long hitCount, long missCount, long evictionCount, long rejectionCount, int size, long weight) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.rejectionCount = rejectionCount;
+            this.size = size;
+            this.weight = weight;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * @return the hit rate, 1.0 if there is no request.
+         */
+        public double getHitRate() {
+            long requestCount = hitCount + missCount;
+            return requestCount == 0 ? 1.0 : (double) hitCount / requestCount;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * @return how many snapshots are not cached because they are too heavy or not frequent enough.
+         */
+        public long getRejectionCount() {
+            return rejectionCount;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("SnapshotCache.Stats{hitCount=%d, missCount=%d, evictionCount=%d, rejectionCount=%d, size=%d, weight=%d}",
+                    hitCount, missCount, evictionCount, rejectionCount, size, weight);
+        }
+    }
+}
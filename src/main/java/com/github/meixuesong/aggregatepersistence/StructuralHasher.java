@@ -0,0 +1,442 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import org.apache.commons.lang3.SerializationUtils;
+
+import java.io.Serializable;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.RecordComponent;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compute the 128 bits structural hash of an object graph. Two graphs which have the same structure and the same
+ * values have the same fingerprint, so it can be kept instead of the snapshot to recognize whether an object changed.
+ *
+ * The hash follows the field plans of the objects like {@link MethodHandleDeepComparator}: transient and static fields
+ * are skipped, lists are ordered, other collections and maps are unordered, and BigDecimal values equal by compareTo
+ * have the same hash. But float and double values are hashed exactly, they are not compared with an epsilon.
+ *
+ * It's a fast non-cryptographic hash, and the fingerprints are only valid in the same JVM, don't persist them.
+ *
+ * @author meixuesong
+ */
+final class StructuralHasher {
+    private static final long NULL = 0x6E756C6CL;
+    private static final long BACK_REFERENCE = 0x6261636BL;
+    private static final long LIST = 0x6C697374L;
+    private static final long COLLECTION = 0x636F6C6CL;
+    private static final long MAP = 0x6D6170L;
+
+    private final ClassValue<HashPlan> plans = new ClassValue<HashPlan>() {
+        @Override
+        protected HashPlan computeValue(Class<?> type) {
+            return createPlan(type);
+        }
+    };
+
+    /**
+     * @param value the root of the object graph, it can be null.
+     * @return the fingerprint of the object graph
+     * @throws IllegalArgumentException if an object of the graph can not be read field by field and is not serializable.
+     */
+    Fingerprint hash(Object value) {
+        State state = new State();
+        hash(value, state, new IdentityHashMap<>());
+        return state.finish();
+    }
+
+    private void hash(Object value, State state, Map<Object, Integer> path) {
+        if (value == null) {
+            state.putLong(NULL);
+            return;
+        }
+
+        HashPlan plan = plans.get(value.getClass());
+        if (plan.isLeaf()) {
+            plan.hash(value, state, path);
+            return;
+        }
+
+        Integer depth = path.get(value);
+        if (depth != null) {
+            state.putLong(BACK_REFERENCE);
+            state.putLong(path.size() - depth);
+            return;
+        }
+
+        path.put(value, path.size());
+        try {
+            plan.hash(value, state, path);
+        } finally {
+            path.remove(value);
+        }
+    }
+
+    private HashPlan createPlan(Class<?> type) {
+        long typeHash = State.hashString(type.getName());
+
+        if (type == String.class) {
+            return (LeafPlan) (value, state) -> state.putString((String) value);
+        }
+
+        if (type == BigDecimal.class) {
+            return (LeafPlan) (value, state) -> {
+                BigDecimal decimal = ((BigDecimal) value).stripTrailingZeros();
+                state.putLong(typeHash);
+                state.putLong(decimal.scale());
+                putBigInteger(decimal.unscaledValue(), state);
+            };
+        }
+
+        if (type == BigInteger.class) {
+            return (LeafPlan) (value, state) -> {
+                state.putLong(typeHash);
+                putBigInteger((BigInteger) value, state);
+            };
+        }
+
+        if (type == Boolean.class || type == Character.class || Number.class.isAssignableFrom(type) && ValueTypes.isImmutable(type)) {
+            return (LeafPlan) (value, state) -> {
+                state.putLong(typeHash);
+                putPrimitive(value, state);
+            };
+        }
+
+        if (type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum())) {
+            long enumHash = State.hashString(type.isEnum() ? type.getName() : type.getSuperclass().getName());
+            return (LeafPlan) (value, state) -> {
+                state.putLong(enumHash);
+                state.putString(((Enum<?>) value).name());
+            };
+        }
+
+        if (Date.class.isAssignableFrom(type)) {
+            return (LeafPlan) (value, state) -> {
+                state.putLong(((Date) value).getTime());
+                if (value instanceof Timestamp) {
+                    state.putLong(((Timestamp) value).getNanos());
+                }
+            };
+        }
+
+        if (type == Class.class) {
+            return (LeafPlan) (value, state) -> state.putString(((Class<?>) value).getName());
+        }
+
+        if (ValueTypes.isImmutable(type) || Number.class.isAssignableFrom(type)) {
+            return (LeafPlan) (value, state) -> {
+                state.putLong(typeHash);
+                state.putString(value.toString());
+            };
+        }
+
+        if (type.isArray()) {
+            return type.getComponentType().isPrimitive() ? new PrimitiveArrayPlan(typeHash) : new ObjectArrayPlan();
+        }
+
+        if (List.class.isAssignableFrom(type)) {
+            return new ListPlan();
+        }
+
+        if (Collection.class.isAssignableFrom(type)) {
+            return new UnorderedCollectionPlan();
+        }
+
+        if (Map.class.isAssignableFrom(type)) {
+            return new MapPlan();
+        }
+
+        try {
+            return type.isRecord() ? new RecordPlan(type, typeHash) : new ObjectPlan(type, typeHash);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return new SerializedPlan(type, typeHash);
+        }
+    }
+
+    private static void putPrimitive(Object value, State state) {
+        if (value instanceof Double || value instanceof Float) {
+            state.putLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Number) {
+            state.putLong(((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            state.putLong((Boolean) value ? 1 : 0);
+        } else {
+            state.putLong((Character) value);
+        }
+    }
+
+    private static void putBigInteger(BigInteger value, State state) {
+        if (value.bitLength() < Long.SIZE) {
+            state.putLong(value.longValue());
+        } else {
+            state.putBytes(value.toByteArray());
+        }
+    }
+
+    private interface HashPlan {
+        void hash(Object value, State state, Map<Object, Integer> path);
+
+        default boolean isLeaf() {
+            return false;
+        }
+    }
+
+    private interface LeafPlan extends HashPlan {
+        void hash(Object value, State state);
+
+        @Override
+        default void hash(Object value, State state, Map<Object, Integer> path) {
+            hash(value, state);
+        }
+
+        @Override
+        default boolean isLeaf() {
+            return true;
+        }
+    }
+
+    private static class PrimitiveArrayPlan implements HashPlan {
+        private final long typeHash;
+
+        PrimitiveArrayPlan(long typeHash) {
+            this.typeHash = typeHash;
+        }
+
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            state.putLong(typeHash);
+            if (value instanceof byte[]) {
+                state.putBytes((byte[]) value);
+                return;
+            }
+
+            int length = Array.getLength(value);
+            state.putLong(length);
+            for (int i = 0; i < length; i++) {
+                putPrimitive(Array.get(value, i), state);
+            }
+        }
+    }
+
+    private class ObjectArrayPlan implements HashPlan {
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            Object[] array = (Object[]) value;
+            state.putLong(LIST);
+            state.putLong(array.length);
+            for (Object item : array) {
+                StructuralHasher.this.hash(item, state, path);
+            }
+        }
+    }
+
+    private class ListPlan implements HashPlan {
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            List<?> list = (List<?>) value;
+            state.putLong(LIST);
+            state.putLong(list.size());
+            for (Object item : list) {
+                StructuralHasher.this.hash(item, state, path);
+            }
+        }
+    }
+
+    /**
+     * The items are hashed separately and summed up, so the result doesn't depend on the iteration order.
+     */
+    private class UnorderedCollectionPlan implements HashPlan {
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            long high = 0;
+            long low = 0;
+            for (Object item : (Collection<?>) value) {
+                State itemState = new State();
+                StructuralHasher.this.hash(item, itemState, path);
+                Fingerprint fingerprint = itemState.finish();
+                high += fingerprint.getHigh();
+                low += fingerprint.getLow();
+            }
+
+            state.putLong(COLLECTION);
+            state.putLong(((Collection<?>) value).size());
+            state.putLong(high);
+            state.putLong(low);
+        }
+    }
+
+    private class MapPlan implements HashPlan {
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            long high = 0;
+            long low = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                State entryState = new State();
+                StructuralHasher.this.hash(entry.getKey(), entryState, path);
+                StructuralHasher.this.hash(entry.getValue(), entryState, path);
+                Fingerprint fingerprint = entryState.finish();
+                high += fingerprint.getHigh();
+                low += fingerprint.getLow();
+            }
+
+            state.putLong(MAP);
+            state.putLong(((Map<?, ?>) value).size());
+            state.putLong(high);
+            state.putLong(low);
+        }
+    }
+
+    private class ObjectPlan implements HashPlan {
+        private final long typeHash;
+        private final List<FieldAccessor> fields;
+
+        ObjectPlan(Class<?> type, long typeHash) throws IllegalAccessException {
+            this.typeHash = typeHash;
+            this.fields = FieldAccessor.of(type);
+        }
+
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            state.putLong(typeHash);
+            for (FieldAccessor field : fields) {
+                if (field.isPrimitive()) {
+                    putPrimitive(field.get(value), state);
+                } else {
+                    StructuralHasher.this.hash(field.get(value), state, path);
+                }
+            }
+        }
+    }
+
+    private class RecordPlan implements HashPlan {
+        private final long typeHash;
+        private final List<Method> accessors = new ArrayList<>();
+
+        RecordPlan(Class<?> type, long typeHash) {
+            this.typeHash = typeHash;
+            for (RecordComponent component : type.getRecordComponents()) {
+                Method accessor = component.getAccessor();
+                accessor.setAccessible(true);
+                accessors.add(accessor);
+            }
+        }
+
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            state.putLong(typeHash);
+            for (Method accessor : accessors) {
+                try {
+                    StructuralHasher.this.hash(accessor.invoke(value), state, path);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(String.format("Failed to read %s", accessor), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The plan of the classes which can not be read field by field, e.g. the JDK internal classes.
+     */
+    private static class SerializedPlan implements HashPlan {
+        private final Class<?> type;
+        private final long typeHash;
+
+        SerializedPlan(Class<?> type, long typeHash) {
+            this.type = type;
+            this.typeHash = typeHash;
+        }
+
+        @Override
+        public void hash(Object value, State state, Map<Object, Integer> path) {
+            if (!(value instanceof Serializable)) {
+                throw new IllegalArgumentException(String.format("%s should be a serializable object.", type.getName()));
+            }
+
+            state.putLong(typeHash);
+            state.putBytes(SerializationUtils.serialize((Serializable) value));
+        }
+    }
+
+    /**
+     * Two 64 bits lanes which are mixed with each other, the final result is 128 bits.
+     */
+    static final class State {
+        private long h1 = 0x9E3779B97F4A7C15L;
+        private long h2 = 0xC2B2AE3D27D4EB4FL;
+
+        void putLong(long value) {
+            long k = mix(value);
+            h1 = Long.rotateLeft(h1 ^ k, 31) * 0x87C37B91114253D5L + h2;
+            h2 = Long.rotateLeft(h2 ^ (k * 0x4CF5AD432745937FL), 33) * 0x52DCE729L + h1;
+        }
+
+        void putString(String value) {
+            int length = value.length();
+            putLong(length);
+            int i = 0;
+            for (; i + 4 <= length; i += 4) {
+                putLong((long) value.charAt(i) << 48 | (long) value.charAt(i + 1) << 32
+                        | (long) value.charAt(i + 2) << 16 | value.charAt(i + 3));
+            }
+            long tail = 0;
+            for (; i < length; i++) {
+                tail = tail << 16 | value.charAt(i);
+            }
+            putLong(tail);
+        }
+
+        void putBytes(byte[] value) {
+            putLong(value.length);
+            int i = 0;
+            for (; i + 8 <= value.length; i += 8) {
+                long chunk = 0;
+                for (int j = 0; j < 8; j++) {
+                    chunk = chunk << 8 | (value[i + j] & 0xFF);
+                }
+                putLong(chunk);
+            }
+            long tail = 0;
+            for (; i < value.length; i++) {
+                tail = tail << 8 | (value[i] & 0xFF);
+            }
+            putLong(tail);
+        }
+
+        Fingerprint finish() {
+            return new Fingerprint(mix(h1 + h2), mix(h2 ^ Long.rotateLeft(h1, 17)));
+        }
+
+        static long hashString(String value) {
+            State state = new State();
+            state.putString(value);
+            return state.finish().getHigh();
+        }
+
+        private static long mix(long z) {
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            return z ^ (z >>> 31);
+        }
+    }
+}
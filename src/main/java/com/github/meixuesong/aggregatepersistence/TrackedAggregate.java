@@ -0,0 +1,204 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The aggregate which recognizes changes by the write log of its root and entities, instead of comparing the root
+ * with the snapshot. The root and the entities of the registered collections should implement {@link ChangeTrackable},
+ * the tracker is attached to them when the aggregate is created.
+ *
+ * <ul>
+ *     <li>isChanged is true once the root or any tracked entity reports a change. Nothing is compared if all the
+ *     entities are tracked.</li>
+ *     <li>A tracked entity is changed if it reported a change, it's not compared with its old value. So writing the same
+ *     value is still a change.</li>
+ *     <li>New and removed entities are recognized by ids. The snapshot is only used for the old values.</li>
+ *     <li>The root and entities which are not tracked are deep compared as usual, also by isChanged. In the lazy
+ *     snapshot mode, the entities which are not tracked can't be compared before the snapshot is taken.</li>
+ * </ul>
+ *
+ * The root should report a change when it adds or removes entities, or changes the objects which are not tracked.
+ *
+ * In the lazy snapshot mode, the snapshot is not copied when the aggregate is created, but right before the first
+ * change is recorded. So an aggregate which is only read never pays for the copy. It requires every change of the
+ * aggregate is reported before it's written, otherwise the late snapshot would contain the change.
+ *
+ * @author meixuesong
+ * @param <R> The aggregate root type, such as Order
+ */
+public class TrackedAggregate<R extends Versionable> extends Aggregate<R> {
+    private final List<EntityCollection<R, ?, ?>> collections;
+    private final ChangeTracker tracker = new ChangeTracker();
+    private final boolean lazySnapshot;
+
+    /**
+     * @param lazySnapshot true to copy the snapshot right before the first change is recorded.
+     */
+    TrackedAggregate(R root, Collection<? extends EntityCollection<R, ?, ?>> collections, DeepCopier copier,
+                     DeepComparator deepComparator, boolean lazySnapshot) {
+        super(root, null, copier, deepComparator);
+        this.collections = new ArrayList<>(collections);
+        this.lazySnapshot = lazySnapshot;
+
+        if (lazySnapshot) {
+            if (!(root instanceof ChangeTrackable)) {
+                throw new IllegalArgumentException(String.format("%s should be ChangeTrackable in lazy snapshot mode.", root.getClass().getName()));
+            }
+            tracker.setBeforeFirstChange(this::getRootSnapshot);
+        } else {
+            snapshot = copy(root, copier, null);
+        }
+        attach(root);
+    }
+
+    /**
+     * In the lazy snapshot mode, the snapshot is copied from the root if nothing has been changed.
+     * @return Aggregate root snapshot
+     */
+    @Override
+    public R getRootSnapshot() {
+        if (snapshot == null) {
+            snapshot = copy(root, copier, null);
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * @return whether the snapshot has been copied. It's false if the aggregate is unchanged in the lazy snapshot mode.
+     */
+    public boolean isSnapshotTaken() {
+        return snapshot != null;
+    }
+
+    /**
+     * @return true if the root or any tracked entity reported a change, or any entity which is not tracked is changed.
+     * It's deep compared if the root is not tracked.
+     */
+    @Override
+    public boolean isChanged() {
+        if (isTracked(root)) {
+            return tracker.isChanged() || isUntrackedEntityChanged();
+        }
+
+        return super.isChanged();
+    }
+
+    private boolean isUntrackedEntityChanged() {
+        if (snapshot == null) {
+            return false;
+        }
+
+        for (EntityCollection<R, ?, ?> collection : collections) {
+            if (isUntrackedEntityChanged(collection)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The entities which are not tracked are deep compared with the entities of the same ids in the snapshot. The new
+     * and removed entities are reported by the root.
+     */
+    private <T, ID> boolean isUntrackedEntityChanged(EntityCollection<R, T, ID> collection) {
+        Map<ID, T> oldEntities = null;
+        for (T entity : AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(root))) {
+            if (isTracked(entity)) {
+                continue;
+            }
+
+            if (oldEntities == null) {
+                oldEntities = AggregateDiff.indexById(AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(snapshot)),
+                        collection.getIdFunction());
+            }
+            T oldEntity = oldEntities.get(collection.getIdFunction().apply(entity));
+            if (oldEntity != null && !deepComparator.isDeepEquals(oldEntity, entity)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replace the root, the new root is tracked and it's considered changed.
+     * @param root the aggregate root
+     */
+    @Override
+    public void setRoot(R root) {
+        getRootSnapshot();
+        super.setRoot(root);
+        attach(root);
+        tracker.markChanged(root);
+    }
+
+    /**
+     * Promote the current root to the snapshot and clear the write log after the aggregate is saved. The new entities
+     * are tracked afterwards. In the lazy snapshot mode, the snapshot is copied again before the next change.
+     */
+    @Override
+    public void commit() {
+        if (lazySnapshot) {
+            clearDiffs();
+            snapshot = null;
+            tracker.reset();
+            tracker.setBeforeFirstChange(this::getRootSnapshot);
+        } else {
+            super.commit();
+            tracker.reset();
+        }
+        attach(root);
+    }
+
+    /**
+     * @return the write log of this aggregate.
+     */
+    public ChangeTracker getChangeTracker() {
+        return tracker;
+    }
+
+    @Override
+    protected <T> boolean isEntityChanged(T oldEntity, T newEntity) {
+        if (isTracked(newEntity)) {
+            return tracker.isChanged(newEntity);
+        }
+
+        return super.isEntityChanged(oldEntity, newEntity);
+    }
+
+    private boolean isTracked(Object object) {
+        return object instanceof ChangeTrackable && ((ChangeTrackable) object).getChangeTracker() == tracker;
+    }
+
+    private void attach(R root) {
+        attachTracker(root);
+        for (EntityCollection<R, ?, ?> collection : collections) {
+            Collection<?> entities = collection.getCollectionFunction().apply(root);
+            if (entities != null) {
+                entities.forEach(this::attachTracker);
+            }
+        }
+    }
+
+    private void attachTracker(Object object) {
+        if (object instanceof ChangeTrackable) {
+            ((ChangeTrackable) object).setChangeTracker(tracker);
+        }
+    }
+}
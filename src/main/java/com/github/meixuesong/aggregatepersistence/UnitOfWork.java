@@ -0,0 +1,232 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * The identity map of the aggregates in a transaction. It keeps exactly one aggregate per type and id, so the same
+ * aggregate loaded by several code paths is snapshotted once and saved once. At the end of the transaction,
+ * {@link #flush()} collects the changes of all the aggregates into one ordered {@link WritePlan}.
+ *
+ * <pre><code class='java'>
+ UnitOfWork unitOfWork = new UnitOfWork();
+ unitOfWork.addEntityCollection(Order.class, EntityCollection.of(Order::getItems, OrderItem::getId));
+
+ Aggregate&lt;Order&gt; aggregate = unitOfWork.load(Order.class, orderId, () -&gt; orderRepository.load(orderId));
+ ...
+ WritePlan plan = unitOfWork.flush();
+ writer.write(plan);
+ unitOfWork.commit();
+ * </code></pre>
+ *
+ * It's not thread safe, use one unit of work per transaction.
+ *
+ * @author meixuesong
+ */
+public class UnitOfWork {
+    private final AggregateContext context;
+    private final Map<List<Object>, Aggregate<?>> aggregates = new LinkedHashMap<>();
+    private final Set<List<Object>> removedKeys = new LinkedHashSet<>();
+    private final List<Aggregate<?>> flushedAggregates = new ArrayList<>();
+    private final Map<Class<?>, List<EntityCollection<?, ?, ?>>> entityCollections = new HashMap<>();
+
+    /**
+     * The aggregates are created by the default context of {@link AggregateFactory}.
+     */
+    public UnitOfWork() {
+        this(null);
+    }
+
+    /**
+     * @param context the context which creates the loaded aggregates, null to use the default context of
+     *                {@link AggregateFactory}.
+     */
+    public UnitOfWork(AggregateContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Register the entity collection of the aggregate type, its diff is collected when flushing.
+     * @param type the aggregate root type
+     * @param collection the entity collection, e.g. EntityCollection.of(Order::getItems, OrderItem::getId)
+     * @param <R> The type of aggregate root
+     */
+    public <R extends Versionable> void addEntityCollection(Class<R> type, EntityCollection<R, ?, ?> collection) {
+        entityCollections.computeIfAbsent(type, key -> new ArrayList<>()).add(collection);
+    }
+
+    /**
+     * Get the aggregate from the identity map, or load and register it if it's not loaded yet.
+     * @param type the aggregate root type
+     * @param id the aggregate id
+     * @param loader load the aggregate root from DB
+     * @param <R> The type of aggregate root
+     * @return the only aggregate of the type and id in this unit of work.
+     * @throws IllegalStateException if the aggregate has been removed.
+     */
+    public <R extends Versionable> Aggregate<R> load(Class<R> type, Object id, Supplier<R> loader) {
+        List<Object> key = key(type, id);
+        if (removedKeys.contains(key)) {
+            throw new IllegalStateException(String.format("The aggregate %s (%s) has been removed.", type.getName(), id));
+        }
+
+        Aggregate<R> aggregate = (Aggregate<R>) aggregates.get(key);
+        if (aggregate == null) {
+            R root = loader.get();
+            aggregate = context == null ? AggregateFactory.createAggregate(root) : context.createAggregate(root);
+            aggregates.put(key, aggregate);
+        }
+
+        return aggregate;
+    }
+
+    /**
+     * @param type the aggregate root type
+     * @param id the aggregate id
+     * @param <R> The type of aggregate root
+     * @return the registered aggregate, or null if it's not registered or it's removed.
+     */
+    public <R extends Versionable> Aggregate<R> find(Class<R> type, Object id) {
+        List<Object> key = key(type, id);
+        return removedKeys.contains(key) ? null : (Aggregate<R>) aggregates.get(key);
+    }
+
+    /**
+     * Register the aggregate which is created by other ways, e.g. a new aggregate.
+     * @param type the aggregate root type
+     * @param id the aggregate id
+     * @param aggregate the aggregate
+     * @param <R> The type of aggregate root
+     * @throws IllegalStateException if another aggregate of the same type and id has been registered.
+     */
+    public <R extends Versionable> void register(Class<R> type, Object id, Aggregate<R> aggregate) {
+        List<Object> key = key(type, id);
+        Aggregate<?> registered = aggregates.putIfAbsent(key, aggregate);
+        if (registered != null && registered != aggregate) {
+            throw new IllegalStateException(String.format("Another aggregate %s (%s) has been registered.", type.getName(), id));
+        }
+        removedKeys.remove(key);
+    }
+
+    /**
+     * Mark the registered aggregate to be deleted.
+     * @param type the aggregate root type
+     * @param id the aggregate id
+     * @throws IllegalArgumentException if the aggregate is not registered.
+     */
+    public void remove(Class<?> type, Object id) {
+        List<Object> key = key(type, id);
+        if (!aggregates.containsKey(key)) {
+            throw new IllegalArgumentException(String.format("The aggregate %s (%s) is not registered.", type.getName(), id));
+        }
+        removedKeys.add(key);
+    }
+
+    /**
+     * Collect the changes of all the registered aggregates. The unchanged and read-only aggregates are skipped,
+     * and the new aggregates which are removed are never written.
+     * @return the ordered write plan
+     */
+    public WritePlan flush() {
+        List<AggregateChange<?>> changes = new ArrayList<>();
+        List<AggregateChange<?>> removals = new ArrayList<>();
+        for (Map.Entry<List<Object>, Aggregate<?>> entry : aggregates.entrySet()) {
+            Aggregate<?> aggregate = entry.getValue();
+            if (removedKeys.contains(entry.getKey())) {
+                if (!aggregate.isNew()) {
+                    removals.add(createChange(entry.getKey(), aggregate, Aggregate.DeltaType.REMOVED));
+                }
+            } else if (aggregate.isNew()) {
+                changes.add(createChange(entry.getKey(), aggregate, Aggregate.DeltaType.NEW));
+            } else if (!aggregate.isReadOnly() && aggregate.isChanged()) {
+                changes.add(createChange(entry.getKey(), aggregate, Aggregate.DeltaType.UPDATED));
+            }
+        }
+
+        flushedAggregates.clear();
+        for (AggregateChange<?> change : changes) {
+            flushedAggregates.add(change.getAggregate());
+        }
+
+        Collections.reverse(removals);
+        changes.addAll(removals);
+        return new WritePlan(changes);
+    }
+
+    /**
+     * Call it after the write plan is written. The aggregates saved by the last flushed plan are committed,
+     * see {@link Aggregate#commit()}, and the removed aggregates are unregistered. The aggregates which were not
+     * in the plan keep their snapshots, so their later changes are still detected.
+     */
+    public void commit() {
+        for (List<Object> key : removedKeys) {
+            aggregates.remove(key);
+        }
+        removedKeys.clear();
+
+        for (Aggregate<?> aggregate : flushedAggregates) {
+            aggregate.commit();
+        }
+        flushedAggregates.clear();
+    }
+
+    /**
+     * Unregister all the aggregates, e.g. when the transaction is rolled back.
+     */
+    public void clear() {
+        aggregates.clear();
+        removedKeys.clear();
+        flushedAggregates.clear();
+    }
+
+    private <R extends Versionable> AggregateChange<R> createChange(List<Object> key, Aggregate<R> aggregate, Aggregate.DeltaType deltaType) {
+        Class<R> type = (Class<R>) key.get(0);
+        Map<EntityCollection<R, ?, ?>, AggregateDiff<?, ?>> diffs = new LinkedHashMap<>();
+        for (EntityCollection<?, ?, ?> collection : entityCollections.getOrDefault(type, Collections.emptyList())) {
+            EntityCollection<R, ?, ?> rootCollection = (EntityCollection<R, ?, ?>) collection;
+            diffs.put(rootCollection, deltaType == Aggregate.DeltaType.REMOVED
+                    ? removedDiff(aggregate, rootCollection) : aggregate.diff(rootCollection));
+        }
+
+        return new AggregateChange<>(type, key.get(1), aggregate, deltaType, diffs);
+    }
+
+    /**
+     * All the entities of the removed aggregate are removed, they are taken from the snapshot if it's available.
+     */
+    private static <R extends Versionable, T, ID> AggregateDiff<T, ID> removedDiff(Aggregate<R> aggregate, EntityCollection<R, T, ID> collection) {
+        R root = aggregate.isSnapshotAvailable() ? aggregate.getRootSnapshot() : aggregate.getRoot();
+        List<T> removedEntities = new ArrayList<>(AggregateDiff.nullToEmpty(collection.getCollectionFunction().apply(root)));
+        List<ID> removedIds = new ArrayList<>(removedEntities.size());
+        for (T entity : removedEntities) {
+            removedIds.add(collection.getIdFunction().apply(entity));
+        }
+
+        return new AggregateDiff<>(new ArrayList<>(), new ArrayList<>(), removedEntities, removedIds);
+    }
+
+    private static List<Object> key(Class<?> type, Object id) {
+        return Arrays.asList(type, id);
+    }
+}
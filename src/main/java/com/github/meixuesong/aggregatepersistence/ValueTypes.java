@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.RecordComponent;
+import java.net.URI;
+import java.util.Currency;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * The immutable JDK value types. Values of these types can be shared between the root and its snapshot,
+ * and can be compared by their own equals method.
+ *
+ * @author meixuesong
+ */
+final class ValueTypes {
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<>();
+
+    static {
+        IMMUTABLE_TYPES.add(String.class);
+        IMMUTABLE_TYPES.add(Boolean.class);
+        IMMUTABLE_TYPES.add(Character.class);
+        IMMUTABLE_TYPES.add(Byte.class);
+        IMMUTABLE_TYPES.add(Short.class);
+        IMMUTABLE_TYPES.add(Integer.class);
+        IMMUTABLE_TYPES.add(Long.class);
+        IMMUTABLE_TYPES.add(Float.class);
+        IMMUTABLE_TYPES.add(Double.class);
+        IMMUTABLE_TYPES.add(BigInteger.class);
+        IMMUTABLE_TYPES.add(BigDecimal.class);
+        IMMUTABLE_TYPES.add(UUID.class);
+        IMMUTABLE_TYPES.add(URI.class);
+        IMMUTABLE_TYPES.add(Locale.class);
+        IMMUTABLE_TYPES.add(Currency.class);
+        IMMUTABLE_TYPES.add(Pattern.class);
+        IMMUTABLE_TYPES.add(Class.class);
+    }
+
+    private ValueTypes() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Whether the instances of the type are immutable JDK values, such as String, BigDecimal, LocalDate and enums.
+     * @param type the runtime type
+     * @return true if the instances never change after construction.
+     */
+    static boolean isImmutable(Class<?> type) {
+        return type.isPrimitive()
+                || type.isEnum()
+                || (type.getSuperclass() != null && type.getSuperclass().isEnum())
+                || IMMUTABLE_TYPES.contains(type)
+                || isJavaTime(type);
+    }
+
+    /**
+     * Whether the type is a record whose components are all immutable, i.e. immutable JDK values, the given
+     * immutable classes or immutable records. Records are shallowly immutable, so it depends on the declared
+     * types of the components. A subclass of a registered class may be mutable, so the registered component types
+     * should be final.
+     * @param type the runtime type
+     * @param isImmutableClass the classes which are registered as immutable by the user
+     * @return true if the instances never change after construction.
+     */
+    static boolean isImmutableRecord(Class<?> type, Predicate<Class<?>> isImmutableClass) {
+        return isImmutableRecord(type, isImmutableClass, new HashSet<>());
+    }
+
+    private static boolean isImmutableRecord(Class<?> type, Predicate<Class<?>> isImmutableClass, Set<Class<?>> visiting) {
+        if (!type.isRecord() || !visiting.add(type)) {
+            return false;
+        }
+
+        try {
+            for (RecordComponent component : type.getRecordComponents()) {
+                Class<?> componentType = component.getType();
+                boolean immutable = isImmutable(componentType)
+                        || (Modifier.isFinal(componentType.getModifiers()) && isImmutableClass.test(componentType))
+                        || isImmutableRecord(componentType, isImmutableClass, visiting);
+                if (!immutable) {
+                    return false;
+                }
+            }
+
+            return true;
+        } finally {
+            visiting.remove(type);
+        }
+    }
+
+    private static boolean isJavaTime(Class<?> type) {
+        return type.getName().startsWith("java.time.") && !type.isInterface();
+    }
+}
@@ -16,6 +16,10 @@ package com.github.meixuesong.aggregatepersistence;
 /**
  * The aggregate use version to manage optimistic lock
  *
+ * The entities of the aggregate can implement it as well, then they are checked by their own versions instead of
+ * the version of the root, see {@link ChangedEntity#getExpectedVersion()}. So the changes of different entities
+ * don't conflict with each other.
+ *
  * @author meixuesong
  */
 public interface Versionable {
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A batch of the entities of the same type which are going to be inserted, updated or deleted together.
+ * The entities of an update batch have the same changed fields, so one SQL statement can be used for the batch.
+ *
+ * @author meixuesong
+ * @param <T> The entity type, or the aggregate root type.
+ */
+public class WriteBatch<T> {
+    private final Aggregate.DeltaType deltaType;
+    private final Class<T> entityType;
+    private final boolean root;
+    private final Set<String> changedFields;
+    private final boolean entitiesAvailable;
+    private final List<ChangedEntity<T>> entities = new ArrayList<>();
+    private final List<Object> ids = new ArrayList<>();
+    private final List<Integer> expectedVersions = new ArrayList<>();
+
+    WriteBatch(Aggregate.DeltaType deltaType, Class<T> entityType, boolean root, Set<String> changedFields, boolean entitiesAvailable) {
+        this.deltaType = deltaType;
+        this.entityType = entityType;
+        this.root = root;
+        this.changedFields = changedFields == null ? null : Collections.unmodifiableSet(changedFields);
+        this.entitiesAvailable = entitiesAvailable;
+    }
+
+    void add(ChangedEntity<T> entity, Object id) {
+        entities.add(entity);
+        ids.add(id);
+        expectedVersions.add(deltaType != Aggregate.DeltaType.NEW && entity.isVersioned() ? entity.getExpectedVersion() : null);
+    }
+
+    /**
+     * @return NEW to insert the entities, UPDATED to update them, REMOVED to delete them.
+     */
+    public Aggregate.DeltaType getDeltaType() {
+        return deltaType;
+    }
+
+    public Class<T> getEntityType() {
+        return entityType;
+    }
+
+    /**
+     * @return true if the batch contains aggregate roots, false if it contains the entities of an entity collection.
+     */
+    public boolean isRoot() {
+        return root;
+    }
+
+    /**
+     * @return the changed field names of an update batch, see {@link DataObjectUtils#getChangedFields}.
+     * null if the old values are unknown, e.g. in fingerprint mode without snapshot loader, so all the fields
+     * should be updated. It's null for insert and delete batches.
+     */
+    public Set<String> getChangedFields() {
+        return changedFields;
+    }
+
+    /**
+     * @return the entities to insert or update, or the removed entities to delete.
+     * @throws UnsupportedOperationException if only the ids of the removed entities are known, use {@link #getIds()} instead.
+     */
+    public List<T> getEntities() {
+        if (!entitiesAvailable) {
+            throw new UnsupportedOperationException("The removed entities are unknown, please use getIds.");
+        }
+
+        List<T> results = new ArrayList<>(entities.size());
+        for (ChangedEntity<T> entity : entities) {
+            results.add(deltaType == Aggregate.DeltaType.REMOVED ? entity.getOldEntity() : entity.getNewEntity());
+        }
+        return results;
+    }
+
+    /**
+     * @return the old and new values of the entities of an update batch.
+     * @throws UnsupportedOperationException if it's not an update batch, or the old values are unknown.
+     */
+    public List<ChangedEntity<T>> getChangedEntitiesWithOldValues() {
+        if (deltaType != Aggregate.DeltaType.UPDATED || changedFields == null) {
+            throw new UnsupportedOperationException("The old values are only available in an update batch with changed fields.");
+        }
+        return Collections.unmodifiableList(entities);
+    }
+
+    /**
+     * @return the ids of the entities in the same order, the id of a new entity may be null.
+     */
+    public List<Object> getIds() {
+        return Collections.unmodifiableList(ids);
+    }
+
+    /**
+     * @return the expected versions of the entities of an update or delete batch in the same order, see
+     * {@link ChangedEntity#getExpectedVersion()}. The element is null if the entity is not versioned or unknown.
+     */
+    public List<Integer> getExpectedVersions() {
+        return Collections.unmodifiableList(expectedVersions);
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
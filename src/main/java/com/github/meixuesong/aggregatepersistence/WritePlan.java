@@ -0,0 +1,39 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The ordered changes of the aggregates in a {@link UnitOfWork}. The new and changed aggregates come first
+ * in the order they were registered, then the removed aggregates in the reverse order.
+ *
+ * @author meixuesong
+ */
+public class WritePlan {
+    private final List<AggregateChange<?>> changes;
+
+    WritePlan(List<AggregateChange<?>> changes) {
+        this.changes = Collections.unmodifiableList(changes);
+    }
+
+    public List<AggregateChange<?>> getChanges() {
+        return changes;
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+}
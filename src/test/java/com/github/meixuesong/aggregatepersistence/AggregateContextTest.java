@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class AggregateContextTest {
+    @Test
+    public void should_use_strategies_of_root_class_and_its_superclasses() {
+        DeepComparator comparator = new MethodHandleDeepComparator();
+        AggregateFactoryConfig config = AggregateFactoryConfig.builder()
+                .copier(Loan.class, new MethodHandleDeepCopier())
+                .comparator(Loan.class, comparator)
+                .build();
+
+        assertThat(config.getCopier(SubLoan.class), instanceOf(MethodHandleDeepCopier.class));
+        assertThat(config.getComparator(SubLoan.class), sameInstance(comparator));
+        assertThat(config.getCopier(SampleEntity.class), instanceOf(SerializableDeepCopier.class));
+        assertThat(config.getComparator(SampleEntity.class), instanceOf(JavaUtilDeepComparator.class));
+        assertThat(config.getComparator(SampleEntity.class), not(sameInstance(config.getComparator(SampleEntity.class))));
+
+        AggregateFactoryConfig modified = config.toBuilder().copier(Loan.class, null).build();
+        assertThat(modified.getCopier(Loan.class), instanceOf(SerializableDeepCopier.class));
+        assertThat(config.getCopier(Loan.class), instanceOf(MethodHandleDeepCopier.class));
+    }
+
+    @Test
+    public void should_create_aggregates_by_own_config() {
+        CountingCopier copier = new CountingCopier();
+        AggregateContext context = new AggregateContext(AggregateFactoryConfig.builder().copier(Loan.class, copier).build());
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+
+        Aggregate<Loan> aggregate = context.createAggregate(loan);
+        AggregateFactory.createAggregate(loan);
+
+        assertEquals(1, copier.count.get());
+        assertThat(aggregate.isChanged(), is(false));
+        loan.payPlan(1);
+        assertThat(aggregate.isChanged(), is(true));
+    }
+
+    @Test
+    public void should_use_context_in_unit_of_work_and_snapshot_cache() {
+        CountingCopier copier = new CountingCopier();
+        AggregateContext context = new AggregateContext(AggregateFactoryConfig.builder().copier(Loan.class, copier).build());
+
+        new UnitOfWork(context).load(Loan.class, "L1", () -> new Loan("L1", 12, 1));
+        assertEquals(1, copier.count.get());
+
+        SnapshotCache cache = new SnapshotCache(1024 * 1024, value -> 1, 16, context);
+        cache.getAggregate(Loan.class, "L1", 1, () -> new Loan("L1", 12, 1));
+        Aggregate<Loan> cached = cache.getAggregate(Loan.class, "L1", 1, () -> new Loan("L1", 12, 1));
+        assertEquals(3, copier.count.get());
+        assertThat(cached.isChanged(), is(false));
+    }
+
+    private static class SubLoan extends Loan {
+        SubLoan() {
+            super("ID", 12, 1);
+        }
+    }
+
+    private static class CountingCopier implements DeepCopier {
+        private final DeepCopier copier = new MethodHandleDeepCopier();
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public <T> T copy(T object) {
+            count.incrementAndGet();
+            return copier.copy(object);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class AggregateEventsTest {
+    private static final String PREFIX = "com.github.meixuesong.aggregatepersistence.";
+
+    @Test
+    public void should_record_jfr_events_when_enabled() throws Exception {
+        Path file = Files.createTempFile("aggregate", ".jfr");
+        try (Recording recording = new Recording()) {
+            for (String name : new String[]{"AggregateSnapshot", "AggregateChangeCheck", "CollectionDiff", "DataObjectDelta"}) {
+                recording.enable(PREFIX + name).withoutStackTrace();
+            }
+            recording.start();
+
+            Loan loan = new Loan("ID", 12, 1);
+            loan.createPlans();
+            Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+            loan.payPlan(1);
+            aggregate.isChanged();
+            aggregate.diff(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+            DataObjectUtils.getChangedFields(aggregate.getRootSnapshot().getRepaymentPlans().get(1), loan.getRepaymentPlans().get(1));
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        Map<String, RecordedEvent> events = new HashMap<>();
+        List<RecordedEvent> recordedEvents = RecordingFile.readAllEvents(file);
+        for (RecordedEvent event : recordedEvents) {
+            events.put(event.getEventType().getName().substring(PREFIX.length()), event);
+        }
+        Files.delete(file);
+
+        assertThat(events.get("AggregateSnapshot").getLong("graphSize") > 0, is(true));
+        assertThat(events.get("AggregateChangeCheck").getBoolean("changed"), is(true));
+        assertEquals("repaymentPlans", events.get("CollectionDiff").getString("collection"));
+        assertEquals(1, events.get("CollectionDiff").getInt("changedCount"));
+        assertEquals("getChangedFields", events.get("DataObjectDelta").getString("method"));
+        assertEquals(1, events.get("DataObjectDelta").getInt("changedCount"));
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class AggregateMergerTest {
+    private static final EntityCollection<Loan, RepaymentPlan, Integer> PLANS = EntityCollection.of(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+    private static final AggregateMerger<Loan> MERGER = new AggregateMerger<>(Collections.singletonList(PLANS));
+
+    @Test
+    public void should_merge_changes_of_different_entities_and_fields() {
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(createLoan());
+        aggregate.getRoot().payPlan(1);
+        aggregate.getRoot().getRepaymentPlans().add(new RepaymentPlan(12, BigDecimal.TEN, "PLAN"));
+        Loan theirs = createLoan();
+        theirs.payPlan(2);
+        theirs.getRepaymentPlans().remove(11);
+        theirs.setTotalMonth(11);
+        theirs.setVersion(2);
+
+        MergeResult<Loan> result = MERGER.merge(aggregate, theirs);
+
+        assertThat(result.isMerged(), is(true));
+        Loan merged = result.getAggregate().getRoot();
+        assertEquals(2, merged.getVersion());
+        assertEquals(Integer.valueOf(11), merged.getTotalMonth());
+        assertEquals(12, merged.getRepaymentPlans().size());
+        assertEquals("PAID", merged.getRepaymentPlans().get(1).getStatus());
+        assertEquals("PAID", merged.getRepaymentPlans().get(2).getStatus());
+
+        AggregateDiff<RepaymentPlan, Integer> diff = result.getAggregate().diff(PLANS);
+        assertEquals(1, diff.getChangedEntities().size());
+        assertEquals(Integer.valueOf(1), diff.getChangedEntities().get(0).getNo());
+        assertEquals(Integer.valueOf(12), diff.getNewEntities().get(0).getNo());
+        assertThat(diff.getRemovedIds().isEmpty(), is(true));
+        assertEquals(11, theirs.getRepaymentPlans().size());
+    }
+
+    @Test
+    public void should_not_share_objects_with_ours_and_theirs() {
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(createLoan());
+        aggregate.getRoot().getRepaymentPlans().add(new RepaymentPlan(12, BigDecimal.TEN, "PLAN"));
+        Loan theirs = createLoan();
+        theirs.setVersion(2);
+
+        MergeResult<Loan> result = MERGER.merge(aggregate, theirs);
+        aggregate.getRoot().getRepaymentPlans().get(12).setStatus("PAID");
+        theirs.payPlan(1);
+
+        Aggregate<Loan> merged = result.getAggregate();
+        assertEquals("PLAN", merged.getRoot().getRepaymentPlans().get(12).getStatus());
+        assertThat(merged.isChanged(), is(true));
+        assertEquals(1, merged.diff(PLANS).getNewEntities().size());
+        assertThat(merged.diff(PLANS).getChangedEntities().isEmpty(), is(true));
+    }
+
+    @Test
+    public void should_report_conflicts_of_same_field() {
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(createLoan());
+        aggregate.getRoot().payPlan(1);
+        aggregate.getRoot().setTotalMonth(24);
+        Loan theirs = createLoan();
+        theirs.getRepaymentPlans().get(1).setStatus("OVERDUE");
+        theirs.setTotalMonth(6);
+
+        MergeResult<Loan> result = MERGER.merge(aggregate, theirs);
+
+        assertThat(result.isMerged(), is(false));
+        assertEquals(2, result.getConflicts().size());
+        assertThat(result.getConflicts().contains("repaymentPlans[1].status"), is(true));
+        assertThat(result.getConflicts().contains("totalMonth"), is(true));
+    }
+
+    @Test
+    public void should_report_conflict_when_changed_entity_removed() {
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(createLoan());
+        aggregate.getRoot().getRepaymentPlans().remove(11);
+        Loan theirs = createLoan();
+        theirs.payPlan(11);
+
+        MergeResult<Loan> result = MERGER.merge(aggregate, theirs);
+
+        assertEquals(Collections.singletonList("repaymentPlans[11]"), result.getConflicts());
+    }
+
+    private Loan createLoan() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        return loan;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class AggregateMetricsTest {
+    @After
+    public void tearDown() {
+        AggregateFactory.setMetrics(null);
+    }
+
+    @Test
+    public void should_record_copy_compare_and_diff() {
+        List<AggregateMetricsEvent> events = new ArrayList<>();
+        AggregateFactory.setMetrics(events::add);
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+        loan.payPlan(1);
+        aggregate.isChanged();
+        aggregate.diff(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+
+        assertEquals(3, events.size());
+        assertThat(events.get(0).getOperation(), is(AggregateMetrics.Operation.COPY));
+        assertEquals(Loan.class, events.get(0).getAggregateType());
+        assertThat(events.get(0).getCopiedBytes() > 0, is(true));
+        assertThat(events.get(1).getOperation(), is(AggregateMetrics.Operation.COMPARE));
+        assertEquals(1, events.get(1).getChangedEntities());
+        assertThat(events.get(2).getOperation(), is(AggregateMetrics.Operation.DIFF));
+        assertEquals(24, events.get(2).getComparedEntities());
+        assertEquals(1, events.get(2).getChangedEntities());
+    }
+
+    @Test
+    public void should_record_copies_of_serialized_aggregate_and_snapshot_cache() {
+        List<AggregateMetricsEvent> events = new ArrayList<>();
+        AggregateFactory.setMetrics(events::add);
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+
+        AggregateFactory.createSerializedAggregate(loan);
+        assertEquals(1, events.size());
+        assertThat(events.get(0).getOperation(), is(AggregateMetrics.Operation.COPY));
+        assertEquals(new SerializableDeepCopier().serialize(loan).length, events.get(0).getCopiedBytes());
+
+        events.clear();
+        SnapshotCache cache = new SnapshotCache(1024 * 1024);
+        cache.getAggregate(Loan.class, "ID", 1, () -> loan);
+        cache.getAggregate(Loan.class, "ID", 1, () -> loan);
+        assertEquals(2, events.size());
+        assertThat(events.get(1).getOperation(), is(AggregateMetrics.Operation.COPY));
+        assertThat(events.get(1).getCopiedBytes() > 0, is(true));
+    }
+
+    @Test
+    public void should_not_record_without_listener() {
+        List<AggregateMetricsEvent> events = new ArrayList<>();
+        AggregateFactory.setMetrics(events::add);
+        AggregateFactory.setMetrics(null);
+
+        AggregateFactory.createAggregate(new Loan("ID", 12, 1)).isChanged();
+
+        assertThat(events.isEmpty(), is(true));
+    }
+}
@@ -21,6 +21,7 @@ import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
 import com.github.meixuesong.aggregatepersistence.complex_object.LoanCustomer;
 import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
 import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentType;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -29,11 +30,16 @@ import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -45,6 +51,11 @@ public class AggregateTest {
         AggregateFactory.setCopier(new SerializableDeepCopier());
     }
 
+    @After
+    public void tearDown() {
+        AggregateFactory.setCopier(null);
+    }
+
     @Test
     public void should_be_new_when_version_is_NEW_VERSION() {
         SampleEntity entity = new SampleEntity();
@@ -285,4 +296,141 @@ public class AggregateTest {
         assertEquals(1, collectionDelta2.get(Aggregate.DeltaType.UPDATED).size());
         assertEquals(12, collectionDelta2.get(Aggregate.DeltaType.REMOVED).size());
     }
+
+    @Test
+    public void should_diff_collection_in_one_pass() {
+        Loan loan = new Loan("ID", 22, Versionable.NEW_VERSION);
+        loan.createPlans();
+        loan.setVersion(10);
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+
+        loan.payPlan(1);
+        loan.getRepaymentPlans().remove(21);
+        loan.getRepaymentPlans().add(new RepaymentPlan(22, BigDecimal.ONE, "PLAN"));
+
+        AggregateDiff<RepaymentPlan, Integer> diff = aggregate.diff(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+
+        assertEquals(1, diff.getNewEntities().size());
+        assertEquals(22, diff.getNewEntities().get(0).getNo().intValue());
+        assertEquals(1, diff.getChangedEntities().size());
+        assertEquals("PLAN", diff.getChangedEntitiesWithOldValues().get(0).getOldEntity().getStatus());
+        assertEquals("PAID", diff.getChangedEntitiesWithOldValues().get(0).getNewEntity().getStatus());
+        assertEquals(1, diff.getRemovedEntities().size());
+        assertEquals(21, diff.getRemovedEntities().get(0).getNo().intValue());
+    }
+
+    @Test
+    public void should_cache_diff_until_root_replaced() {
+        Loan loan = new Loan("ID", 12, Versionable.NEW_VERSION);
+        loan.createPlans();
+        loan.setVersion(10);
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+        Function<Loan, Collection<RepaymentPlan>> getPlans = Loan::getRepaymentPlans;
+        Function<RepaymentPlan, Integer> getNo = RepaymentPlan::getNo;
+
+        AggregateDiff<RepaymentPlan, Integer> diff = aggregate.diff(getPlans, getNo);
+        assertThat(diff.isEmpty(), is(true));
+        assertSame(diff, aggregate.diff(getPlans, getNo));
+
+        loan.payPlan(0);
+        aggregate.setRoot(loan);
+
+        assertEquals(1, aggregate.diff(getPlans, getNo).getChangedEntities().size());
+    }
+
+    @Test
+    public void should_diff_new_aggregate() {
+        Loan loan = new Loan("ID", 12, Versionable.NEW_VERSION);
+        loan.createPlans();
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+
+        AggregateDiff<RepaymentPlan, Integer> diff = aggregate.diff(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+
+        assertEquals(12, diff.getNewEntities().size());
+        assertEquals(0, diff.getChangedEntities().size());
+        assertEquals(0, diff.getRemovedEntities().size());
+    }
+
+    @Test
+    public void should_drop_cached_diff_when_root_mutated() {
+        AggregateFactory.setCopier(new MethodHandleDeepCopier());
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+        Function<Loan, Collection<RepaymentPlan>> getPlans = Loan::getRepaymentPlans;
+        Function<RepaymentPlan, Integer> getNo = RepaymentPlan::getNo;
+
+        assertThat(aggregate.diff(getPlans, getNo).isEmpty(), is(true));
+        loan.payPlan(1);
+        assertEquals(1, aggregate.diff(getPlans, getNo).getChangedEntities().size());
+
+        loan.payPlan(2);
+        aggregate.commit();
+
+        assertEquals("PAID", aggregate.getRootSnapshot().getRepaymentPlans().get(2).getStatus());
+        loan.getRepaymentPlans().get(2).setStatus("PLAN");
+        assertEquals(1, aggregate.findChangedEntities(getPlans, getNo).size());
+    }
+
+    @Test
+    public void should_diff_without_cache_when_collection_can_not_be_hashed() {
+        OptionalOrder order = new OptionalOrder();
+        Aggregate<OptionalOrder> aggregate = new Aggregate<>(order, new OptionalOrder(), null, new JavaUtilDeepComparator());
+        order.parts.add(new OptionalPart(2, Optional.empty()));
+
+        assertEquals(1, aggregate.diff(OptionalOrder::getParts, OptionalPart::getId).getNewEntities().size());
+        order.parts.add(new OptionalPart(3, Optional.empty()));
+        assertEquals(2, aggregate.diff(OptionalOrder::getParts, OptionalPart::getId).getNewEntities().size());
+    }
+
+    @Test
+    public void should_reuse_unchanged_entities_when_commit() {
+        AggregateFactory.setCopier(new MethodHandleDeepCopier());
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+        RepaymentPlan unchangedSnapshot = aggregate.getRootSnapshot().getRepaymentPlans().get(0);
+
+        loan.payPlan(1);
+        assertEquals(1, aggregate.diff(Loan::getRepaymentPlans, RepaymentPlan::getNo).getChangedEntities().size());
+        aggregate.commit();
+
+        assertThat(aggregate.isChanged(), is(false));
+        assertSame(unchangedSnapshot, aggregate.getRootSnapshot().getRepaymentPlans().get(0));
+        assertEquals("PAID", aggregate.getRootSnapshot().getRepaymentPlans().get(1).getStatus());
+
+        loan.payPlan(2);
+        assertEquals(1, aggregate.findChangedEntities(Loan::getRepaymentPlans, RepaymentPlan::getNo).size());
+    }
+
+    private static class OptionalOrder implements Versionable {
+        private final List<OptionalPart> parts = new ArrayList<>();
+
+        OptionalOrder() {
+            parts.add(new OptionalPart(1, Optional.of("note")));
+        }
+
+        List<OptionalPart> getParts() {
+            return parts;
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+    }
+
+    private static class OptionalPart {
+        private final Integer id;
+        private final Optional<String> note;
+
+        OptionalPart(Integer id, Optional<String> note) {
+            this.id = id;
+            this.note = note;
+        }
+
+        Integer getId() {
+            return id;
+        }
+    }
 }
@@ -17,7 +17,9 @@ import org.junit.Test;
 
 import java.math.BigDecimal;
 import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
@@ -90,6 +92,19 @@ public class DataObjectUtilsTest {
         assertTrue(changedFields.contains("children"));
     }
 
+    @Test
+    public void should_get_changed_columns() {
+        Date birthday = new Date();
+        SampleEntity entity1 = new SampleEntity(birthday, "ID", 100, new BigDecimal("100.00"), Arrays.asList(new SampleEntity()));
+        SampleEntity entity2 = new SampleEntity(birthday, "ID", 200, new BigDecimal("100.00"), Arrays.asList(new SampleEntity(), new SampleEntity()));
+
+        ChangedColumns columns = DataObjectUtils.getChangedColumns(entity1, entity2);
+
+        assertEquals(Arrays.asList("length", "children"), columns.getFieldNames());
+        assertEquals(ChangedColumns.of(SampleEntity.class, "children", "length"), columns);
+        assertEquals(ChangedColumns.of(SampleEntity.class, "length"), DataObjectUtils.getChangedColumns(entity1, entity2, "children"));
+    }
+
     @Test
     public void should_ignore_specify_field() {
         //Given
@@ -110,6 +125,39 @@ public class DataObjectUtilsTest {
         assertEquals(expectedDelta, actualDelta);
     }
 
+    @Test
+    public void should_get_changed_fields_in_batch() {
+        Date birthday = new Date();
+        List<SampleEntity> olds = new ArrayList<>();
+        List<SampleEntity> currents = new ArrayList<>();
+        for (int i = 0; i < DataObjectUtils.PARALLEL_THRESHOLD + 1; i++) {
+            olds.add(new SampleEntity(birthday, "ID" + i, i, new BigDecimal("100.00"), null));
+            currents.add(new SampleEntity(birthday, "ID" + i, i % 2 == 0 ? i : -i, new BigDecimal("100.00"), null));
+        }
+
+        List<Set<String>> changedFields = DataObjectUtils.getChangedFieldsInBatch(olds, currents);
+        List<SampleEntity> deltas = DataObjectUtils.getDeltasInBatch(olds.subList(0, 2), currents.subList(0, 2));
+
+        assertEquals(olds.size(), changedFields.size());
+        assertTrue(changedFields.get(0).isEmpty());
+        assertEquals(Collections.singleton("length"), changedFields.get(1));
+        assertEquals(Collections.singleton("length"), changedFields.get(DataObjectUtils.PARALLEL_THRESHOLD - 1));
+        assertEquals(new SampleEntity(null, null, -1, null, null), deltas.get(1));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_fail_to_get_delta_without_no_arg_constructor() {
+        DataObjectUtils.getDelta(new ValueObject("A"), new ValueObject("B"));
+    }
+
+    static class ValueObject {
+        private final String value;
+
+        ValueObject(String value) {
+            this.value = value;
+        }
+    }
+
     static class SampleEntity {
         private String id;
         private boolean checked;
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class FingerprintAggregateTest {
+    private static final EntityCollection<Loan, RepaymentPlan, Integer> PLANS = EntityCollection.of(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+
+    @Test
+    public void should_recognize_changes_by_fingerprint() {
+        Loan loan = createLoan();
+        Aggregate<Loan> aggregate = AggregateFactory.createFingerprintAggregate(loan, Collections.singletonList(PLANS));
+
+        assertThat(aggregate.isChanged(), is(false));
+
+        loan.getRepaymentPlans().get(0).setPayableAmount(new BigDecimal("1.00"));
+        assertThat(aggregate.isChanged(), is(false));
+
+        loan.payPlan(1);
+        assertThat(aggregate.isChanged(), is(true));
+    }
+
+    @Test
+    public void should_diff_registered_collection_by_fingerprint() {
+        Loan loan = createLoan();
+        Aggregate<Loan> aggregate = AggregateFactory.createFingerprintAggregate(loan, Collections.singletonList(PLANS));
+
+        loan.payPlan(1);
+        loan.getRepaymentPlans().remove(11);
+        loan.getRepaymentPlans().add(new RepaymentPlan(12, BigDecimal.ONE, "PLAN"));
+
+        AggregateDiff<RepaymentPlan, Integer> diff = aggregate.diff(PLANS);
+
+        assertEquals(1, diff.getNewEntities().size());
+        assertEquals(12, diff.getNewEntities().get(0).getNo().intValue());
+        assertEquals(1, diff.getChangedEntities().size());
+        assertEquals(1, diff.getChangedEntities().get(0).getNo().intValue());
+        assertEquals(Arrays.asList(11), diff.getRemovedIds());
+        assertEquals(1, aggregate.findChangedEntities(PLANS.getCollectionFunction(), PLANS.getIdFunction()).size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void should_not_provide_old_values_without_snapshot_loader() {
+        Loan loan = createLoan();
+        Aggregate<Loan> aggregate = AggregateFactory.createFingerprintAggregate(loan, Collections.singletonList(PLANS));
+
+        loan.payPlan(1);
+
+        aggregate.diff(PLANS).getChangedEntitiesWithOldValues();
+    }
+
+    @Test
+    public void should_rebuild_old_values_by_snapshot_loader() {
+        Loan loan = createLoan();
+        Aggregate<Loan> aggregate = AggregateFactory.createFingerprintAggregate(loan, Collections.singletonList(PLANS), this::createLoan);
+
+        loan.payPlan(1);
+        loan.getRepaymentPlans().remove(11);
+
+        AggregateDiff<RepaymentPlan, Integer> diff = aggregate.diff(PLANS);
+
+        assertEquals("PLAN", diff.getChangedEntitiesWithOldValues().get(0).getOldEntity().getStatus());
+        assertEquals("PAID", diff.getChangedEntitiesWithOldValues().get(0).getNewEntity().getStatus());
+        assertEquals(11, diff.getRemovedEntities().get(0).getNo().intValue());
+        assertEquals(12, aggregate.getRootSnapshot().getRepaymentPlans().size());
+    }
+
+    @Test
+    public void should_fingerprint_unordered_collections_and_cycles() {
+        StructuralHasher hasher = new StructuralHasher();
+        SampleEntity parent = new SampleEntity();
+        SampleEntity child = new SampleEntity();
+        parent.getChildren().add(child);
+        child.getChildren().add(parent);
+
+        assertEquals(hasher.hash(parent), hasher.hash(parent));
+        assertEquals(hasher.hash(new HashSet<>(Arrays.asList("a", "b", "c"))),
+                hasher.hash(new TreeSet<>(Arrays.asList("c", "b", "a"))));
+
+        Fingerprint before = hasher.hash(parent);
+        child.setAge(1);
+        assertThat(hasher.hash(parent).equals(before), is(false));
+    }
+
+    private Loan createLoan() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        return loan;
+    }
+}
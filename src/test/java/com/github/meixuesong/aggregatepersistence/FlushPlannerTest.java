@@ -0,0 +1,260 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class FlushPlannerTest {
+    private static final EntityCollection<Loan, RepaymentPlan, Integer> PLANS = EntityCollection.of(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+
+    @Test
+    public void should_group_updates_by_type_and_changed_fields() {
+        UnitOfWork unitOfWork = createUnitOfWork();
+        unitOfWork.load(Loan.class, "L1", () -> createLoan("L1", 1)).getRoot().payPlan(1);
+        unitOfWork.load(Loan.class, "L2", () -> createLoan("L2", 1)).getRoot().payPlan(2);
+        unitOfWork.load(Loan.class, "L3", () -> createLoan("L3", 1)).getRoot().getRepaymentPlans().get(0).setPayableAmount(BigDecimal.TEN);
+
+        List<WriteBatch<?>> batches = new FlushPlanner().plan(unitOfWork.flush());
+
+        assertEquals(3, batches.size());
+        assertThat(batches.get(0).isRoot(), is(true));
+        assertEquals(3, batches.get(0).size());
+        assertEquals(Collections.emptySet(), batches.get(0).getChangedFields());
+        assertEquals(RepaymentPlan.class, batches.get(1).getEntityType());
+        assertEquals(Collections.singleton("status"), batches.get(1).getChangedFields());
+        assertEquals(Arrays.asList(1, 2), batches.get(1).getIds());
+        assertEquals(Collections.singleton("payableAmount"), batches.get(2).getChangedFields());
+    }
+
+    @Test
+    public void should_insert_parents_first_and_delete_them_last() {
+        UnitOfWork unitOfWork = createUnitOfWork();
+        unitOfWork.load(Loan.class, "L1", () -> createLoan("L1", 1));
+        unitOfWork.remove(Loan.class, "L1");
+        unitOfWork.register(Loan.class, "L2", AggregateFactory.createAggregate(createLoan("L2", Versionable.NEW_VERSION)));
+        List<WriteBatch<?>> written = new ArrayList<>();
+
+        new FlushPlanner(5).flush(unitOfWork.flush(), written::add);
+
+        List<String> steps = new ArrayList<>();
+        for (WriteBatch<?> batch : written) {
+            steps.add(batch.getDeltaType() + " " + batch.getEntityType().getSimpleName() + " " + batch.size());
+        }
+        assertEquals(Arrays.asList("NEW Loan 1", "NEW RepaymentPlan 5", "NEW RepaymentPlan 5", "NEW RepaymentPlan 2",
+                "REMOVED RepaymentPlan 5", "REMOVED RepaymentPlan 5", "REMOVED RepaymentPlan 2", "REMOVED Loan 1"), steps);
+        assertEquals(new HashSet<>(Arrays.asList(0, 1, 2, 3, 4)), new HashSet<>(written.get(4).getIds()));
+    }
+
+    @Test
+    public void should_delete_entities_in_reverse_order_of_collections() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(VersionedOrder.class, EntityCollection.of(VersionedOrder::getLines, VersionedLine::getId));
+        unitOfWork.addEntityCollection(VersionedOrder.class, EntityCollection.of(VersionedOrder::getTags, OrderTag::getName));
+        unitOfWork.load(VersionedOrder.class, "O1", () -> {
+            VersionedOrder order = new VersionedOrder(new VersionedLine("L1", 1, 1));
+            order.tags.add(new OrderTag("T1"));
+            return order;
+        });
+        unitOfWork.remove(VersionedOrder.class, "O1");
+
+        List<String> steps = new ArrayList<>();
+        for (WriteBatch<?> batch : new FlushPlanner().plan(unitOfWork.flush())) {
+            steps.add(batch.getDeltaType() + " " + batch.getEntityType().getSimpleName());
+        }
+
+        assertEquals(Arrays.asList("REMOVED OrderTag", "REMOVED VersionedLine", "REMOVED VersionedOrder"), steps);
+    }
+
+    @Test
+    public void should_order_entities_by_collections_across_aggregates() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(VersionedOrder.class, EntityCollection.of(VersionedOrder::getLines, VersionedLine::getId));
+        unitOfWork.addEntityCollection(VersionedOrder.class, EntityCollection.of(VersionedOrder::getTags, OrderTag::getName));
+        unitOfWork.load(VersionedOrder.class, "O1", VersionedOrder::new).getRoot().tags.add(new OrderTag("T1"));
+        VersionedOrder second = unitOfWork.load(VersionedOrder.class, "O2", VersionedOrder::new).getRoot();
+        second.lines.add(new VersionedLine("L2", 1, 1));
+        second.tags.add(new OrderTag("T2"));
+        unitOfWork.load(VersionedOrder.class, "O3", () -> new VersionedOrder(new VersionedLine("L3", 1, 1))).getRoot().lines.clear();
+        VersionedOrder fourth = unitOfWork.load(VersionedOrder.class, "O4", () -> {
+            VersionedOrder order = new VersionedOrder(new VersionedLine("L4", 1, 1));
+            order.tags.add(new OrderTag("T4"));
+            return order;
+        }).getRoot();
+        fourth.lines.clear();
+        fourth.tags.clear();
+
+        List<String> steps = new ArrayList<>();
+        for (WriteBatch<?> batch : new FlushPlanner().plan(unitOfWork.flush())) {
+            if (!batch.isRoot()) {
+                steps.add(batch.getDeltaType() + " " + batch.getEntityType().getSimpleName());
+            }
+        }
+
+        assertEquals(Arrays.asList("NEW VersionedLine", "NEW OrderTag", "REMOVED OrderTag", "REMOVED VersionedLine"), steps);
+    }
+
+    @Test
+    public void should_exclude_declared_collection_field_from_root_changes() {
+        EntityCollection<VersionedOrder, VersionedLine, String> lines = EntityCollection.of(
+                order -> Collections.unmodifiableList(order.getLines()), VersionedLine::getId);
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(VersionedOrder.class, lines.withField("lines"));
+        VersionedOrder order = unitOfWork.load(VersionedOrder.class, "O1", () -> new VersionedOrder(new VersionedLine("L1", 1, 1))).getRoot();
+        order.lines.clear();
+        order.note = "urgent";
+
+        List<WriteBatch<?>> batches = new FlushPlanner().plan(unitOfWork.flush());
+
+        assertThat(batches.get(0).isRoot(), is(true));
+        assertEquals(Collections.singleton("note"), batches.get(0).getChangedFields());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_reject_collection_which_is_not_a_field_of_root() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(VersionedOrder.class, EntityCollection.of(
+                order -> Collections.unmodifiableList(order.getLines()), VersionedLine::getId));
+        unitOfWork.load(VersionedOrder.class, "O1", () -> new VersionedOrder(new VersionedLine("L1", 1, 1))).getRoot().note = "urgent";
+
+        new FlushPlanner().plan(unitOfWork.flush());
+    }
+
+    @Test
+    public void should_delete_by_ids_when_removed_entities_unknown() {
+        EntityCollection<Loan, RepaymentPlan, Integer> plans = EntityCollection.of(RepaymentPlan.class, Loan::getRepaymentPlans, RepaymentPlan::getNo);
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(Loan.class, plans);
+        Loan loan = createLoan("L1", 1);
+        unitOfWork.register(Loan.class, "L1", AggregateFactory.createFingerprintAggregate(loan, Collections.singletonList(plans)));
+        loan.getRepaymentPlans().remove(11);
+
+        List<WriteBatch<?>> batches = new FlushPlanner().plan(unitOfWork.flush());
+
+        assertEquals(2, batches.size());
+        assertThat(batches.get(0).getChangedFields() == null, is(true));
+        assertEquals(RepaymentPlan.class, batches.get(1).getEntityType());
+        assertEquals(Collections.singletonList(11), batches.get(1).getIds());
+    }
+
+    @Test
+    public void should_check_versioned_entities_by_their_own_versions() {
+        EntityCollection<VersionedOrder, VersionedLine, String> lines = EntityCollection.of(VersionedOrder::getLines, VersionedLine::getId);
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(VersionedOrder.class, lines);
+        Aggregate<VersionedOrder> aggregate = unitOfWork.load(VersionedOrder.class, "O1", () -> new VersionedOrder(
+                new VersionedLine("L1", 1, 3), new VersionedLine("L2", 1, 5)));
+        aggregate.getRoot().getLines().get(1).quantity = 2;
+
+        List<WriteBatch<?>> batches = new FlushPlanner().plan(unitOfWork.flush());
+
+        assertEquals(1, batches.size());
+        assertEquals(VersionedLine.class, batches.get(0).getEntityType());
+        assertEquals(Collections.singletonList(5), batches.get(0).getExpectedVersions());
+        assertEquals(5, aggregate.diff(lines).getChangedEntitiesWithOldValues().get(0).getExpectedVersion());
+
+        aggregate.getRoot().note = "urgent";
+        aggregate.clearDiffs();
+        batches = new FlushPlanner().plan(unitOfWork.flush());
+
+        assertEquals(2, batches.size());
+        assertThat(batches.get(0).isRoot(), is(true));
+        assertEquals(Collections.singletonList(1), batches.get(0).getExpectedVersions());
+    }
+
+    private UnitOfWork createUnitOfWork() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(Loan.class, PLANS);
+        return unitOfWork;
+    }
+
+    private Loan createLoan(String id, int version) {
+        Loan loan = new Loan(id, 12, version);
+        loan.createPlans();
+        return loan;
+    }
+
+    static class VersionedOrder implements Versionable, Serializable {
+        private String note;
+        private List<VersionedLine> lines;
+        private List<OrderTag> tags = new ArrayList<>();
+        private int version = 1;
+
+        VersionedOrder(VersionedLine... lines) {
+            this.lines = new ArrayList<>(Arrays.asList(lines));
+        }
+
+        List<VersionedLine> getLines() {
+            return lines;
+        }
+
+        List<OrderTag> getTags() {
+            return tags;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+    }
+
+    static class VersionedLine implements Versionable, Serializable {
+        private String id;
+        private int quantity;
+        private int version;
+
+        VersionedLine(String id, int quantity, int version) {
+            this.id = id;
+            this.quantity = quantity;
+            this.version = version;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+    }
+
+    static class OrderTag implements Serializable {
+        private String name;
+
+        OrderTag(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * The model is registered in src/test/resources, it's written like the code generated by aggregate-persistence-processor.
+ *
+ * @author meixuesong
+ */
+public class GeneratedModelsTest {
+    @Test
+    public void should_create_aggregate_with_generated_model() {
+        CompiledOrder order = new CompiledOrder();
+        order.id = "ORDER";
+        order.version = 1;
+        order.lines.add(new StringBuilder("line"));
+        int copies = CompiledOrderModel.COPIES.get();
+
+        Aggregate<CompiledOrder> aggregate = AggregateFactory.createAggregate(order);
+
+        assertEquals(copies + 1, CompiledOrderModel.COPIES.get());
+        assertThat(aggregate.getRootSnapshot().lines, not(sameInstance(order.lines)));
+        assertThat(aggregate.isChanged(), is(false));
+
+        order.lines.get(0).append(" changed");
+        assertThat(aggregate.isChanged(), is(true));
+    }
+
+    @Test
+    public void should_get_changed_fields_by_generated_model() {
+        CompiledOrder old = new CompiledOrder();
+        old.id = "ORDER";
+        CompiledOrder current = GeneratedModels.COPIER.copy(old);
+        current.version = 2;
+
+        assertEquals(Collections.singleton("version"), DataObjectUtils.getChangedFields(old, current));
+        assertThat(DataObjectUtils.getDelta(old, current).version, is(2));
+        assertThat(DataObjectUtils.getChangedFields(old, current, "version").isEmpty(), is(true));
+    }
+
+    @Test
+    public void should_share_copies_with_fallback_copier() {
+        CompiledOrder order = new CompiledOrder();
+        order.lines.add(new StringBuilder("line"));
+        order.note = new Note(order, order.lines.get(0));
+
+        CompiledOrder copied = GeneratedModels.COPIER.copy(order);
+
+        assertThat(copied.note.order, sameInstance(copied));
+        assertThat(copied.note.line, sameInstance(copied.lines.get(0)));
+    }
+
+    @Test
+    public void should_compare_pair_again_after_it_is_compared() {
+        CompiledOrder a = new CompiledOrder();
+        a.id = "A";
+        CompiledOrder b = new CompiledOrder();
+        b.id = "B";
+        Map<Object, Object> visited = new IdentityHashMap<>();
+
+        assertThat(GeneratedModels.isDeepEquals(a, b, visited), is(false));
+        assertThat(GeneratedModels.isDeepEquals(a, b, visited), is(false));
+    }
+
+    @Test
+    public void should_prefer_explicit_defaults_to_generated_models() {
+        DeepCopier copier = new MethodHandleDeepCopier();
+        DeepComparator comparator = new MethodHandleDeepComparator();
+        AggregateFactoryConfig config = AggregateFactoryConfig.builder().copier(copier).comparator(comparator).build();
+
+        assertThat(config.getCopier(CompiledOrder.class), sameInstance(copier));
+        assertThat(config.getComparator(CompiledOrder.class), sameInstance(comparator));
+        assertThat(AggregateFactoryConfig.builder().build().getCopier(CompiledOrder.class), sameInstance(GeneratedModels.COPIER));
+    }
+
+    public static class CompiledOrder implements Versionable {
+        String id;
+        int version;
+        List<StringBuilder> lines = new ArrayList<>();
+        Note note;
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+    }
+
+    public static final class CompiledOrderModel implements GeneratedModel<CompiledOrder> {
+        static final AtomicInteger COPIES = new AtomicInteger();
+
+        @Override
+        public Class<CompiledOrder> getType() {
+            return CompiledOrder.class;
+        }
+
+        @Override
+        public CompiledOrder copy(CompiledOrder source, Map<Object, Object> copies) {
+            COPIES.incrementAndGet();
+            CompiledOrder target = new CompiledOrder();
+            copies.put(source, target);
+            target.id = source.id;
+            target.version = source.version;
+            target.lines = (List) GeneratedModels.copyValue(source.lines, copies);
+            target.note = (Note) GeneratedModels.copyValue(source.note, copies);
+            return target;
+        }
+
+        @Override
+        public boolean isDeepEquals(CompiledOrder a, CompiledOrder b, Map<Object, Object> visited) {
+            return Objects.equals(a.id, b.id)
+                    && a.version == b.version
+                    && GeneratedModels.isDeepEquals(a.lines, b.lines, visited)
+                    && GeneratedModels.isDeepEquals(a.note, b.note, visited);
+        }
+
+        @Override
+        public Set<String> getChangedFields(CompiledOrder old, CompiledOrder current) {
+            Map<Object, Object> visited = new IdentityHashMap<>();
+            Set<String> fields = new HashSet<>();
+            if (!Objects.equals(old.id, current.id)) {
+                fields.add("id");
+            }
+            if (old.version != current.version) {
+                fields.add("version");
+            }
+            if (!GeneratedModels.isDeepEquals(old.lines, current.lines, visited)) {
+                fields.add("lines");
+            }
+            if (!GeneratedModels.isDeepEquals(old.note, current.note, visited)) {
+                fields.add("note");
+            }
+            return fields;
+        }
+
+        @Override
+        public CompiledOrder getDelta(CompiledOrder old, CompiledOrder current) {
+            Set<String> fields = getChangedFields(old, current);
+            CompiledOrder delta = new CompiledOrder();
+            delta.id = fields.contains("id") ? current.id : null;
+            delta.version = fields.contains("version") ? current.version : 0;
+            delta.lines = fields.contains("lines") ? current.lines : null;
+            delta.note = fields.contains("note") ? current.note : null;
+            return delta;
+        }
+    }
+
+    static class Note {
+        private CompiledOrder order;
+        private StringBuilder line;
+
+        private Note() {
+        }
+
+        Note(CompiledOrder order, StringBuilder line) {
+            this.order = order;
+            this.line = line;
+        }
+    }
+}
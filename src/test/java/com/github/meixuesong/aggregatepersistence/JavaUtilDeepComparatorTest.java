@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class JavaUtilDeepComparatorTest {
+    @Test
+    public void should_compare_concurrently_while_ignored_classes_change() throws Exception {
+        JavaUtilDeepComparator comparator = new JavaUtilDeepComparator();
+        Loan loan = createLoan();
+        Loan same = createLoan();
+        Loan changed = createLoan();
+        changed.payPlan(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> {
+                    boolean correct = true;
+                    for (int j = 0; j < 200; j++) {
+                        correct &= !comparator.isDeepEquals(loan, changed);
+                        correct &= comparator.isDeepEquals(loan, same);
+                    }
+                    return correct;
+                }));
+            }
+            for (int i = 0; i < 200; i++) {
+                comparator.addIgnoreEqualsClass(StringBuilder.class);
+                comparator.removeIgnoreEqualsClass(StringBuilder.class);
+            }
+
+            for (Future<Boolean> result : results) {
+                assertThat(result.get(), is(true));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Loan createLoan() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        return loan;
+    }
+}
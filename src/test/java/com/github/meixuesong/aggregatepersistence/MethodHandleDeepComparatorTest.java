@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.LoanCustomer;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author meixuesong
+ */
+public class MethodHandleDeepComparatorTest {
+    private final MethodHandleDeepComparator comparator = new MethodHandleDeepComparator();
+
+    @Before
+    public void setUp() {
+        AggregateFactory.setCopier(new MethodHandleDeepCopier());
+        AggregateFactory.setComparator(comparator);
+    }
+
+    @After
+    public void tearDown() {
+        AggregateFactory.setCopier(null);
+        AggregateFactory.setComparator(null);
+    }
+
+    @Test
+    public void should_compare_primitive_fields_with_deep_equals_precision() {
+        SampleEntity entity = new SampleEntity();
+        entity.setLength(10.0123456789F);
+        Aggregate<SampleEntity> aggregate = AggregateFactory.createAggregate(entity);
+
+        entity.setLength(10.012345F);
+        assertThat(aggregate.isChanged(), is(false));
+
+        entity.setLength(10.0123F);
+        assertThat(aggregate.isChanged(), is(true));
+    }
+
+    @Test
+    public void should_compare_big_decimal_by_value() {
+        SampleEntity entity = new SampleEntity();
+        entity.setMoney(new BigDecimal("10.0"));
+        Aggregate<SampleEntity> aggregate = AggregateFactory.createAggregate(entity);
+
+        entity.setMoney(new BigDecimal("10.00"));
+        assertThat(aggregate.isChanged(), is(false));
+
+        entity.setMoney(new BigDecimal("10.01"));
+        assertThat(aggregate.isChanged(), is(true));
+    }
+
+    @Test
+    public void should_find_changed_entities() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        Aggregate<Loan> aggregate = AggregateFactory.createAggregate(loan);
+
+        loan.payPlan(3);
+
+        assertThat(aggregate.isChanged(), is(true));
+        assertThat(aggregate.findChangedEntities(Loan::getRepaymentPlans, RepaymentPlan::getNo).size(), is(1));
+    }
+
+    @Test
+    public void should_ignore_custom_equals_unless_class_added() {
+        LoanCustomer customer = new LoanCustomer("1", "Mike", "ID", "138");
+        CustomerRef a = new CustomerRef(customer, "a");
+        CustomerRef b = new CustomerRef(customer, "b");
+
+        assertFalse(comparator.isDeepEquals(a, b));
+
+        MethodHandleDeepComparator equalsComparator = new MethodHandleDeepComparator();
+        equalsComparator.addEqualsClass(CustomerRef.class);
+        assertTrue(equalsComparator.isDeepEquals(a, b));
+    }
+
+    @Test
+    public void should_compare_cyclic_graph() {
+        TreeNode a = new TreeNode();
+        a.children.add(new TreeNode());
+        a.children.get(0).parent = a;
+
+        TreeNode b = new TreeNode();
+        b.children.add(new TreeNode());
+        b.children.get(0).parent = b;
+
+        assertTrue(comparator.isDeepEquals(a, b));
+
+        b.children.get(0).value = 1;
+        assertFalse(comparator.isDeepEquals(a, b));
+    }
+
+    @Test
+    public void should_not_regard_rejected_trial_match_as_equal() {
+        Tag a = new Tag("A");
+        Tag b = new Tag("B");
+        TagHolder holder = new TagHolder(new LinkedHashSet<>(Arrays.asList(a, b)), new LinkedHashSet<>(Collections.singletonList(a)));
+
+        Tag otherA = new Tag("A");
+        Tag otherB = new Tag("B");
+        TagHolder other = new TagHolder(new LinkedHashSet<>(Arrays.asList(otherB, otherA)), new LinkedHashSet<>(Collections.singletonList(otherB)));
+
+        assertFalse(comparator.isDeepEquals(holder, other));
+        assertFalse(new JavaUtilDeepComparator().isDeepEquals(holder, other));
+    }
+
+    private static class Tag {
+        private final String name;
+
+        Tag(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class TagHolder {
+        private final Set<Tag> all;
+        private final Set<Tag> selected;
+
+        TagHolder(Set<Tag> all, Set<Tag> selected) {
+            this.all = all;
+            this.selected = selected;
+        }
+    }
+
+    private static class CustomerRef {
+        private final LoanCustomer customer;
+        private final String remark;
+
+        CustomerRef(LoanCustomer customer, String remark) {
+            this.customer = customer;
+            this.remark = remark;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CustomerRef && customer.equals(((CustomerRef) o).customer);
+        }
+
+        @Override
+        public int hashCode() {
+            return customer.hashCode();
+        }
+    }
+
+    private static class TreeNode {
+        private int value;
+        private TreeNode parent;
+        private List<TreeNode> children = new ArrayList<>();
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Contract;
+import com.github.meixuesong.aggregatepersistence.complex_object.ContractBuilder;
+import com.github.meixuesong.aggregatepersistence.complex_object.ContractStatus;
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.LoanCustomer;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentType;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author meixuesong
+ */
+public class MethodHandleDeepCopierTest {
+    private final MethodHandleDeepCopier copier = new MethodHandleDeepCopier();
+    private final JavaUtilDeepComparator comparator = new JavaUtilDeepComparator();
+
+    @Test
+    public void should_copy_object_without_default_constructor() {
+        LocalDateTime now = LocalDateTime.now();
+        Contract contract = new ContractBuilder()
+                .setId("ABCD")
+                .setCreatedAt(now)
+                .setRepaymentType(RepaymentType.DEBJ)
+                .setStatus(ContractStatus.ACTIVE)
+                .setCustomer(new LoanCustomer("C1", "Mike", "123456200012319876", "13800000000"))
+                .setInterestRate(BigDecimal.TEN)
+                .setMaturityDate(now.plusYears(1).toLocalDate())
+                .setCommitment(BigDecimal.valueOf(1000.00))
+                .createContract();
+
+        Contract copied = copier.copy(contract);
+
+        assertNotSame(contract, copied);
+        assertNotSame(contract.getCustomer(), copied.getCustomer());
+        assertEquals(contract, copied);
+        assertTrue(comparator.isDeepEquals(contract, copied));
+    }
+
+    @Test
+    public void should_copy_entity_collection() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+
+        Loan copied = copier.copy(loan);
+        loan.payPlan(0);
+
+        assertNotSame(loan.getRepaymentPlans(), copied.getRepaymentPlans());
+        assertEquals(12, copied.getRepaymentPlans().size());
+        assertEquals("PLAN", copied.getRepaymentPlans().get(0).getStatus());
+        assertEquals("PAID", loan.getRepaymentPlans().get(0).getStatus());
+    }
+
+    @Test
+    public void should_copy_mutable_fields_of_entity() {
+        SampleEntity entity = new SampleEntity();
+        entity.setAge(10);
+        entity.getChildren().add(new SampleEntity());
+
+        SampleEntity copied = copier.copy(entity);
+        entity.getBirthday().setTime(0);
+        entity.getChildren().get(0).setAge(20);
+
+        assertNotSame(entity.getBirthday(), copied.getBirthday());
+        assertEquals(10, copied.getAge());
+        assertEquals(0, copied.getChildren().get(0).getAge());
+        assertSame(entity.getMoney(), copied.getMoney());
+    }
+
+    @Test
+    public void should_keep_shared_references_and_cycles() {
+        Node parent = new Node("parent");
+        Node child = new Node("child");
+        parent.children.add(child);
+        parent.children.add(child);
+        child.parent = parent;
+
+        Node copied = copier.copy(parent);
+
+        assertNotSame(parent, copied);
+        assertSame(copied.children.get(0), copied.children.get(1));
+        assertSame(copied, copied.children.get(0).parent);
+        assertTrue(comparator.isDeepEquals(parent, copied));
+    }
+
+    @Test
+    public void should_fall_back_to_serialization_for_unplanned_types() {
+        Node node = new Node("node");
+        node.tags = Arrays.asList(new StringBuilder("a"), new StringBuilder("b"));
+
+        Node copied = copier.copy(node);
+        node.tags.get(0).append("c");
+
+        assertNotSame(node.tags, copied.tags);
+        assertEquals("a", copied.tags.get(0).toString());
+    }
+
+    @Test
+    public void should_copy_records() {
+        Line line = new Line("L1", new ArrayList<>(Arrays.asList(1, 2)));
+
+        Line copied = copier.copy(line);
+        line.values().add(3);
+
+        assertEquals("L1", copied.name());
+        assertEquals(2, copied.values().size());
+    }
+
+    @Test
+    public void should_share_immutable_records_and_registered_classes() {
+        MethodHandleDeepCopier sharingCopier = new MethodHandleDeepCopier();
+        sharingCopier.addImmutableClass(LoanCustomer.class);
+        Money money = new Money(BigDecimal.TEN, RepaymentType.DEBJ);
+        Line line = new Line("L1", new ArrayList<>());
+        Holder holder = new Holder(money, line, new LoanCustomer("C1", "Mike", "123456200012319876", "13800000000"));
+
+        Holder copied = sharingCopier.copy(holder);
+
+        assertNotSame(holder, copied);
+        assertSame(holder.money, copied.money);
+        assertNotSame(holder.line, copied.line);
+        assertSame(holder.customer, copied.customer);
+
+        sharingCopier.removeImmutableClass(LoanCustomer.class);
+        assertNotSame(holder.customer, sharingCopier.copy(holder).customer);
+    }
+
+    @Test
+    public void should_share_immutable_record_with_repeated_component_type() {
+        Range range = new Range(new Money(BigDecimal.ONE, RepaymentType.DEBJ), new Money(BigDecimal.TEN, RepaymentType.DEBJ));
+
+        assertSame(range, copier.copy(range));
+    }
+
+    @Test
+    public void should_copy_record_of_non_final_registered_class() {
+        MethodHandleDeepCopier sharingCopier = new MethodHandleDeepCopier();
+        sharingCopier.addImmutableClass(LoanCustomer.class);
+        Owner owner = new Owner(new LoanCustomer("C1", "Mike", "123456200012319876", "13800000000"));
+
+        Owner copied = sharingCopier.copy(owner);
+
+        assertNotSame(owner, copied);
+        assertSame(owner.customer(), copied.customer());
+    }
+
+    @Test
+    public void should_keep_shared_references_through_fallback() {
+        Counter counter = new Counter();
+        Wrapper wrapper = new Wrapper(counter, new Counter());
+        SharingHolder holder = new SharingHolder(counter, wrapper, wrapper.other);
+
+        SharingHolder copied = copier.copy(holder);
+
+        assertNotSame(holder.wrapper, copied.wrapper);
+        assertNotSame(holder.first, copied.first);
+        assertSame(copied.first, copied.wrapper.counter);
+        assertSame(copied.wrapper.other, copied.last);
+        assertSame(copied.wrapper, copied.wrapper.counter.owner);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_reject_cycle_through_record() {
+        Node node = new Node("N1");
+        Branch branch = new Branch(node);
+        node.branch = branch;
+
+        copier.copy(branch);
+    }
+
+    private static class Holder implements Serializable {
+        private final Money money;
+        private final Line line;
+        private final LoanCustomer customer;
+
+        private Holder() {
+            this(null, null, null);
+        }
+
+        Holder(Money money, Line line, LoanCustomer customer) {
+            this.money = money;
+            this.line = line;
+            this.customer = customer;
+        }
+    }
+
+    private record Money(BigDecimal amount, RepaymentType type) implements Serializable {
+    }
+
+    private static class Counter implements Serializable {
+        private int count;
+        private Wrapper owner;
+    }
+
+    private static class Wrapper implements Serializable {
+        private final Counter counter;
+        private final Counter other;
+
+        Wrapper(Counter counter, Counter other) {
+            this.counter = counter;
+            this.other = other;
+            counter.owner = this;
+        }
+    }
+
+    private static class SharingHolder implements Serializable {
+        private Counter first;
+        private Wrapper wrapper;
+        private Counter last;
+
+        private SharingHolder() {
+        }
+
+        SharingHolder(Counter first, Wrapper wrapper, Counter last) {
+            this.first = first;
+            this.wrapper = wrapper;
+            this.last = last;
+        }
+    }
+
+    private record Range(Money from, Money to) implements Serializable {
+    }
+
+    private static class Node implements Serializable {
+        private final String name;
+        private Node parent;
+        private List<Node> children = new ArrayList<>();
+        private List<StringBuilder> tags;
+        private Branch branch;
+
+        private Node() {
+            this(null);
+        }
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    private record Line(String name, List<Integer> values) implements Serializable {
+    }
+
+    private record Branch(Node node) implements Serializable {
+    }
+
+    private record Owner(LoanCustomer customer) implements Serializable {
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class OffHeapSnapshotStoreTest {
+    @Test
+    public void should_store_bytes_in_blocks_and_release_them() {
+        OffHeapSnapshotStore store = new OffHeapSnapshotStore(64, 16);
+        byte[] bytes = new byte[40];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+
+        SnapshotBytes stored = store.store(bytes);
+
+        assertEquals(48, store.getUsedBytes());
+        assertArrayEquals(bytes, stored.toByteArray());
+        assertThat(stored.contentEquals(bytes), is(true));
+        assertThat(stored.contentEquals(new byte[40]), is(false));
+
+        stored.release();
+        stored.release();
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void should_compare_content_across_blocks() {
+        OffHeapSnapshotStore store = new OffHeapSnapshotStore(64, 16);
+        byte[] bytes = new byte[40];
+        bytes[39] = 1;
+        SnapshotBytes stored = store.store(bytes);
+
+        byte[] other = bytes.clone();
+        other[39] = 2;
+        assertThat(stored.contentEquals(other), is(false));
+        assertThat(stored.contentEquals(new byte[39]), is(false));
+        assertThat(stored.contentEquals(bytes.clone()), is(true));
+    }
+
+    @Test
+    public void should_free_blocks_of_unreachable_snapshot() throws InterruptedException {
+        OffHeapSnapshotStore store = new OffHeapSnapshotStore(64, 16);
+        store.store(new byte[40]);
+        assertEquals(48, store.getUsedBytes());
+
+        for (int i = 0; i < 100 && store.getUsedBytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void should_reject_when_store_is_full() {
+        OffHeapSnapshotStore store = new OffHeapSnapshotStore(64, 16);
+
+        assertNull(store.store(new byte[65]));
+        assertEquals(1, store.getRejectedCount());
+    }
+
+    @Test
+    public void should_release_off_heap_snapshot_when_aggregate_closed() {
+        OffHeapSnapshotStore store = new OffHeapSnapshotStore(1024 * 1024);
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+
+        try (SerializedAggregate<Loan> aggregate = AggregateFactory.createOffHeapAggregate(loan, store)) {
+            assertThat(store.getUsedBytes() > 0, is(true));
+            assertThat(aggregate.isChanged(), is(false));
+
+            loan.payPlan(1);
+            assertThat(aggregate.isChanged(), is(true));
+            assertEquals(1, aggregate.findChangedEntities(Loan::getRepaymentPlans, RepaymentPlan::getNo).size());
+        }
+
+        assertEquals(0, store.getUsedBytes());
+    }
+}
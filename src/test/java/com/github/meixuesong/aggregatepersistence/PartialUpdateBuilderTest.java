@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class PartialUpdateBuilderTest {
+    @Test
+    public void should_build_update_sql_of_changed_columns() {
+        PartialUpdateBuilder builder = new PartialUpdateBuilder(PersonDO.class, "person", "id", "version");
+
+        ChangedColumns columns = ChangedColumns.of(PersonDO.class, "homeAddress", "age");
+
+        assertEquals("update person set age = ?, home_address = ?, version = version + 1 where id = ? and version = ?", builder.getSql(columns));
+        assertEquals(Arrays.asList("age", "homeAddress", "id", "version"), builder.getParameterFieldNames(columns));
+    }
+
+    @Test
+    public void should_intern_sql_per_changed_columns() {
+        PartialUpdateBuilder builder = new PartialUpdateBuilder(PersonDO.class, "person", "id");
+        PersonDO old = new PersonDO("ID", "Tom", 18, "Beijing");
+
+        String sql = builder.getSql(DataObjectUtils.getChangedColumns(old, new PersonDO("ID", "Tom", 19, "Beijing")));
+        String sameSql = builder.getSql(DataObjectUtils.getChangedColumns(old, new PersonDO("ID", "Tom", 20, "Beijing")));
+        builder.getSql(DataObjectUtils.getChangedColumns(old, new PersonDO("ID", "Jerry", 20, "Beijing")));
+
+        assertThat(sameSql, sameInstance(sql));
+        assertThat(builder.getShapeCount(), is(2));
+    }
+
+    @Test
+    public void should_share_sql_when_only_id_or_version_differs() {
+        PartialUpdateBuilder builder = new PartialUpdateBuilder(PersonDO.class, "person", "id", "version");
+
+        String sql = builder.getSql(ChangedColumns.of(PersonDO.class, "age"));
+        String sameSql = builder.getSql(ChangedColumns.of(PersonDO.class, "age", "id", "version"));
+
+        assertThat(sameSql, sameInstance(sql));
+        assertThat(builder.getShapeCount(), is(1));
+    }
+
+    @Test
+    public void should_update_shadowed_field_once() {
+        PartialUpdateBuilder builder = new PartialUpdateBuilder(EmployeeDO.class, "employee", "id");
+        EmployeeDO old = new EmployeeDO("Tom", "Tommy");
+        EmployeeDO current = new EmployeeDO("Jerry", "Jerry");
+
+        ChangedColumns columns = DataObjectUtils.getChangedColumns(old, current);
+
+        assertEquals(Arrays.asList("name"), columns.getFieldNames());
+        assertEquals("update employee set name = ? where id = ?", builder.getSql(columns));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_when_nothing_to_update() {
+        PartialUpdateBuilder builder = new PartialUpdateBuilder(PersonDO.class, "person", "id", "version");
+
+        builder.getSql(ChangedColumns.of(PersonDO.class, "version"));
+    }
+
+    static class PersonDO {
+        private String id;
+        private String name;
+        private int age;
+        private String homeAddress;
+        private int version;
+
+        PersonDO(String id, String name, int age, String homeAddress) {
+            this.id = id;
+            this.name = name;
+            this.age = age;
+            this.homeAddress = homeAddress;
+        }
+    }
+
+    static class EmployeeDO extends PersonDO {
+        private String name;
+
+        EmployeeDO(String personName, String name) {
+            super("ID", personName, 18, "Beijing");
+            this.name = name;
+        }
+    }
+}
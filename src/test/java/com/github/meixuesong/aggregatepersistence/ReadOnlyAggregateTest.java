@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class ReadOnlyAggregateTest {
+    @Test
+    public void should_be_read_only() {
+        Loan loan = new Loan("ID", 12, 1);
+        Aggregate<Loan> aggregate = AggregateFactory.createReadOnlyAggregate(loan);
+
+        assertThat(aggregate.isReadOnly(), is(true));
+        assertThat(aggregate.isNew(), is(false));
+        assertThat(AggregateFactory.createAggregate(loan).isReadOnly(), is(false));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void should_fail_fast_when_finding_delta() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        Aggregate<Loan> aggregate = AggregateFactory.createReadOnlyAggregate(loan);
+
+        aggregate.diff(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_detect_modification_by_fingerprint() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        ReadOnlyAggregate<Loan> aggregate = AggregateFactory.createReadOnlyAggregate(loan, true);
+        aggregate.assertUnmodified();
+
+        loan.payPlan(1);
+
+        aggregate.assertUnmodified();
+    }
+}
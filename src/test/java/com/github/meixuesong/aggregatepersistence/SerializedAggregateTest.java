@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class SerializedAggregateTest {
+    @Test
+    public void should_not_materialize_snapshot_when_unchanged() {
+        Loan loan = createLoan();
+        SerializedAggregate<Loan> aggregate = AggregateFactory.createSerializedAggregate(loan);
+
+        assertThat(aggregate.isChanged(), is(false));
+        assertThat(aggregate.isSnapshotMaterialized(), is(false));
+    }
+
+    @Test
+    public void should_deep_compare_when_bytes_changed() {
+        Loan loan = createLoan();
+        SerializedAggregate<Loan> aggregate = AggregateFactory.createSerializedAggregate(loan);
+
+        loan.getRepaymentPlans().get(0).setPayableAmount(new BigDecimal("1.00"));
+        assertThat(aggregate.isChanged(), is(false));
+        assertThat(aggregate.isSnapshotMaterialized(), is(true));
+
+        loan.payPlan(1);
+        assertThat(aggregate.isChanged(), is(true));
+    }
+
+    @Test
+    public void should_materialize_snapshot_for_old_values() {
+        Loan loan = createLoan();
+        SerializedAggregate<Loan> aggregate = AggregateFactory.createSerializedAggregate(loan);
+
+        loan.payPlan(1);
+        loan.getRepaymentPlans().remove(11);
+
+        assertEquals("PLAN", aggregate.findChangedEntitiesWithOldValues(Loan::getRepaymentPlans, RepaymentPlan::getNo)
+                .iterator().next().getOldEntity().getStatus());
+        assertEquals(1, aggregate.findRemovedEntities(Loan::getRepaymentPlans, RepaymentPlan::getNo).size());
+        assertEquals(12, aggregate.getRootSnapshot().getRepaymentPlans().size());
+    }
+
+    private Loan createLoan() {
+        Loan loan = new Loan("ID", 12, 1);
+        loan.createPlans();
+        return loan;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class SnapshotCacheTest {
+    private final AtomicInteger loadCount = new AtomicInteger();
+
+    @Test
+    public void should_reuse_snapshot_at_same_version() {
+        SnapshotCache cache = new SnapshotCache(1024 * 1024);
+
+        Aggregate<Loan> first = cache.getAggregate(Loan.class, "L1", 1, () -> load("L1", 1));
+        first.getRoot().payPlan(1);
+        Aggregate<Loan> second = cache.getAggregate(Loan.class, "L1", 1, () -> load("L1", 1));
+
+        assertEquals(1, loadCount.get());
+        assertSame(first.getRootSnapshot(), second.getRootSnapshot());
+        assertNotSame(first.getRoot(), second.getRoot());
+        assertThat(second.isChanged(), is(false));
+        assertThat(first.isChanged(), is(true));
+        assertEquals(1, cache.getStats().getHitCount());
+        assertEquals(1, cache.getStats().getMissCount());
+    }
+
+    @Test
+    public void should_load_again_when_version_changed() {
+        SnapshotCache cache = new SnapshotCache(1024 * 1024);
+
+        cache.getAggregate(Loan.class, "L1", 1, () -> load("L1", 1));
+        Aggregate<Loan> aggregate = cache.getAggregate(Loan.class, "L1", 2, () -> load("L1", 2));
+
+        assertEquals(2, loadCount.get());
+        assertEquals(2, aggregate.getRootSnapshot().getVersion());
+        assertEquals(1, cache.getStats().getSize());
+    }
+
+    @Test
+    public void should_admit_frequent_snapshot_and_evict_least_recently_used() {
+        SnapshotCache cache = new SnapshotCache(2, snapshot -> 1L, 16);
+
+        cache.getAggregate(Loan.class, "L1", 1, () -> load("L1", 1));
+        cache.getAggregate(Loan.class, "L2", 1, () -> load("L2", 1));
+        cache.getAggregate(Loan.class, "L3", 1, () -> load("L3", 1));
+        assertEquals(1, cache.getStats().getRejectionCount());
+
+        cache.getAggregate(Loan.class, "L3", 1, () -> load("L3", 1));
+        cache.getAggregate(Loan.class, "L3", 1, () -> load("L3", 1));
+
+        assertEquals(1, cache.getStats().getEvictionCount());
+        assertEquals(2, cache.getStats().getSize());
+        assertEquals(2, cache.getStats().getWeight());
+    }
+
+    @Test
+    public void should_estimate_snapshot_size() {
+        Loan loan = load("L1", 1);
+
+        long size = new ObjectSizeEstimator().estimate(loan);
+        loan.setTotalMonth(24);
+        loan.createPlans();
+
+        assertThat(size > 0, is(true));
+        assertThat(new ObjectSizeEstimator().estimate(loan) > size, is(true));
+    }
+
+    private Loan load(String id, int version) {
+        loadCount.incrementAndGet();
+        Loan loan = new Loan(id, 12, version);
+        loan.createPlans();
+        return loan;
+    }
+}
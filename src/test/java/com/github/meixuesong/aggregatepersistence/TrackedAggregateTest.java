@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class TrackedAggregateTest {
+    private static final EntityCollection<TrackedOrder, TrackedItem, Integer> ITEMS = EntityCollection.of(TrackedOrder::getItems, TrackedItem::getId);
+    private static final EntityCollection<TrackedOrder, PlainNote, Integer> NOTES = EntityCollection.of(TrackedOrder::getNotes, PlainNote::getId);
+
+    @Test
+    public void should_be_unchanged_until_tracked_object_changes() {
+        TrackedOrder order = createOrder();
+        TrackedAggregate<TrackedOrder> aggregate = AggregateFactory.createTrackedAggregate(order, Collections.singletonList(ITEMS));
+
+        assertThat(aggregate.isChanged(), is(false));
+
+        order.getItems().get(1).setQuantity(5);
+
+        assertThat(aggregate.isChanged(), is(true));
+        assertThat(aggregate.getChangeTracker().isChanged(order), is(false));
+    }
+
+    @Test
+    public void should_find_changed_entities_from_write_log() {
+        TrackedOrder order = createOrder();
+        TrackedAggregate<TrackedOrder> aggregate = AggregateFactory.createTrackedAggregate(order, Collections.singletonList(ITEMS));
+
+        order.getItems().get(1).setQuantity(5);
+        order.getItems().get(2).setQuantity(1);
+        order.removeItem(0);
+        order.addItem(new TrackedItem(3, 1));
+
+        AggregateDiff<TrackedItem, Integer> diff = aggregate.diff(ITEMS);
+
+        assertEquals(1, diff.getNewEntities().size());
+        assertEquals(2, diff.getChangedEntities().size());
+        assertEquals(1, diff.getChangedEntitiesWithOldValues().get(0).getOldEntity().getQuantity());
+        assertEquals(5, diff.getChangedEntitiesWithOldValues().get(0).getNewEntity().getQuantity());
+        assertEquals(0, diff.getRemovedEntities().get(0).getId().intValue());
+        assertThat(aggregate.isChanged(), is(true));
+    }
+
+    @Test
+    public void should_take_snapshot_before_first_change_in_lazy_mode() {
+        TrackedOrder order = createOrder();
+        TrackedAggregate<TrackedOrder> aggregate = AggregateFactory.createTrackedAggregate(order, Collections.singletonList(ITEMS), true);
+
+        assertThat(aggregate.isChanged(), is(false));
+        assertThat(aggregate.isSnapshotTaken(), is(false));
+
+        order.getItems().get(1).setQuantity(5);
+
+        assertThat(aggregate.isSnapshotTaken(), is(true));
+        assertEquals(1, aggregate.getRootSnapshot().getItems().get(1).getQuantity());
+        assertEquals(1, aggregate.diff(ITEMS).getChangedEntities().size());
+    }
+
+    @Test
+    public void should_compare_entities_which_are_not_tracked() {
+        TrackedOrder order = createOrder();
+        order.notes.add(new PlainNote(0, "note"));
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(TrackedOrder.class, NOTES);
+        unitOfWork.register(TrackedOrder.class, "O1",
+                AggregateFactory.createTrackedAggregate(order, Arrays.<EntityCollection<TrackedOrder, ?, ?>>asList(ITEMS, NOTES)));
+        assertThat(unitOfWork.flush().isEmpty(), is(true));
+
+        order.getNotes().get(0).text = "changed";
+
+        WritePlan plan = unitOfWork.flush();
+        assertEquals(1, plan.getChanges().size());
+        assertEquals(1, plan.getChanges().get(0).getDiff(NOTES).getChangedEntities().size());
+    }
+
+    private TrackedOrder createOrder() {
+        TrackedOrder order = new TrackedOrder();
+        for (int i = 0; i < 3; i++) {
+            order.items.add(new TrackedItem(i, 1));
+        }
+        return order;
+    }
+
+    private static class TrackedOrder extends AbstractChangeTrackable implements Versionable, Serializable {
+        private final List<TrackedItem> items = new ArrayList<>();
+        private final List<PlainNote> notes = new ArrayList<>();
+
+        List<TrackedItem> getItems() {
+            return items;
+        }
+
+        List<PlainNote> getNotes() {
+            return notes;
+        }
+
+        void addItem(TrackedItem item) {
+            markChanged();
+            items.add(item);
+        }
+
+        void removeItem(int index) {
+            markChanged();
+            items.remove(index);
+        }
+
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+    }
+
+    private static class TrackedItem extends AbstractChangeTrackable implements Serializable {
+        private final Integer id;
+        private int quantity;
+
+        TrackedItem(Integer id, int quantity) {
+            this.id = id;
+            this.quantity = quantity;
+        }
+
+        Integer getId() {
+            return id;
+        }
+
+        int getQuantity() {
+            return quantity;
+        }
+
+        void setQuantity(int quantity) {
+            markChanged();
+            this.quantity = quantity;
+        }
+    }
+
+    private static class PlainNote implements Serializable {
+        private final Integer id;
+        private String text;
+
+        PlainNote(Integer id, String text) {
+            this.id = id;
+            this.text = text;
+        }
+
+        Integer getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence;
+
+import com.github.meixuesong.aggregatepersistence.complex_object.Loan;
+import com.github.meixuesong.aggregatepersistence.complex_object.RepaymentPlan;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+/**
+ * @author meixuesong
+ */
+public class UnitOfWorkTest {
+    private static final EntityCollection<Loan, RepaymentPlan, Integer> PLANS = EntityCollection.of(Loan::getRepaymentPlans, RepaymentPlan::getNo);
+
+    @Test
+    public void should_keep_one_aggregate_per_type_and_id() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        AtomicInteger loadCount = new AtomicInteger();
+
+        Aggregate<Loan> first = unitOfWork.load(Loan.class, "L1", () -> {
+            loadCount.incrementAndGet();
+            return createLoan("L1", 1);
+        });
+        Aggregate<Loan> second = unitOfWork.load(Loan.class, "L1", () -> {
+            loadCount.incrementAndGet();
+            return createLoan("L1", 1);
+        });
+
+        assertThat(second, sameInstance(first));
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_reject_another_aggregate_of_same_id() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.load(Loan.class, "L1", () -> createLoan("L1", 1));
+
+        unitOfWork.register(Loan.class, "L1", AggregateFactory.createAggregate(createLoan("L1", 1)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void should_not_load_removed_aggregate() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.load(Loan.class, "L1", () -> createLoan("L1", 1));
+        unitOfWork.remove(Loan.class, "L1");
+
+        unitOfWork.load(Loan.class, "L1", () -> createLoan("L1", 1));
+    }
+
+    @Test
+    public void should_flush_ordered_write_plan() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        unitOfWork.addEntityCollection(Loan.class, PLANS);
+        Aggregate<Loan> removed = unitOfWork.load(Loan.class, "L1", () -> createLoan("L1", 1));
+        Aggregate<Loan> changed = unitOfWork.load(Loan.class, "L2", () -> createLoan("L2", 1));
+        unitOfWork.load(Loan.class, "L3", () -> createLoan("L3", 1));
+        Aggregate<Loan> created = AggregateFactory.createAggregate(createLoan("L4", Versionable.NEW_VERSION));
+        unitOfWork.register(Loan.class, "L4", created);
+
+        unitOfWork.remove(Loan.class, "L1");
+        changed.getRoot().payPlan(1);
+        WritePlan plan = unitOfWork.flush();
+
+        assertEquals(3, plan.getChanges().size());
+        assertThat(plan.getChanges().get(0).getAggregate(), sameInstance(changed));
+        assertThat(plan.getChanges().get(0).getDeltaType(), is(Aggregate.DeltaType.UPDATED));
+        assertEquals(1, plan.getChanges().get(0).getDiff(PLANS).getChangedEntities().size());
+        assertThat(plan.getChanges().get(1).getAggregate(), sameInstance(created));
+        assertThat(plan.getChanges().get(1).getDeltaType(), is(Aggregate.DeltaType.NEW));
+        assertEquals(12, plan.getChanges().get(1).getDiff(PLANS).getNewEntities().size());
+        assertThat(plan.getChanges().get(2).getAggregate(), sameInstance(removed));
+        assertThat(plan.getChanges().get(2).getDeltaType(), is(Aggregate.DeltaType.REMOVED));
+
+        created.getRoot().setVersion(1);
+        unitOfWork.commit();
+        assertThat(unitOfWork.flush().isEmpty(), is(true));
+        assertThat(unitOfWork.find(Loan.class, "L1") == null, is(true));
+    }
+
+    @Test
+    public void should_only_commit_flushed_aggregates() {
+        UnitOfWork unitOfWork = new UnitOfWork();
+        Aggregate<Loan> aggregate = unitOfWork.load(Loan.class, "L1", () -> createLoan("L1", 1));
+        assertThat(unitOfWork.flush().isEmpty(), is(true));
+
+        aggregate.getRoot().payPlan(1);
+        unitOfWork.commit();
+
+        WritePlan plan = unitOfWork.flush();
+        assertEquals(1, plan.getChanges().size());
+        assertThat(plan.getChanges().get(0).getAggregate(), sameInstance(aggregate));
+    }
+
+    private Loan createLoan(String id, int version) {
+        Loan loan = new Loan(id, 12, version);
+        loan.createPlans();
+        return loan;
+    }
+}
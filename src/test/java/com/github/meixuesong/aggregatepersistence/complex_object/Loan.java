@@ -13,6 +13,9 @@ public class Loan implements Versionable, Serializable {
     private List<RepaymentPlan> repaymentPlans;
     private int version;
 
+    private Loan() {
+    }
+
     public Loan(String id, Integer totalMonth, int version) {
         this.id = id;
         this.totalMonth = totalMonth;
@@ -21,6 +21,10 @@ public class LoanCustomer implements Serializable {
     private final String idNumber;
     private final String mobilePhone;
 
+    private LoanCustomer() {
+        this(null, null, null, null);
+    }
+
     public LoanCustomer(String id, String name, String idNumber, String mobilePhone) {
         this.id = id;
         this.name = name;
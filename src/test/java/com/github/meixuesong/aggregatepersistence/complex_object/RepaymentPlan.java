@@ -11,6 +11,9 @@ public class RepaymentPlan implements Serializable {
     private BigDecimal payableAmount;
     private String status;
 
+    private RepaymentPlan() {
+    }
+
     public RepaymentPlan(Integer no, BigDecimal payableAmount, String status) {
         this.no = no;
         this.payableAmount = payableAmount;
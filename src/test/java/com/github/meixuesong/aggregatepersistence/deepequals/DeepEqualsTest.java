@@ -36,7 +36,7 @@ import static org.junit.Assert.assertTrue;
  */
 public class DeepEqualsTest {
 
-    private DeepComparator comparator;
+    protected DeepComparator comparator;
 
     @Before
     public void setUp() {
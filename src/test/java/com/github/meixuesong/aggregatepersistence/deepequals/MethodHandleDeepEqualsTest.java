@@ -0,0 +1,30 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * Copyright 2012-2020 the original author or authors.
+ */
+
+package com.github.meixuesong.aggregatepersistence.deepequals;
+
+import com.github.meixuesong.aggregatepersistence.MethodHandleDeepComparator;
+import org.junit.Before;
+
+/**
+ * Run the DeepEquals cases against MethodHandleDeepComparator, it should have the same semantics as JavaUtilDeepComparator.
+ *
+ * @author meixuesong
+ */
+public class MethodHandleDeepEqualsTest extends DeepEqualsTest {
+    @Before
+    @Override
+    public void setUp() {
+        comparator = new MethodHandleDeepComparator();
+    }
+}